@@ -0,0 +1,101 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+/**
+ * Compares a {@link ContextListenerFilter} with an equivalent
+ * {@link ContextListenerScript}.</br>
+ * Both are checked for the same result on random elements, then timed per
+ * element. The script part is skipped if no JavaScript engine is
+ * available (e.g. Nashorn was removed in JDK 15).</br>
+ * Usage: <em>ant bench -Dbench=ContextListenerFilterBenchmark [-Dbench.args="elements rounds"]</em>
+ */
+public class ContextListenerFilterBenchmark {
+
+	private static final String FILTER = "value > 30 and tag Environment and source ~ 'room.*'";
+
+	private static final String SCRIPT =
+		"function matches(tags, src, prp, val, ts, p) {\n" +
+		"  var v = parseFloat(val);\n" +
+		"  if(!(v > 30)) return false;\n" +
+		"  var ok = false;\n" +
+		"  for(var i=0; i<tags.length; i++) if(tags[i] == 'Environment') ok = true;\n" +
+		"  return ok && /^room.*$/.test(src);\n" +
+		"}";
+
+	public static void main(String [] args) throws Exception {
+		int numElements = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+
+		Random r = new Random(1);
+		List<ContextElement> ces = new ArrayList<ContextElement>(numElements);
+		for(int i=0; i<numElements; i++) {
+			String source = (r.nextBoolean() ? "room" : "hall") + i;
+			String tag = r.nextBoolean() ? "Environment" : "Other";
+			ces.add(new ContextElement(source, "temp", String.valueOf(r.nextInt(60)), i, false, tag));
+		}
+
+		ContextListenerFilter filter = new ContextListenerFilter(FILTER);
+
+		ScriptEngine engine = new ScriptEngineManager().getEngineByName("javascript");
+		ContextListenerScript script = null;
+		if(engine == null) {
+			System.out.println("No JavaScript engine available, timing the filter only.");
+		} else {
+			script = new ContextListenerScript(engine.getFactory(), SCRIPT);
+			int mismatches = 0;
+			for(ContextElement ce : ces) {
+				if(script.matches(ce) != filter.matches(ce))
+					mismatches++;
+			}
+			System.out.println("Filter and script disagree on " + mismatches + " of " + numElements + " elements.");
+		}
+
+		int filterRepeat = 1000;
+		int scriptRepeat = 50;
+		for(int round=0; round<rounds; round++) {
+			int matched = 0;
+			long t0 = System.nanoTime();
+			for(int k=0; k<filterRepeat; k++) {
+				for(ContextElement ce : ces) {
+					if(filter.matches(ce))
+						matched++;
+				}
+			}
+			long t1 = System.nanoTime();
+			double filterNs = (t1 - t0) / (double)(filterRepeat * numElements);
+			if(script == null) {
+				System.out.printf("filter %.0f ns/element (%d matched)%n", filterNs, matched / filterRepeat);
+				continue;
+			}
+			for(int k=0; k<scriptRepeat; k++) {
+				for(ContextElement ce : ces) {
+					script.matches(ce);
+				}
+			}
+			long t2 = System.nanoTime();
+			double scriptNs = (t2 - t1) / (double)(scriptRepeat * numElements);
+			System.out.printf("filter %.0f ns/element, script %.0f ns/element%n", filterNs, scriptNs);
+		}
+	}
+}
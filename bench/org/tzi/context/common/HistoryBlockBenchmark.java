@@ -0,0 +1,244 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Size and speed of {@link HistoryBlock} encoding.</br>
+ * Checks that random blocks round-trip, measures bytes per sample and
+ * encode/decode speed for a slowly changing temperature, then compares a
+ * compressed {@link SegmentHistoryProvider} with an uncompressed one on
+ * disk size, query results and range query latency.</br>
+ * Usage: <em>ant bench -Dbench=HistoryBlockBenchmark [-Dbench.args="samples"]</em>
+ */
+public class HistoryBlockBenchmark {
+
+	private static final String [] SPECIAL_VALUES = {
+		"0", "-1", "0.05", "-0.5", "20.50", "1.0E-5", "NaN", "Infinity", "-0", "00", "abc", "",
+		"1e5", "123456789012345678", "1234567890123456789", "3.14159", "-0.0", "0.0", "\u00e4\u20ac\ud834\udd1e"
+	};
+
+	public static void main(String [] args) throws Exception {
+		int numSamples = (args.length > 0) ? Integer.parseInt(args[0]) : 300000;
+		Random r = new Random(3);
+
+		System.out.println("round-trip mismatches: " + roundTrip(r, 200));
+		codec(r);
+		store(r, numSamples);
+	}
+
+	private static boolean same(ContextElement a, ContextElement b) {
+		return a.getTimestamp() == b.getTimestamp()
+			&& a.getValue().equals(b.getValue())
+			&& a.isPersistent() == b.isPersistent()
+			&& a.getTypeTags().equals(b.getTypeTags())
+			&& a.getSourceIdentifier().equals(b.getSourceIdentifier());
+	}
+
+	private static int compare(List<ContextElement> expected, List<ContextElement> actual) {
+		if(expected.size() != actual.size())
+			return 1;
+		for(int i=0; i<expected.size(); i++) {
+			if(!same(expected.get(i), actual.get(i)))
+				return 1;
+		}
+		return 0;
+	}
+
+	/**
+	 * encodes random blocks mixing value kinds and decodes them again
+	 */
+	private static int roundTrip(Random r, int numBlocks) {
+		int bad = 0;
+		for(int b=0; b<numBlocks; b++) {
+			List<ContextElement> ces = new ArrayList<ContextElement>();
+			long ts = r.nextLong() >>> 20;
+			int n = r.nextInt(1100);
+			for(int i=0; i<n; i++) {
+				ts += (r.nextInt(5) == 0) ? r.nextInt(100000) : 1000 + r.nextInt(3) - 1;
+				String v;
+				switch(r.nextInt(5)) {
+				case 0: v = SPECIAL_VALUES[r.nextInt(SPECIAL_VALUES.length)]; break;
+				case 1: v = String.valueOf(r.nextDouble() * 100); break;
+				case 2: v = String.format(Locale.ROOT, "%.2f", r.nextGaussian() * 10); break;
+				case 3: v = String.valueOf(r.nextInt()); break;
+				default: v = "s" + r.nextInt(5);
+				}
+				String [] tags = r.nextBoolean() ? new String [] { "A" } : new String [] { "A", "B" };
+				ces.add(new ContextElement("s", "p", v, ts, r.nextInt(10) == 0, tags));
+			}
+			List<ContextElement> decoded = new ArrayList<ContextElement>();
+			HistoryBlock.decode(ByteBuffer.wrap(HistoryBlock.encode(ces)), "s", "p", Long.MIN_VALUE, Long.MAX_VALUE, 0, null, decoded);
+			bad += compare(ces, decoded);
+		}
+		return bad;
+	}
+
+	/**
+	 * a 10 Hz temperature with one decimal and full precision doubles
+	 */
+	private static void codec(Random r) {
+		List<ContextElement> ces = new ArrayList<ContextElement>();
+		double t = 20;
+		long ts = 1700000000000L;
+		int n = 1000000;
+		for(int i=0; i<n; i++) {
+			t += r.nextGaussian() * 0.01;
+			ts += 100 + ((r.nextInt(20) == 0) ? r.nextInt(5) - 2 : 0);
+			ces.add(new ContextElement("room1", "temp", String.format(Locale.ROOT, "%.1f", t), ts, false, "Environment"));
+		}
+		// timestamp, length prefixes, persistence, tag and value as records store them
+		long recordBytes = 0;
+		for(ContextElement ce : ces)
+			recordBytes += 8 + 8 + 1 + 4 + 4 + "Environment".length() + 4 + ce.getValue().length();
+
+		long blockBytes = 0;
+		List<byte []> blocks = new ArrayList<byte []>();
+		long t0 = System.nanoTime();
+		for(int i=0; i<n; i+=1024) {
+			byte [] b = HistoryBlock.encode(ces.subList(i, Math.min(n, i + 1024)));
+			blocks.add(b);
+			// length and crc framing
+			blockBytes += b.length + 8;
+		}
+		long t1 = System.nanoTime();
+		System.out.printf("temperature: records %.1f B/sample, blocks %.2f B/sample, encode %.0f ns/sample%n",
+			recordBytes / (double)n, blockBytes / (double)n, (t1 - t0) / (double)n);
+
+		for(int k=0; k<3; k++) {
+			t0 = System.nanoTime();
+			int count = 0;
+			for(byte [] b : blocks) {
+				List<ContextElement> out = new ArrayList<ContextElement>(1024);
+				count += HistoryBlock.decode(ByteBuffer.wrap(b), "room1", "temp", Long.MIN_VALUE, Long.MAX_VALUE, 0, null, out);
+			}
+			t1 = System.nanoTime();
+			System.out.printf("decode %.1f M samples/s%n", count / ((t1 - t0) / 1e3));
+		}
+
+		ces.clear();
+		n = 100000;
+		blockBytes = 0;
+		for(int i=0; i<n; i++) {
+			t += r.nextGaussian() * 0.01;
+			ts += 1000;
+			ces.add(new ContextElement("s", "p", String.valueOf(t), ts, false, "Environment"));
+		}
+		for(int i=0; i<n; i+=1024)
+			blockBytes += HistoryBlock.encode(ces.subList(i, Math.min(n, i + 1024))).length + 8;
+		System.out.printf("full precision doubles: %.2f B/sample%n", blockBytes / (double)n);
+	}
+
+	/**
+	 * the same samples in an uncompressed and a compressed segment store
+	 */
+	private static void store(Random r, int n) throws IOException {
+		File raw = createTempDir("history-raw");
+		File compressed = createTempDir("history-blocks");
+		try {
+			SegmentHistoryProvider p1 = new SegmentHistoryProvider(raw, 4 << 20, false);
+			SegmentHistoryProvider p2 = new SegmentHistoryProvider(compressed, 4 << 20, true);
+			Integer prpId = Integer.valueOf(1);
+
+			List<ContextElement> all = new ArrayList<ContextElement>(n);
+			double temp = 20;
+			for(int i=0; i<n; i++) {
+				temp += r.nextGaussian() * 0.05;
+				long ts = 1000000L + 100L * i + ((r.nextInt(10) == 0) ? 1 : 0);
+				String tag = (i % 997 == 0) ? "Alarm" : "Environment";
+				all.add(new ContextElement("room1", "temp", String.format(Locale.ROOT, "%.1f", temp), ts, i % 7 == 0, tag));
+			}
+
+			long t0 = System.nanoTime();
+			for(ContextElement ce : all)
+				p1.append(prpId, ce);
+			p1.flush(false);
+			long t1 = System.nanoTime();
+			for(ContextElement ce : all)
+				p2.append(prpId, ce);
+			p2.flush(false);
+			long t2 = System.nanoTime();
+			System.out.printf("append: records %.0f ns/sample, blocks %.0f ns/sample%n",
+				(t1 - t0) / (double)n, (t2 - t1) / (double)n);
+
+			int bad = compare(all, p2.getHistory(prpId, 0, Long.MAX_VALUE, 0, null));
+			long [][] queries = {
+				{ 2000000, 2010000, 0 }, { 1000050, 1000050, 0 }, { 3000000, Long.MAX_VALUE, 50 }, { 0, Long.MAX_VALUE, 1500 }
+			};
+			for(long [] q : queries)
+				bad += compare(p1.getHistory(prpId, q[0], q[1], (int)q[2], null), p2.getHistory(prpId, q[0], q[1], (int)q[2], null));
+			System.out.println("query mismatches: " + bad);
+
+			long from = 1000000L + 100L * (n / 2);
+			long to = from + 9900;
+			System.out.printf("100 row range query: records %.1f us, blocks %.1f us%n",
+				bestRange(p1, prpId, from, to), bestRange(p2, prpId, from, to));
+
+			p1.close();
+			p2.close();
+			System.out.printf("on disk: records %.2f B/sample, blocks %.2f B/sample%n",
+				size(raw) / (double)n, size(compressed) / (double)n);
+		} finally {
+			delete(raw);
+			delete(compressed);
+		}
+	}
+
+	private static double bestRange(SegmentHistoryProvider p, Integer prpId, long from, long to) {
+		long best = Long.MAX_VALUE;
+		for(int k=0; k<5; k++) {
+			long t0 = System.nanoTime();
+			p.getHistory(prpId, from, to, 0, null);
+			best = Math.min(best, System.nanoTime() - t0);
+		}
+		return best / 1e3;
+	}
+
+	static File createTempDir(String prefix) throws IOException {
+		File f = File.createTempFile(prefix, "");
+		if(!f.delete() || !f.mkdir())
+			throw new IOException("Can not create " + f);
+		return f;
+	}
+
+	static long size(File f) {
+		if(f.isFile())
+			return f.length();
+		long s = 0;
+		File [] children = f.listFiles();
+		if(children != null) {
+			for(File c : children)
+				s += size(c);
+		}
+		return s;
+	}
+
+	static void delete(File f) {
+		File [] children = f.listFiles();
+		if(children != null) {
+			for(File c : children)
+				delete(c);
+		}
+		f.delete();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Latency of tag-filtered history queries, which skip segments and index
+ * entries by their tag bitmaps.</br>
+ * Every sample is tagged Environment; Alarm comes in bursts of 20 every
+ * 50000 samples, Maintenance on one sample and 90 more tags in one region.
+ * Results of reads and aggregations are checked against a brute-force
+ * filter, before and after reopening the segments, for records and for
+ * compressed blocks.</br>
+ * Usage: <em>ant bench -Dbench=HistoryTagBitmapBenchmark [-Dbench.args="samples"]</em>
+ */
+public class HistoryTagBitmapBenchmark {
+
+	private static final String [][] QUERIES = {
+		{ "Alarm" }, { "Maintenance" }, { "x7" }, { "x88", "Alarm" }, { "missing" }, { "Environment" }
+	};
+
+	public static void main(String [] args) throws Exception {
+		int n = (args.length > 0) ? Integer.parseInt(args[0]) : 300000;
+
+		List<ContextElement> all = new ArrayList<ContextElement>(n);
+		for(int i=0; i<n; i++) {
+			List<String> tags = new ArrayList<String>();
+			tags.add("Environment");
+			if(i % 50000 < 20)
+				tags.add("Alarm");
+			if(i == n / 3)
+				tags.add("Maintenance");
+			if(i > n / 2 && i < n / 2 + 2000)
+				tags.add("x" + (i % 90));
+			all.add(new ContextElement("s", "p", String.valueOf(i % 1000 / 10.0), 1000L + 100L * i, false, tags.toArray(new String [0])));
+		}
+
+		run(all, false);
+		run(all, true);
+	}
+
+	private static void run(List<ContextElement> all, boolean compressed) throws IOException {
+		String format = compressed ? "blocks " : "records";
+		File dir = HistoryBlockBenchmark.createTempDir("history-tags");
+		Integer prpId = Integer.valueOf(1);
+		try {
+			SegmentHistoryProvider p = new SegmentHistoryProvider(dir, 1 << 20, compressed);
+			for(ContextElement ce : all)
+				p.append(prpId, ce);
+
+			int bad = 0;
+			for(int round=0; round<2; round++) {
+				for(String [] q : QUERIES) {
+					Set<String> withTags = new HashSet<String>(Arrays.asList(q));
+					bad += check(p, prpId, all, withTags);
+					if(round == 1 && !q[0].equals("Environment")) {
+						long best = Long.MAX_VALUE;
+						int rows = 0;
+						for(int k=0; k<5; k++) {
+							long t0 = System.nanoTime();
+							rows = p.getHistory(prpId, 0, Long.MAX_VALUE, 0, withTags).size();
+							best = Math.min(best, System.nanoTime() - t0);
+						}
+						System.out.printf("%s %-16s %6d rows %8.2f ms%n", format, Arrays.toString(q), rows, best / 1e6);
+					}
+				}
+				// sealed segments read their tag sections, the open one is rescanned
+				p.close();
+				p = new SegmentHistoryProvider(dir, 1 << 20, compressed);
+			}
+			p.close();
+			System.out.println(format + " mismatches: " + bad);
+		} finally {
+			HistoryBlockBenchmark.delete(dir);
+		}
+	}
+
+	private static int check(SegmentHistoryProvider p, Integer prpId, List<ContextElement> all, Set<String> withTags) {
+		List<ContextElement> expected = new ArrayList<ContextElement>();
+		for(ContextElement ce : all) {
+			for(String tag : ce.getTypeTags()) {
+				if(withTags.contains(tag)) {
+					expected.add(ce);
+					break;
+				}
+			}
+		}
+		List<ContextElement> actual = p.getHistory(prpId, 0, Long.MAX_VALUE, 0, withTags);
+		int bad = 0;
+		if(expected.size() != actual.size()) {
+			bad++;
+		} else {
+			for(int i=0; i<expected.size(); i++) {
+				if(expected.get(i).getTimestamp() != actual.get(i).getTimestamp() || !expected.get(i).getTypeTags().equals(actual.get(i).getTypeTags())) {
+					bad++;
+					break;
+				}
+			}
+		}
+		List<HistoryAggregate> aggregated = p.getAggregatedHistory(prpId, 0, Long.MAX_VALUE, 60000, withTags);
+		List<HistoryAggregate> generic = HistoryAggregator.aggregate(p, prpId, 0, Long.MAX_VALUE, 60000, withTags);
+		if(!aggregated.toString().equals(generic.toString()))
+			bad++;
+		return bad;
+	}
+}
@@ -15,9 +15,12 @@
 */
 package org.tzi.context.abstractenv;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Set;
 import java.util.TreeSet;
 
+import org.tzi.context.common.ByteBufferAppender;
 import org.tzi.context.common.Util;
 
 public class PropertyValues implements Cloneable {
@@ -85,22 +88,48 @@ public class PropertyValues implements Cloneable {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		
-		sb.append(tags.size());
+		try {
+			writeTo(sb);
+		} catch (IOException e) {
+			// StringBuilder does not throw
+		}
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Writes the same representation as {@link #toString()} to <em>a</em>
+	 * @param a target
+	 */
+	public void writeTo(Appendable a) throws IOException {
+		Util.appendLong(a, tags.size());
 		
 		for(String t : tags) {
-			sb.append(' ');
-			sb.append(Util.urlencode(t));
+			a.append(' ');
+			Util.urlencode(t, a);
 		}
 		
-		sb.append(' ');
-		sb.append(Util.urldecode(value));
+		a.append(' ');
+		Util.urlencode(value, a);
 		
-		sb.append(' ');
-		sb.append(Long.toString(timestamp));
+		a.append(' ');
+		Util.appendLong(a, timestamp);
 		
 		if(persistent)
-			sb.append(" P");
-		
-		return sb.toString();
+			a.append(" P");
+	}
+	
+	/**
+	 * Writes the same representation as {@link #toString()} encoded
+	 * for the protocol into <em>bb</em>
+	 * @param bb target buffer
+	 * @throws java.nio.BufferOverflowException if the buffer is too small 
+	 */
+	public void writeTo(ByteBuffer bb) {
+		try {
+			writeTo(new ByteBufferAppender(bb));
+		} catch (IOException e) {
+			// ByteBufferAppender does not throw
+		}
 	}
 }
@@ -0,0 +1,37 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * History provider that can aggregate without handing out every sample.</br>
+ * Use {@link HistoryAggregator#aggregate(HistoryProvider, Integer, long, long, long, Set)}
+ * to aggregate any provider; it falls back to {@link #getHistory(Integer, long, long, int, Set)}
+ * for providers not implementing this.
+ */
+public interface AggregatingHistoryProvider extends HistoryProvider {
+	
+	/**
+	 * Aggregates the history in buckets instead of returning every sample.
+	 * @param bucketWidth width of the buckets in milliseconds; buckets start
+	 * at multiples of it
+	 * @return the non-empty buckets overlapping from..to (inclusive) in time
+	 * order, only counting samples in the range
+	 */
+	public List<HistoryAggregate> getAggregatedHistory(Integer prpId, long from, long to, long bucketWidth, Set<String> withTags);
+}
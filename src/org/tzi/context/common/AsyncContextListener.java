@@ -0,0 +1,522 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decouples a listener from the thread merging into a context.</br>
+ * Notifications are put into a bounded queue and delivered to the wrapped
+ * listener by a dedicated thread (a virtual thread if the VM supports them),
+ * so a slow listener does not stall producers. What happens when the queue
+ * is full is decided by the {@link OverflowPolicy}. Deadbands of the
+ * wrapped listener are checked on delivery, so dropped or conflated
+ * elements do not count as delivered.</br>
+ * Use {@link Context#addAsyncContextListener(ContextListener, int, OverflowPolicy)}
+ * to register a listener in this mode.
+ */
+public class AsyncContextListener implements BatchContextListener {
+
+	public static enum OverflowPolicy {
+		/**
+		 * producer waits for free space
+		 */
+		Block,
+		/**
+		 * oldest queued element is discarded; additions and removals of
+		 * sources and properties are kept, the producer waits if nothing
+		 * else is queued
+		 */
+		DropOldest,
+		/**
+		 * a queued element of the same source and property is replaced
+		 * by the newer one unless a removal of it was queued after it;
+		 * producer waits if the queue is full otherwise
+		 */
+		Conflate
+	};
+
+	private static enum EventType { Context, SourceAdded, PropertyAdded, SourceRemoved, PropertyRemoved };
+
+	private static class Event {
+		private EventType type;
+		private Context ctx;
+		private ContextElement ce;
+		private String source;
+		private String property;
+		private long queued;
+
+		public Event(EventType type, Context ctx, ContextElement ce, String source, String property) {
+			this.type = type;
+			this.ctx = ctx;
+			this.ce = ce;
+			this.source = source;
+			this.property = property;
+			this.queued = System.currentTimeMillis();
+		}
+	}
+
+	private ContextListener target;
+	private int capacity;
+	private OverflowPolicy policy;
+
+	private ArrayDeque<Event> queue;
+	/**
+	 * queued context events by source and property (conflation only)
+	 */
+	private Map<String, Map<String, Event>> pending;
+
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition notEmpty = lock.newCondition();
+	private Condition notFull = lock.newCondition();
+
+	private volatile boolean running = true;
+	private Thread dispatcher;
+
+	/**
+	 * last delivered values for the deadbands of the target
+	 */
+	private final DeadbandFilter deadbands = new DeadbandFilter();
+
+	private long delivered = 0;
+	private long dropped = 0;
+	private long conflated = 0;
+	private long lastDeliveryLag = 0;
+	private long maxDeliveryLag = 0;
+
+	public AsyncContextListener(ContextListener target, int capacity, OverflowPolicy policy) {
+		this(target, capacity, policy, null);
+	}
+
+	/**
+	 * @param target listener to notify
+	 * @param capacity maximum number of queued notifications
+	 * @param policy what to do when the queue is full
+	 * @param threadFactory factory for the dispatch thread; <em>null</em> for the default
+	 */
+	public AsyncContextListener(ContextListener target, int capacity, OverflowPolicy policy, ThreadFactory threadFactory) {
+		if(target==null)
+			throw new IllegalArgumentException("target may not be null!");
+		if(capacity < 1)
+			throw new IllegalArgumentException("capacity must be positive!");
+
+		this.target = target;
+		this.capacity = capacity;
+		this.policy = (policy==null)?OverflowPolicy.Block:policy;
+		this.queue = new ArrayDeque<Event>(Math.min(capacity, 1024));
+		if(this.policy == OverflowPolicy.Conflate)
+			pending = new HashMap<String, Map<String, Event>>();
+
+		if(threadFactory==null)
+			threadFactory = defaultThreadFactory();
+
+		dispatcher = threadFactory.newThread(new Runnable() {
+			public void run() {
+				dispatchLoop();
+			}
+		});
+		dispatcher.start();
+	}
+
+	private static ThreadFactory virtualThreadFactory = null;
+	private static boolean virtualThreadsChecked = false;
+
+	/**
+	 * @return a factory for virtual threads or <em>null</em> if not supported
+	 */
+	private static synchronized ThreadFactory getVirtualThreadFactory() {
+		if(!virtualThreadsChecked) {
+			virtualThreadsChecked = true;
+			try {
+				Method ofVirtual = Thread.class.getMethod("ofVirtual");
+				Object builder = ofVirtual.invoke(null);
+				Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+				virtualThreadFactory = (ThreadFactory)factory.invoke(builder);
+			} catch (Exception e) {
+				// not supported by this VM
+			}
+		}
+		return virtualThreadFactory;
+	}
+
+	private ThreadFactory defaultThreadFactory() {
+		ThreadFactory vtf = getVirtualThreadFactory();
+		if(vtf!=null)
+			return vtf;
+
+		// daemon thread, so the VM can quit while listeners are registered
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r);
+				t.setName("AsyncContextListener");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	public ContextListener getTarget() {
+		return target;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return policy;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	private void enqueue(Event e) {
+		lock.lock();
+		try {
+			if(!running)
+				return;
+
+			if(e.type == EventType.Context && pending!=null) {
+				Map<String, Event> pm = pending.get(e.source);
+				Event p = (pm==null)?null:pm.get(e.property);
+				if(p!=null && p.ctx == e.ctx) {
+					p.ce = e.ce;
+					conflated++;
+					return;
+				}
+			}
+
+			while(queue.size() >= capacity) {
+				if(policy == OverflowPolicy.DropOldest && dropOldestContext()) {
+					dropped++;
+				} else {
+					notFull.awaitUninterruptibly();
+					if(!running)
+						return;
+				}
+			}
+
+			queue.add(e);
+			if(e.type == EventType.Context && pending!=null) {
+				Map<String, Event> pm = pending.get(e.source);
+				if(pm==null) {
+					pm = new HashMap<String, Event>();
+					pending.put(e.source, pm);
+				}
+				pm.put(e.property, e);
+			}
+			if(pending!=null) {
+				// later elements must be delivered after the removal
+				if(e.type == EventType.SourceRemoved) {
+					pending.remove(e.source);
+				} else if(e.type == EventType.PropertyRemoved) {
+					Map<String, Event> pm = pending.get(e.source);
+					if(pm!=null) {
+						pm.remove(e.property);
+						if(pm.isEmpty())
+							pending.remove(e.source);
+					}
+				}
+			}
+			notEmpty.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards the oldest queued element notification
+	 * @return <em>false</em> if only additions and removals are queued
+	 */
+	private boolean dropOldestContext() {
+		Iterator<Event> i = queue.iterator();
+		while(i.hasNext()) {
+			Event e = i.next();
+			if(e.type == EventType.Context) {
+				i.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * removes an event leaving the queue from the conflation map
+	 */
+	private void forget(Event e) {
+		if(e==null || pending==null || e.type != EventType.Context)
+			return;
+		Map<String, Event> pm = pending.get(e.source);
+		if(pm!=null && pm.get(e.property)==e) {
+			pm.remove(e.property);
+			if(pm.isEmpty())
+				pending.remove(e.source);
+		}
+	}
+
+	private void dispatchLoop() {
+		List<Event> events = new ArrayList<Event>();
+		while(true) {
+			lock.lock();
+			try {
+				while(running && queue.isEmpty()) {
+					notEmpty.awaitUninterruptibly();
+				}
+				if(!running)
+					return;
+
+				Event e;
+				while((e = queue.poll())!=null) {
+					forget(e);
+					events.add(e);
+				}
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			deliver(events);
+			events.clear();
+		}
+	}
+
+	private void deliver(List<Event> events) {
+		List<ContextElement> batch = null;
+		Context batchCtx = null;
+
+		for(Event e : events) {
+			long lag = System.currentTimeMillis() - e.queued;
+
+			if(e.type == EventType.Context && !passesDeadband(e.ctx, e.ce))
+				continue;
+
+			if(e.type == EventType.Context && target instanceof BatchContextListener) {
+				if(batch!=null && batchCtx != e.ctx) {
+					deliverBatch(batchCtx, batch);
+					batch = null;
+				}
+				if(batch==null) {
+					batch = new ArrayList<ContextElement>();
+					batchCtx = e.ctx;
+				}
+				batch.add(e.ce);
+			} else {
+				if(batch!=null) {
+					deliverBatch(batchCtx, batch);
+					batch = null;
+				}
+				deliver(e);
+			}
+
+			updateLag(lag);
+		}
+
+		if(batch!=null)
+			deliverBatch(batchCtx, batch);
+	}
+
+	/**
+	 * Checks the deadband of the target right before delivery, unless it
+	 * delivers later itself; only called by the dispatcher.
+	 */
+	private boolean passesDeadband(Context ctx, ContextElement ce) {
+		if(DeadbandFilter.defers(target))
+			return true;
+		Deadband d = DeadbandFilter.deadbandFor(target, ce);
+		return d==null || deadbands.send(ctx, ce, d);
+	}
+
+	private void deliverBatch(Context ctx, List<ContextElement> batch) {
+		try {
+			if(batch.size()==1)
+				target.processContext(ctx, batch.get(0));
+			else
+				((BatchContextListener)target).processContextBatch(ctx, batch);
+		} catch(RuntimeException re) {
+			re.printStackTrace();
+		}
+	}
+
+	private void deliver(Event e) {
+		try {
+			switch(e.type) {
+			case Context:
+				target.processContext(e.ctx, e.ce);
+				break;
+			case SourceAdded:
+				target.sourceAdded(e.ctx, e.source, e.property);
+				break;
+			case PropertyAdded:
+				target.propertyAdded(e.ctx, e.source, e.property);
+				break;
+			case SourceRemoved:
+				deadbands.reset(e.ctx, e.source);
+				target.sourceRemoved(e.ctx, e.source);
+				break;
+			case PropertyRemoved:
+				deadbands.reset(e.ctx, e.source, e.property);
+				target.propertyRemoved(e.ctx, e.source, e.property);
+				break;
+			}
+		} catch(RuntimeException re) {
+			// a failing listener must not stop the dispatcher
+			re.printStackTrace();
+		}
+	}
+
+	private void updateLag(long lag) {
+		lock.lock();
+		try {
+			delivered++;
+			lastDeliveryLag = lag;
+			if(lag > maxDeliveryLag)
+				maxDeliveryLag = lag;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the dispatcher. Queued notifications are discarded and
+	 * blocked producers are released.
+	 */
+	public void shutdown() {
+		lock.lock();
+		try {
+			running = false;
+			queue.clear();
+			deadbands.clear();
+			if(pending!=null)
+				pending.clear();
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return number of notifications waiting for delivery
+	 */
+	public int getQueueSize() {
+		lock.lock();
+		try {
+			return queue.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return age in milliseconds of the oldest waiting notification
+	 */
+	public long getLag() {
+		lock.lock();
+		try {
+			Event e = queue.peek();
+			return (e==null)?0:(System.currentTimeMillis() - e.queued);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return time in milliseconds the last delivered notification was queued
+	 */
+	public long getLastDeliveryLag() {
+		lock.lock();
+		try {
+			return lastDeliveryLag;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getMaxDeliveryLag() {
+		lock.lock();
+		try {
+			return maxDeliveryLag;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDeliveredCount() {
+		lock.lock();
+		try {
+			return delivered;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getDroppedCount() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getConflatedCount() {
+		lock.lock();
+		try {
+			return conflated;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public ContextListenerInterface getProperties() {
+		return target.getProperties();
+	}
+
+	public void processContext(Context ctx, ContextElement ce) {
+		enqueue(new Event(EventType.Context, ctx, ce, ce.getSourceIdentifier(), ce.getPropertyIdentifier()));
+	}
+
+	public void processContextBatch(Context ctx, List<ContextElement> ces) {
+		for(ContextElement ce : ces)
+			processContext(ctx, ce);
+	}
+
+	public void sourceAdded(Context ctx, String source, String property) {
+		enqueue(new Event(EventType.SourceAdded, ctx, null, source, property));
+	}
+
+	public void propertyAdded(Context ctx, String source, String property) {
+		enqueue(new Event(EventType.PropertyAdded, ctx, null, source, property));
+	}
+
+	public void sourceRemoved(Context ctx, String source) {
+		enqueue(new Event(EventType.SourceRemoved, ctx, null, source, null));
+	}
+
+	public void propertyRemoved(Context ctx, String source, String property) {
+		enqueue(new Event(EventType.PropertyRemoved, ctx, null, source, property));
+	}
+}
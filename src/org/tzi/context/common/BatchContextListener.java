@@ -0,0 +1,32 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.List;
+
+/**
+ * Listener that wants to receive the matching elements of a
+ * {@link Context#mergeContextElements(java.util.Collection) batch merge}
+ * in one call. Single merges still use
+ * {@link ContextListener#processContext(Context, ContextElement)}.
+ */
+public interface BatchContextListener extends ContextListener {
+	/**
+	 * @param ctx context the elements were merged into
+	 * @param ces matching elements in merge order
+	 */
+	public void processContextBatch(Context ctx, List<ContextElement> ces);
+}
@@ -0,0 +1,85 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Appendable that writes characters directly into a ByteBuffer using the
+ * protocol encoding (UTF-8).</br>
+ * Protocol messages are mostly url-encoded ASCII so the common case is a
+ * single put per character. A full buffer results in a
+ * {@link java.nio.BufferOverflowException}.
+ */
+public class ByteBufferAppender implements Appendable {
+	private ByteBuffer bb;
+	private char highSurrogate = 0;
+
+	public ByteBufferAppender(ByteBuffer bb) {
+		this.bb = bb;
+	}
+
+	public ByteBuffer getBuffer() {
+		return bb;
+	}
+
+	public ByteBufferAppender append(CharSequence csq) {
+		if(csq==null)
+			csq = "null";
+		return append(csq, 0, csq.length());
+	}
+
+	public ByteBufferAppender append(CharSequence csq, int start, int end) {
+		if(csq==null)
+			csq = "null";
+		for(int i=start; i<end; i++)
+			append(csq.charAt(i));
+		return this;
+	}
+
+	public ByteBufferAppender append(char c) {
+		if(highSurrogate != 0) {
+			char hs = highSurrogate;
+			highSurrogate = 0;
+			if(Character.isLowSurrogate(c)) {
+				int cp = Character.toCodePoint(hs, c);
+				bb.put((byte)(0xF0 | (cp >> 18)));
+				bb.put((byte)(0x80 | ((cp >> 12) & 0x3F)));
+				bb.put((byte)(0x80 | ((cp >> 6) & 0x3F)));
+				bb.put((byte)(0x80 | (cp & 0x3F)));
+				return this;
+			}
+			// unpaired surrogate; same replacement as the charset encoder
+			bb.put((byte)'?');
+		}
+
+		if(c < 0x80) {
+			bb.put((byte)c);
+		} else if(c < 0x800) {
+			bb.put((byte)(0xC0 | (c >> 6)));
+			bb.put((byte)(0x80 | (c & 0x3F)));
+		} else if(Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if(Character.isLowSurrogate(c)) {
+			bb.put((byte)'?');
+		} else {
+			bb.put((byte)(0xE0 | (c >> 12)));
+			bb.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+			bb.put((byte)(0x80 | (c & 0x3F)));
+		}
+		return this;
+	}
+}
@@ -15,15 +15,25 @@
 */
 package org.tzi.context.common;
 
-import java.util.HashSet;
-
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Context {
 	public static final boolean debug = false;
@@ -54,14 +64,82 @@ public class Context {
 	private String currentIdentifier = null;
 	private Object currentKey = null;
 	
+	private boolean concurrent;
+	
+	/**
+	 * Merges and removals lock the stripe of their source. Notifications
+	 * are sent while holding the stripe so listeners see changes of a
+	 * property in merge order.
+	 */
+	private Object [] sourceLocks;
+	
 	public Context(String name) {
+		this(name, false);
+	}
+	
+	/**
+	 * Creates a context</br>
+	 * A concurrent context can be used by several producers at once without 
+	 * external locking. Sources are assigned to lock stripes so merges for 
+	 * independent sources run in parallel while updates of the same source
+	 * (and notifications about them) are serialized.</br>
+	 * A non-concurrent context uses a single lock for all sources.</br>
+	 * Listeners must not merge into a different source of a concurrent context
+	 * from within a notification as stripes may be acquired in any order.
+	 * @param name name of the context
+	 * @param concurrent <em>true</em> to enable lock striping
+	 */
+	public Context(String name, boolean concurrent) {
+		this(name, concurrent, defaultChangeLogCapacity);
+	}
+	
+	/**
+	 * Creates a context
+	 * @param name name of the context
+	 * @param concurrent <em>true</em> to enable lock striping
+	 * @param changeLogCapacity number of changes kept for {@link #changesSince(long, int)}
+	 * @see #Context(String, boolean)
+	 */
+	public Context(String name, boolean concurrent, int changeLogCapacity) {
 		this.name = name;
+		this.concurrent = concurrent;
+		this.snapshot = new AtomicReference<ContextSnapshot>(new ContextSnapshot(name));
+		this.changeLog = new ContextChangeLog(changeLogCapacity);
+		
+		int numLocks = 1;
+		if(concurrent) {
+			sPCEMapMap = new ConcurrentSkipListMap<String, Map<String, ContextElement>>();
+			int want = Runtime.getRuntime().availableProcessors() * 4;
+			while(numLocks < want)
+				numLocks <<= 1;
+		} else {
+			sPCEMapMap = new TreeMap<String, Map<String, ContextElement>>();
+		}
+		sourceLocks = new Object [numLocks];
+		for(int i=0; i<numLocks; i++)
+			sourceLocks[i] = new Object();
 	}
 	
 	public String getName() {
 		return name;
 	}
 	
+	public boolean isConcurrent() {
+		return concurrent;
+	}
+	
+	private Object getSourceLock(String source) {
+		int h = source.hashCode();
+		h ^= (h >>> 16);
+		return sourceLocks[h & (sourceLocks.length - 1)];
+	}
+	
+	private Map<String, ContextElement> createPropertyMap() {
+		if(concurrent)
+			return new ConcurrentSkipListMap<String, ContextElement>();
+		return new TreeMap<String, ContextElement>();
+	}
+	
 	public static final String ALL_CONTEXTS = "<AllContexts>";
 	public static final String ALL_SOURCES = "<AllSources>";
 	public static final String ALL_PROPERTIES = "<AllProperties>";
@@ -140,24 +218,186 @@ public class Context {
 	}
 	
 	/**
-	 * Known ContextElementS
+	 * Known ContextElementS in order of their last update.</br>
+	 * ContextElement uses identity for equality so replacing an element
+	 * is a constant time remove/add. Guarded by ceLock; only replaced
+	 * by restore.
 	 */
-	private List<ContextElement> ceList = new LinkedList<ContextElement>();
+	private Set<ContextElement> ceSet = new LinkedHashSet<ContextElement>();
+	
+	private final Object ceLock = new Object();
+	
+	private Set<ContextElement> ceSetView = Collections.unmodifiableSet(ceSet);
+	
+	private List<ContextElement> ceList = new ContextElementView();
+	
+	/**
+	 * Non-persistent elements in order of their last update; only kept
+	 * while a limit is set. Guarded by ceLock.
+	 */
+	private Set<ContextElement> volatileSet = null;
+	
+	private volatile int volatileLimit = 0;
 
+	/**
+	 * Current immutable state, replaced on every change
+	 */
+	private AtomicReference<ContextSnapshot> snapshot;
+	
+	public static final int defaultChangeLogCapacity = 1 << 14;
+	
+	private ContextChangeLog changeLog;
+	
+	/**
+	 * Optional journal receiving every change
+	 */
+	private volatile ContextJournal journal = null;
+	
 	/**
 	 * Mapping from Source to map from Property to CE
 	 */
-	private Map<String, Map<String, ContextElement>> sPCEMapMap = new TreeMap<String, Map<String, ContextElement>>();
+	private Map<String, Map<String, ContextElement>> sPCEMapMap;
+	
+	/**
+	 * Listeners are read on every merge but rarely change so iteration
+	 * works on a snapshot without copying.
+	 */
+	private CopyOnWriteArrayList<ContextListener> listener =
+		new CopyOnWriteArrayList<ContextListener>();
+	
+	/**
+	 * Routes context elements to interested listeners
+	 */
+	private ContextListenerIndex listenerIndex = new ContextListenerIndex();
 	
-	private List<ContextListener> listener =
-		new Vector<ContextListener>();
+	/**
+	 * deadband state of listeners this context delivers to directly
+	 */
+	private ConcurrentHashMap<ContextListener, DeadbandFilter> deadbands =
+		new ConcurrentHashMap<ContextListener, DeadbandFilter>();
+	
+	/**
+	 * Checks an element against the deadband of a listener right before
+	 * it is delivered. Wrappers delivering later check it themselves.
+	 */
+	private boolean passesDeadband(ContextListener cl, ContextElement ce) {
+		if(DeadbandFilter.defers(cl))
+			return true;
+		Deadband d = DeadbandFilter.deadbandFor(cl, ce);
+		if(d==null)
+			return true;
+		DeadbandFilter f = deadbands.get(cl);
+		if(f==null) {
+			f = new DeadbandFilter();
+			DeadbandFilter prev = deadbands.putIfAbsent(cl, f);
+			if(prev!=null)
+				f = prev;
+		}
+		return f.send(this, ce, d);
+	}
 	
 	public void addContextListener(ContextListener cl) {
-		listener.add(cl);
+		compileProperties(cl);
+		if(listener.addIfAbsent(cl))
+			listenerIndex.add(cl);
 	}
 	
+	/**
+	 * Compiles the matcher of listeners using {@link ContextListenerProperties}
+	 */
+	private static void compileProperties(ContextListener cl) {
+		if(cl.getProperties() instanceof ContextListenerProperties) {
+			((ContextListenerProperties)cl.getProperties()).compile();
+		}
+	}
+	
+	/**
+	 * Adds a listener that is notified asynchronously by its own dispatch
+	 * thread.
+	 * @param cl listener to add
+	 * @param capacity maximum number of queued notifications for this listener
+	 * @param policy what to do if the queue is full
+	 * @return the registered wrapper, e.g. for querying lag metrics
+	 * @see AsyncContextListener
+	 */
+	public AsyncContextListener addAsyncContextListener(ContextListener cl, int capacity, AsyncContextListener.OverflowPolicy policy) {
+		AsyncContextListener acl = new AsyncContextListener(cl, capacity, policy);
+		addContextListener(acl);
+		return acl;
+	}
+	
+	/**
+	 * Adds a listener that receives at most one element per interval for
+	 * each source and property, the latest one.
+	 * @param cl listener to wrap
+	 * @param defaultInterval minimum time in milliseconds between deliveries
+	 * where the properties set no {@link ContextListenerProperties#setMaxRate(String, String, double) rate}
+	 * @return the registered wrapper
+	 */
+	public ThrottledContextListener addThrottledContextListener(ContextListener cl, long defaultInterval) {
+		ThrottledContextListener tcl = new ThrottledContextListener(cl, defaultInterval);
+		addContextListener(tcl);
+		return tcl;
+	}
+	
+	/**
+	 * Removes a listener. Asynchronous and throttled listeners can be
+	 * removed by passing either the wrapper or the wrapped listener; their
+	 * delivery is stopped.
+	 * @param cl listener to remove
+	 */
 	public void removeContextListener(ContextListener cl) {
+		for(ContextListener l : listener) {
+			if(l instanceof AsyncContextListener && (l == cl || ((AsyncContextListener)l).getTarget() == cl)) {
+				listener.remove(l);
+				listenerIndex.remove(l);
+				((AsyncContextListener)l).shutdown();
+			}
+			if(l instanceof ThrottledContextListener && (l == cl || ((ThrottledContextListener)l).getTarget() == cl)) {
+				listener.remove(l);
+				listenerIndex.remove(l);
+				((ThrottledContextListener)l).shutdown();
+			}
+		}
 		listener.remove(cl);
+		listenerIndex.remove(cl);
+		deadbands.remove(cl);
+	}
+	
+	/**
+	 * Should be called after the subscription (properties) of a registered
+	 * listener have been changed. Listeners whose
+	 * {@link ContextListenerProperties} changed are checked for every
+	 * element until they are updated; other implementations of
+	 * {@link ContextListenerInterface} are always checked.
+	 * @param cl listener with changed properties
+	 */
+	public void updateContextListener(ContextListener cl) {
+		compileProperties(cl);
+		listenerIndex.update(cl);
+	}
+	
+	/**
+	 * Changes the subscription of a registered listener by a delta. Only
+	 * the changed entries are merged, compiled and indexed.
+	 * @param cl listener using {@link ContextListenerProperties}
+	 * @param delta triples to add and remove
+	 * @return <em>true</em> if the subscription changed
+	 */
+	public boolean applySubscriptionDelta(ContextListener cl, SubscriptionDelta delta) {
+		if(!(cl.getProperties() instanceof ContextListenerProperties))
+			throw new IllegalArgumentException("Listener has no ContextListenerProperties!");
+		ContextListenerProperties clp = (ContextListenerProperties)cl.getProperties();
+		// a delta only brings the index up to date if it was before
+		boolean stale = listenerIndex.isStale(cl);
+		if(!clp.applyDelta(delta))
+			return false;
+		clp.compile();
+		if(stale)
+			listenerIndex.update(cl);
+		else
+			listenerIndex.applyDelta(cl, delta);
+		return true;
 	}
 	
 	public List<ContextListener> getContextListeners() {
@@ -169,49 +409,383 @@ public class Context {
 	 * @param ce
 	 */
 	public void mergeContextElement(ContextElement ce) {
-		boolean newSource = false;
-		boolean newProperty = false;
+		synchronized (getSourceLock(ce.getSourceIdentifier())) {
+			int change = storeContextElement(ce);
+			
+			notifyAdded(ce, change);
+
+			for(ContextListener cl : listenerIndex.getCandidates(ce)) {
+				if((cl.getProperties()==null || cl.getProperties().matches(ce)) && passesDeadband(cl, ce))
+					cl.processContext(this, ce);
+			}
+		}
 		
-		Map<String, ContextElement> pCEMap = sPCEMapMap.get(ce.getSourceIdentifier());
+		evictVolatile();
+	}
+	
+	/**
+	 * Merges several pieces of context information</br>
+	 * Listeners implementing {@link BatchContextListener} receive all matching
+	 * elements in one call, other listeners are notified per element. 
+	 * Source and property additions are reported before any element is
+	 * processed.</br>
+	 * For a concurrent context the batch is split by lock stripe so a listener
+	 * may receive more than one batch.
+	 * @param ces elements to merge, in order
+	 */
+	public void mergeContextElements(Collection<ContextElement> ces) {
+		if(sourceLocks.length == 1) {
+			mergeBatch(sourceLocks[0], ces);
+			evictVolatile();
+			return;
+		}
+		
+		// lock objects use identity
+		Map<Object, List<ContextElement>> stripes = new LinkedHashMap<Object, List<ContextElement>>();
+		for(ContextElement ce : ces) {
+			Object lock = getSourceLock(ce.getSourceIdentifier());
+			List<ContextElement> l = stripes.get(lock);
+			if(l==null) {
+				l = new ArrayList<ContextElement>();
+				stripes.put(lock, l);
+			}
+			l.add(ce);
+		}
+		
+		for(Map.Entry<Object, List<ContextElement>> se : stripes.entrySet()) {
+			mergeBatch(se.getKey(), se.getValue());
+		}
+		
+		evictVolatile();
+	}
+	
+	private void mergeBatch(Object lock, Collection<ContextElement> ces) {
+		synchronized (lock) {
+			int [] changes = new int [ces.size()];
+			int index = 0;
+			for(ContextElement ce : ces) {
+				changes[index++] = storeContextElement(ce);
+			}
+			
+			index = 0;
+			for(ContextElement ce : ces) {
+				notifyAdded(ce, changes[index++]);
+			}
+			
+			Map<ContextListener, List<ContextElement>> matched =
+				new IdentityHashMap<ContextListener, List<ContextElement>>();
+			for(ContextElement ce : ces) {
+				for(ContextListener cl : listenerIndex.getCandidates(ce)) {
+					// delivered below while still holding the lock
+					if((cl.getProperties()==null || cl.getProperties().matches(ce)) && passesDeadband(cl, ce)) {
+						List<ContextElement> l = matched.get(cl);
+						if(l==null) {
+							l = new ArrayList<ContextElement>();
+							matched.put(cl, l);
+						}
+						l.add(ce);
+					}
+				}
+			}
+			
+			if(matched.isEmpty())
+				return;
+			
+			// keep registration order
+			for(ContextListener cl : listener) {
+				List<ContextElement> l = matched.get(cl);
+				if(l==null)
+					continue;
+				if(cl instanceof BatchContextListener) {
+					((BatchContextListener)cl).processContextBatch(this, l);
+				} else {
+					for(ContextElement ce : l)
+						cl.processContext(this, ce);
+				}
+			}
+		}
+	}
+	
+	private static final int CHANGE_UPDATE = 0;
+	private static final int CHANGE_NEW_SOURCE = 1;
+	private static final int CHANGE_NEW_PROPERTY = 2;
+	
+	/**
+	 * Stores an element. Caller must hold the lock for the source.
+	 * @return kind of change
+	 */
+	private int storeContextElement(ContextElement ce) {
+		int change = CHANGE_UPDATE;
 		
+		Map<String, ContextElement> pCEMap = sPCEMapMap.get(ce.getSourceIdentifier());
+
 		if(pCEMap==null) {
-			pCEMap = new TreeMap<String, ContextElement>();
+			pCEMap = createPropertyMap();
 			sPCEMapMap.put(ce.getSourceIdentifier(), pCEMap);
-			newSource = true;
-		} else {
-			ContextElement oldce = pCEMap.get(ce.getPropertyIdentifier());
+			change = CHANGE_NEW_SOURCE;
+		}
+
+		ContextElement oldce = pCEMap.put(ce.getPropertyIdentifier(), ce);
+		
+		commitChange(ContextChange.Type.Merged, ce.getSourceIdentifier(), ce.getPropertyIdentifier(), ce);
+
+		replaceElement(oldce, ce);
+
+		if(oldce==null && change != CHANGE_NEW_SOURCE) {
+			change = CHANGE_NEW_PROPERTY;
+		}
+		
+		return change;
+	}
+	
+	/**
+	 * Replaces an element in the element list. Caller must hold the lock
+	 * for the source.
+	 * @param oldce replaced element; may be <em>null</em>
+	 */
+	private void replaceElement(ContextElement oldce, ContextElement ce) {
+		synchronized (ceLock) {
 			if(oldce!=null) {
-				ceList.remove(oldce);
-			} else {
-				newProperty = true;
+				ceSet.remove(oldce);
+				if(volatileSet!=null && !oldce.isPersistent())
+					volatileSet.remove(oldce);
 			}
+			ceSet.add(ce);
+			if(volatileSet!=null && !ce.isPersistent())
+				volatileSet.add(ce);
+		}
+	}
+	
+	/**
+	 * Removes elements from the element list. Caller must hold the lock
+	 * for their source.
+	 */
+	private void removeElements(Collection<ContextElement> ces) {
+		synchronized (ceLock) {
+			for(ContextElement ce : ces) {
+				ceSet.remove(ce);
+				if(volatileSet!=null && !ce.isPersistent())
+					volatileSet.remove(ce);
+			}
+		}
+	}
+	
+	/**
+	 * Limits the number of non-persistent elements kept in memory. When the
+	 * limit is exceeded the least recently updated non-persistent elements
+	 * are removed as by {@link #removeSourceProperty(String, String)}.
+	 * Persistent elements are never evicted.
+	 * @param limit maximum number of non-persistent elements; 0 for no limit
+	 */
+	public void setVolatileLimit(int limit) {
+		if(limit < 0)
+			throw new IllegalArgumentException("limit must not be negative!");
+		synchronized (ceLock) {
+			if(limit == 0) {
+				volatileSet = null;
+			} else if(volatileSet == null) {
+				volatileSet = new LinkedHashSet<ContextElement>();
+				for(ContextElement ce : ceSet) {
+					if(!ce.isPersistent())
+						volatileSet.add(ce);
+				}
+			}
+			volatileLimit = limit;
+		}
+		evictVolatile();
+	}
+	
+	public int getVolatileLimit() {
+		return volatileLimit;
+	}
+	
+	/**
+	 * @return number of non-persistent elements; -1 if no limit is set
+	 */
+	public int getVolatileCount() {
+		synchronized (ceLock) {
+			return (volatileSet==null) ? -1 : volatileSet.size();
+		}
+	}
+	
+	/**
+	 * Removes the oldest non-persistent elements above the limit. Must not
+	 * be called while holding a source lock.
+	 */
+	private void evictVolatile() {
+		if(volatileLimit <= 0)
+			return;
+		while(true) {
+			ContextElement oldest;
+			synchronized (ceLock) {
+				if(volatileSet==null || volatileSet.size() <= volatileLimit)
+					return;
+				oldest = volatileSet.iterator().next();
+			}
+			removeSourceProperty(oldest.getSourceIdentifier(), oldest.getPropertyIdentifier(), oldest);
+		}
+	}
+	
+	/**
+	 * Loads elements into an empty context without notifying listeners or
+	 * recording changes. Queries for changes before the version are
+	 * incomplete.
+	 * @param ces elements to load; later elements replace earlier ones for
+	 * the same source and property
+	 * @param version version of the context after loading
+	 */
+	void restore(Collection<ContextElement> ces, long version) {
+		synchronized (ceLock) {
+			if(!ceSet.isEmpty() || getVersion() != 0)
+				throw new IllegalStateException("Context \"" + name + "\" is not empty!");
 		}
 		
-		ceList.add(ce);
-		pCEMap.put(ce.getPropertyIdentifier(), ce);
-
-		// create copy to avoid concurrent modification
-		Set<ContextListener> currentListener =
-			new HashSet<ContextListener>(listener);
+		// elements are grouped first, so the snapshot is built once
+		Map<String, Map<String, ContextElement>> loaded = new HashMap<String, Map<String, ContextElement>>();
+		// elements usually arrive grouped by source
+		String lastSource = null;
+		Map<String, ContextElement> pCEMap = null;
+		boolean replaced = false;
+		for(ContextElement ce : ces) {
+			if(!ce.getSourceIdentifier().equals(lastSource)) {
+				lastSource = ce.getSourceIdentifier();
+				pCEMap = loaded.get(lastSource);
+				if(pCEMap==null) {
+					pCEMap = createPropertyMap();
+					loaded.put(lastSource, pCEMap);
+				}
+			}
+			if(pCEMap.put(ce.getPropertyIdentifier(), ce) != null)
+				replaced = true;
+		}
+		
+		for(Map.Entry<String, Map<String, ContextElement>> se : loaded.entrySet()) {
+			synchronized (getSourceLock(se.getKey())) {
+				sPCEMapMap.put(se.getKey(), se.getValue());
+			}
+		}
 		
-		if(newSource) {
-			for(ContextListener cl : currentListener) {
+		synchronized (ceLock) {
+			// sized up front, growing the set would rehash it repeatedly
+			ceSet = new LinkedHashSet<ContextElement>(Math.max(16, (int)(ces.size() / .75f) + 1));
+			ceSetView = Collections.unmodifiableSet(ceSet);
+			for(ContextElement ce : ces) {
+				if(replaced && loaded.get(ce.getSourceIdentifier()).get(ce.getPropertyIdentifier()) != ce)
+					continue;
+				ceSet.add(ce);
+				if(volatileSet!=null && !ce.isPersistent())
+					volatileSet.add(ce);
+			}
+		}
+		
+		// the loaded changes are not in the log
+		changeLog.reset(version);
+		snapshot.set(ContextSnapshot.of(name, version, loaded));
+	}
+	
+	/**
+	 * Applies logged changes to a context that is not yet in use without
+	 * notifying listeners or recording them again. Changes that are already
+	 * part of the current version are skipped; queries for changes before
+	 * the resulting version are incomplete.
+	 * @param changes changes in the order they were logged
+	 */
+	void replay(Iterable<ContextChange> changes) {
+		long base = getVersion();
+		long version = base;
+		ContextSnapshot cs = snapshot.get();
+		for(ContextChange c : changes) {
+			if(c.getVersion() <= base)
+				continue;
+			String source = c.getSourceName();
+			synchronized (getSourceLock(source)) {
+				Map<String, ContextElement> pCEMap;
+				switch(c.getType()) {
+				case SourceRemoved:
+					pCEMap = sPCEMapMap.remove(source);
+					if(pCEMap!=null)
+						removeElements(pCEMap.values());
+					cs = cs.withoutSource(source);
+					break;
+				case PropertyRemoved:
+					pCEMap = sPCEMapMap.get(source);
+					ContextElement removed = (pCEMap==null) ? null : pCEMap.remove(c.getPropertyName());
+					if(removed!=null)
+						removeElements(Collections.singleton(removed));
+					cs = cs.withoutProperty(source, c.getPropertyName());
+					break;
+				default:
+					ContextElement ce = c.getCE();
+					pCEMap = sPCEMapMap.get(source);
+					if(pCEMap==null) {
+						pCEMap = createPropertyMap();
+						sPCEMapMap.put(source, pCEMap);
+					}
+					replaceElement(pCEMap.put(ce.getPropertyIdentifier(), ce), ce);
+					cs = cs.with(ce);
+				}
+			}
+			version = Math.max(version, c.getVersion());
+		}
+		changeLog.reset(version);
+		snapshot.set(cs.withVersion(version));
+	}
+	
+	void setJournal(ContextJournal journal) {
+		this.journal = journal;
+	}
+	
+	/**
+	 * @return journal attached by {@link ContextJournal#open(Context, java.io.File, java.io.File, long)}; <em>null</em> if none
+	 */
+	public ContextJournal getJournal() {
+		return journal;
+	}
+	
+	/**
+	 * Publishes a new snapshot and records the change. Caller must hold
+	 * the lock for the source.
+	 */
+	private void commitChange(ContextChange.Type type, String source, String property, ContextElement ce) {
+		ContextSnapshot cs, ns;
+		do {
+			cs = snapshot.get();
+			switch(type) {
+			case SourceRemoved:
+				ns = cs.withoutSource(source);
+				break;
+			case PropertyRemoved:
+				ns = cs.withoutProperty(source, property);
+				break;
+			default:
+				ns = cs.with(ce);
+			}
+			if(ns == cs)
+				return;
+		} while(!snapshot.compareAndSet(cs, ns));
+		
+		ContextChange change = new ContextChange(type, ns.getVersion(), source, property, ce);
+		changeLog.record(change);
+		
+		ContextJournal j = journal;
+		if(j!=null)
+			j.append(change, (property == null) ? null : cs.getSourceProperty(source, property));
+	}
+	
+	private void notifyAdded(ContextElement ce, int change) {
+		if(change == CHANGE_NEW_SOURCE) {
+			for(ContextListener cl : listener) {
 				if(cl.getProperties()==null || cl.getProperties().notifyNewSource(ce.getSourceIdentifier()))
 					cl.sourceAdded(this, ce.getSourceIdentifier(), ce.getPropertyIdentifier());
 			}
 		}
 
-		if(newProperty) {
-			for(ContextListener cl : currentListener) {
-				if(cl.getProperties()==null || cl.getProperties().notifyNewProperty(ce.getSourceIdentifier(), ce.getSourceIdentifier()))
+		if(change == CHANGE_NEW_PROPERTY) {
+			for(ContextListener cl : listener) {
+				if(cl.getProperties()==null || cl.getProperties().notifyNewProperty(ce.getSourceIdentifier(), ce.getPropertyIdentifier()))
 					cl.propertyAdded(this, ce.getSourceIdentifier(), ce.getPropertyIdentifier());
 			}
 		}
-
-		for(ContextListener cl : currentListener) {
-			if(cl.getProperties()==null || cl.getProperties().matches(ce))
-				cl.processContext(this, ce);
-		}
 	}
 	
 	/**
@@ -225,8 +799,7 @@ public class Context {
 		if(pCEMap==null)
 			return null;
 		
-		LinkedList<ContextElement> r = new LinkedList<ContextElement>();
-		return r;
+		return new LinkedList<ContextElement>(pCEMap.values());
 	}
 
 	/**
@@ -252,11 +825,19 @@ public class Context {
 	 * @param source source to remove
 	 */
 	public void removeSource(String source) {
-		if(sPCEMapMap.remove(source)!=null) {
+		synchronized (getSourceLock(source)) {
+			Map<String, ContextElement> pCEMap = sPCEMapMap.remove(source);
+			if(pCEMap!=null) {
+				commitChange(ContextChange.Type.SourceRemoved, source, null, null);
+				
+				removeElements(pCEMap.values());
 
-			for(ContextListener cl : listener) {
-				if(cl.getProperties()==null || cl.getProperties().matchesSource(source))
-					cl.sourceRemoved(this, source);
+				for(DeadbandFilter f : deadbands.values())
+					f.reset(this, source);
+				for(ContextListener cl : listener) {
+					if(cl.getProperties()==null || cl.getProperties().matchesSource(source))
+						cl.sourceRemoved(this, source);
+				}
 			}
 		}
 	}
@@ -270,30 +851,122 @@ public class Context {
 	 * @param property the property to remove
 	 */
 	public void removeSourceProperty(String source, String property) {
-		Map<String, ContextElement> pCEMap = sPCEMapMap.get(source);
-		
-		if(pCEMap==null)
-			return;
-		
-		pCEMap.remove(property);
-		
-		for(ContextListener cl : listener) {
-			if(cl.getProperties()==null || cl.getProperties().matchesSourceProperty(source, property))
-				cl.propertyRemoved(this, source, property);
+		removeSourceProperty(source, property, null);
+	}
+	
+	/**
+	 * @param expected only remove if this is the current element; <em>null</em> for any
+	 */
+	private void removeSourceProperty(String source, String property, ContextElement expected) {
+		synchronized (getSourceLock(source)) {
+			Map<String, ContextElement> pCEMap = sPCEMapMap.get(source);
+
+			if(pCEMap==null)
+				return;
+
+			ContextElement oldce = pCEMap.get(property);
+			if(oldce==null || (expected!=null && oldce!=expected))
+				return;
+			pCEMap.remove(property);
+			
+			commitChange(ContextChange.Type.PropertyRemoved, source, property, null);
+
+			removeElements(Collections.singleton(oldce));
+
+			for(DeadbandFilter f : deadbands.values())
+				f.reset(this, source, property);
+			for(ContextListener cl : listener) {
+				if(cl.getProperties()==null || cl.getProperties().matchesSourceProperty(source, property))
+					cl.propertyRemoved(this, source, property);
+			}
 		}
 	}
 	
+	/**
+	 * Returns the current state as an immutable snapshot. This does not copy
+	 * anything and the snapshot can be used from any thread while the context
+	 * is being modified.
+	 * @return current snapshot
+	 */
+	public ContextSnapshot getSnapshot() {
+		return snapshot.get();
+	}
+	
+	/**
+	 * @return number of changes (merges and removals) applied to this context
+	 */
+	public long getVersion() {
+		return snapshot.get().getVersion();
+	}
+	
+	/**
+	 * Returns the changes applied after a given version. For every affected
+	 * property only the latest change is reported, removed sources are 
+	 * reported once. The cost depends on the number of changes, not on the
+	 * size of the context.</br>
+	 * Only the most recent changes are kept; if the requested version is too
+	 * old the result is {@link ContextChanges#isComplete() incomplete} and the
+	 * caller has to start over with a {@link #getSnapshot() snapshot}.
+	 * @param version last version known to the caller (e.g. from a snapshot or a previous query)
+	 * @param limit maximum number of changes to return
+	 * @return changes after version
+	 */
+	public ContextChanges changesSince(long version, int limit) {
+		return changeLog.changesSince(version, getVersion(), limit);
+	}
+	
 	public Set<String> getSources() {
 		return new TreeSet<String>(sPCEMapMap.keySet());
 	}
 	
 	/**
-	 * @return all context elements currently present
+	 * Returns all context elements currently present in order of their last 
+	 * update.</br>
+	 * For a non-concurrent context this is an unmodifiable view. A concurrent
+	 * context returns a copy as the view could not be iterated safely while 
+	 * producers are merging.
+	 * @return context elements
 	 */
 	public List<ContextElement> getContextElements() {
+		if(concurrent) {
+			synchronized (ceLock) {
+				return new ArrayList<ContextElement>(ceSet);
+			}
+		}
 		return ceList;
 	}
 	
+	/**
+	 * List view on the ordered element set. Iteration and size are cheap,
+	 * positional access walks the set.
+	 */
+	private class ContextElementView extends AbstractList<ContextElement> {
+		@Override
+		public ContextElement get(int index) {
+			if(index < 0 || index >= ceSet.size())
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + ceSet.size());
+			Iterator<ContextElement> i = ceSet.iterator();
+			while(index-- > 0)
+				i.next();
+			return i.next();
+		}
+		
+		@Override
+		public int size() {
+			return ceSet.size();
+		}
+		
+		@Override
+		public Iterator<ContextElement> iterator() {
+			return ceSetView.iterator();
+		}
+		
+		@Override
+		public boolean contains(Object o) {
+			return ceSet.contains(o);
+		}
+	}
+	
 	/**
 	 * prints the current state to stdout
 	 */
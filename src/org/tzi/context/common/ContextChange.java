@@ -0,0 +1,71 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+/**
+ * A single change of a {@link Context}
+ */
+public class ContextChange {
+	public static enum Type { Merged, SourceRemoved, PropertyRemoved };
+	
+	private Type type;
+	private long version;
+	private String source;
+	private String property;
+	private ContextElement ce;
+	
+	public ContextChange(Type type, long version, String source, String property, ContextElement ce) {
+		this.type = type;
+		this.version = version;
+		this.source = source;
+		this.property = property;
+		this.ce = ce;
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	/**
+	 * @return version of the context after this change
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	public String getSourceName() {
+		return source;
+	}
+	
+	/**
+	 * @return property; <em>null</em> for removed sources
+	 */
+	public String getPropertyName() {
+		return property;
+	}
+	
+	/**
+	 * @return merged element; <em>null</em> for removals
+	 */
+	public ContextElement getCE() {
+		return ce;
+	}
+	
+	@Override
+	public String toString() {
+		return type + "@" + version + " " + source + (property==null ? "" : (" " + property));
+	}
+}
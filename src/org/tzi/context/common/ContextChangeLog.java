@@ -0,0 +1,148 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size log of the most recent changes of a context.</br>
+ * Changes are stored in a ring indexed by version, so writers never wait
+ * for each other and a query only looks at the changes after the requested
+ * version. Versions up to the {@link #reset(long) low-water mark} were
+ * never recorded, e.g. because they were restored from a snapshot.
+ */
+class ContextChangeLog {
+
+	private static final Comparator<ContextChange> versionOrder = new Comparator<ContextChange>() {
+		public int compare(ContextChange c1, ContextChange c2) {
+			return c1.getVersion() < c2.getVersion() ? -1 : (c1.getVersion() == c2.getVersion() ? 0 : 1);
+		}
+	};
+
+	private AtomicReferenceArray<ContextChange> ring;
+	private int mask;
+	/**
+	 * oldest version changes are known after
+	 */
+	private volatile long base = 0;
+
+	/**
+	 * @param capacity number of changes to keep (rounded up to a power of two)
+	 */
+	public ContextChangeLog(int capacity) {
+		int size = 1;
+		while(size < capacity)
+			size <<= 1;
+		ring = new AtomicReferenceArray<ContextChange>(size);
+		mask = size - 1;
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Marks the versions up to <em>version</em> as unknown. Must be called
+	 * before the context publishes that version.
+	 * @param version version the context continues from
+	 */
+	public void reset(long version) {
+		base = version;
+	}
+
+	public void record(ContextChange change) {
+		ring.set((int)(change.getVersion() & mask), change);
+	}
+
+	/**
+	 * @param since version known to the caller
+	 * @param current current version of the context
+	 * @param limit maximum number of returned changes
+	 */
+	public ContextChanges changesSince(long since, long current, int limit) {
+		if(since >= current)
+			return new ContextChanges(since, since, true, false, Collections.<ContextChange>emptyList());
+
+		if(since < base || (current - since) > ring.length())
+			return new ContextChanges(since, since, false, false, Collections.<ContextChange>emptyList());
+
+		// latest change per source and property; source removals are kept separately
+		Map<String, Map<String, ContextChange>> propertyChanges = new HashMap<String, Map<String, ContextChange>>();
+		Map<String, ContextChange> sourceRemovals = new HashMap<String, ContextChange>();
+		int count = 0;
+		long to = since;
+		boolean more = false;
+
+		for(long v = since + 1; v <= current; v++) {
+			ContextChange c = ring.get((int)(v & mask));
+			if(c == null || c.getVersion() < v) {
+				// not yet recorded by its writer
+				more = true;
+				break;
+			}
+			if(c.getVersion() > v) {
+				// overwritten while reading
+				return new ContextChanges(since, since, false, false, Collections.<ContextChange>emptyList());
+			}
+
+			Map<String, ContextChange> pm = propertyChanges.get(c.getSourceName());
+
+			if(c.getType() == ContextChange.Type.SourceRemoved) {
+				int removed = (pm == null) ? 0 : pm.size();
+				boolean known = sourceRemovals.containsKey(c.getSourceName());
+				if(!known && (count - removed) >= limit) {
+					more = true;
+					break;
+				}
+				if(pm != null)
+					propertyChanges.remove(c.getSourceName());
+				count -= removed;
+				sourceRemovals.put(c.getSourceName(), c);
+				if(!known)
+					count++;
+			} else {
+				boolean known = (pm != null) && pm.containsKey(c.getPropertyName());
+				if(!known && count >= limit) {
+					more = true;
+					break;
+				}
+				if(pm == null) {
+					pm = new HashMap<String, ContextChange>();
+					propertyChanges.put(c.getSourceName(), pm);
+				}
+				pm.put(c.getPropertyName(), c);
+				if(!known)
+					count++;
+			}
+
+			to = v;
+		}
+
+		List<ContextChange> changes = new ArrayList<ContextChange>(count);
+		changes.addAll(sourceRemovals.values());
+		for(Map<String, ContextChange> pm : propertyChanges.values())
+			changes.addAll(pm.values());
+		Collections.sort(changes, versionOrder);
+
+		return new ContextChanges(since, to, true, more, changes);
+	}
+}
@@ -0,0 +1,74 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.List;
+
+/**
+ * Result of {@link Context#changesSince(long, int)}
+ */
+public class ContextChanges {
+	private long fromVersion;
+	private long toVersion;
+	private boolean complete;
+	private boolean more;
+	private List<ContextChange> changes;
+	
+	public ContextChanges(long fromVersion, long toVersion, boolean complete, boolean more, List<ContextChange> changes) {
+		this.fromVersion = fromVersion;
+		this.toVersion = toVersion;
+		this.complete = complete;
+		this.more = more;
+		this.changes = changes;
+	}
+	
+	/**
+	 * @return version the query started at (exclusive)
+	 */
+	public long getFromVersion() {
+		return fromVersion;
+	}
+	
+	/**
+	 * @return version covered by this result; use for the next query
+	 */
+	public long getToVersion() {
+		return toVersion;
+	}
+	
+	/**
+	 * @return <em>false</em> if changes after the requested version are no
+	 * longer known; the client needs to re-read the whole context (e.g. from
+	 * a {@link ContextSnapshot}) in that case
+	 */
+	public boolean isComplete() {
+		return complete;
+	}
+	
+	/**
+	 * @return <em>true</em> if the limit was reached before the current version
+	 */
+	public boolean hasMore() {
+		return more;
+	}
+	
+	/**
+	 * @return latest change for each affected source/property in version order 
+	 */
+	public List<ContextChange> getChanges() {
+		return changes;
+	}
+}
@@ -15,6 +15,8 @@
 */
 package org.tzi.context.common;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.TreeSet;
@@ -38,6 +40,19 @@ public class ContextElement {
 		this.persistent = persistent;
 	}
 	
+	/**
+	 * Creates an element without copying its arguments. The tag set may be
+	 * shared between elements and must not be modified.
+	 */
+	ContextElement(Set<String> typeTags, String sourceIdentifier, String propertyIdentifier, String value, long timestamp, boolean persistent) {
+		this.typeTags = typeTags;
+		this.sourceIdentifier = sourceIdentifier;
+		this.propertyIdentifier = propertyIdentifier;
+		this.value = value;
+		this.timestamp = timestamp;
+		this.persistent = persistent;
+	}
+	
 	public ContextElement(String sourceIdentifier, String propertyIdentifier, String value, long timestamp, boolean persistent, String...typeTags) {
 		this(sourceIdentifier, propertyIdentifier, value, timestamp, persistent, Util.listToSet(typeTags));
 	}
@@ -74,27 +89,11 @@ public class ContextElement {
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		
-		sb.append(Util.urlencode(sourceIdentifier));
-		sb.append(" ");
-		sb.append(Util.urlencode(propertyIdentifier));
-
-		sb.append(" ");
-		
-		sb.append(Integer.toString(typeTags.size()));
-		
-		for(Iterator<String> ti = typeTags.iterator(); ti.hasNext();) {
-			sb.append(" ");
-			sb.append(Util.urlencode(ti.next()));
+		try {
+			writeTo(sb);
+		} catch (IOException e) {
+			// StringBuilder does not throw
 		}
-
-		sb.append(" ");
-		sb.append(Util.urlencode(value));
-		
-		sb.append(" ");
-		sb.append(Long.toString(timestamp));
-		
-		if(persistent)
-			sb.append(" P");
 		
 		return sb.toString();
 	}
@@ -108,28 +107,87 @@ public class ContextElement {
 	public String toShortString(String prefix) {
 		StringBuilder sb = new StringBuilder();
 		
+		try {
+			writeShortTo(sb, prefix);
+		} catch (IOException e) {
+			// StringBuilder does not throw
+		}
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Writes the same representation as {@link #toString()} to <em>a</em>
+	 * @param a target
+	 */
+	public void writeTo(Appendable a) throws IOException {
+		Util.urlencode(sourceIdentifier, a);
+		a.append(' ');
+		Util.urlencode(propertyIdentifier, a);
+		a.append(' ');
+		
+		writeValuesTo(a);
+	}
+	
+	/**
+	 * Writes the same representation as {@link #toShortString(String)} to <em>a</em>
+	 * @param a target
+	 * @param prefix a prefix to append (will be followed by space); use empty string or null for no prefix
+	 */
+	public void writeShortTo(Appendable a, String prefix) throws IOException {
 		if(prefix != null && prefix.length() > 0) {
-			sb.append(Util.urlencode(prefix));
-			sb.append(" ");
+			Util.urlencode(prefix, a);
+			a.append(' ');
 		}
 		
-		sb.append(Integer.toString(typeTags.size()));
+		writeValuesTo(a);
+	}
+	
+	/**
+	 * Writes the same representation as {@link #toString()} encoded
+	 * for the protocol into <em>bb</em>
+	 * @param bb target buffer
+	 * @throws java.nio.BufferOverflowException if the buffer is too small 
+	 */
+	public void writeTo(ByteBuffer bb) {
+		try {
+			writeTo(new ByteBufferAppender(bb));
+		} catch (IOException e) {
+			// ByteBufferAppender does not throw
+		}
+	}
+	
+	/**
+	 * Writes the same representation as {@link #toShortString(String)} encoded
+	 * for the protocol into <em>bb</em>
+	 * @param bb target buffer
+	 * @param prefix a prefix to append (will be followed by space); use empty string or null for no prefix
+	 * @throws java.nio.BufferOverflowException if the buffer is too small 
+	 */
+	public void writeShortTo(ByteBuffer bb, String prefix) {
+		try {
+			writeShortTo(new ByteBufferAppender(bb), prefix);
+		} catch (IOException e) {
+			// ByteBufferAppender does not throw
+		}
+	}
+	
+	private void writeValuesTo(Appendable a) throws IOException {
+		Util.appendLong(a, typeTags.size());
 		
 		for(Iterator<String> ti = typeTags.iterator(); ti.hasNext();) {
-			sb.append(" ");
-			sb.append(Util.urlencode(ti.next()));
+			a.append(' ');
+			Util.urlencode(ti.next(), a);
 		}
 
-		sb.append(" ");
-		sb.append(Util.urlencode(value));
+		a.append(' ');
+		Util.urlencode(value, a);
 		
-		sb.append(" ");
-		sb.append(Long.toString(timestamp));
+		a.append(' ');
+		Util.appendLong(a, timestamp);
 		
 		if(persistent)
-			sb.append(" P");
-		
-		return sb.toString();
+			a.append(" P");
 	}
 
 	
@@ -0,0 +1,541 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the changes of a {@link Context}.</br>
+ * Every merge and removal is encoded into a buffer while the change is
+ * committed. The buffer is written and forced to disk by a background
+ * thread every <em>syncInterval</em> milliseconds (group commit), so
+ * producers never wait for the disk. Callers that need durability for
+ * their changes call {@link #sync()}, which joins the next commit.</br>
+ * {@link #checkpoint()} writes a {@link ContextSnapshotFile} and starts a
+ * new journal. {@link #open(Context, File, File, long)} restores the
+ * snapshot and replays the journal on startup. A torn record at the end
+ * of the journal (crash while writing) is detected by its checksum and
+ * discarded.</br>
+ * With <em>persistentOnly</em> set, only elements flagged as persistent are
+ * journaled and written to snapshots; other elements live in memory only
+ * (see {@link Context#setVolatileLimit(int)}) and are gone after a restart.
+ */
+public class ContextJournal {
+
+	public static final int MAGIC = 0x4354584A; // "CTXJ"
+	public static final int FORMAT = 1;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private static final byte FLAG_PERSISTENT = 1;
+
+	private Context ctx;
+	private File snapshotFile;
+	private File journalFile;
+	private long syncInterval;
+	private boolean persistentOnly;
+
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+	private ByteBufferAppender appender = new ByteBufferAppender(buffer);
+	private CRC32 crc = new CRC32();
+
+	/**
+	 * number of records appended / known to be on disk
+	 */
+	private long appended = 0;
+	private long durable = 0;
+
+	private IOException failure = null;
+	private boolean closed = false;
+
+	/**
+	 * held while writing to and forcing the channel
+	 */
+	private Object flushLock = new Object();
+	private Object checkpointLock = new Object();
+
+	private Thread flusher = null;
+
+	private ContextJournal(Context ctx, File snapshotFile, File journalFile, long validLength, long syncInterval, boolean persistentOnly) throws IOException {
+		this.ctx = ctx;
+		this.snapshotFile = snapshotFile;
+		this.journalFile = journalFile;
+		this.syncInterval = syncInterval;
+		this.persistentOnly = persistentOnly;
+		this.channel = openChannel(journalFile, validLength);
+
+		if(syncInterval > 0) {
+			flusher = new Thread(new Runnable() {
+				public void run() {
+					flushLoop();
+				}
+			});
+			flusher.setName("ContextJournal " + journalFile.getName());
+			flusher.setDaemon(true);
+			flusher.start();
+		}
+	}
+
+	/**
+	 * Restores a context from its snapshot and journal and attaches a
+	 * journal to it. Missing files are created.
+	 * @param ctx new and empty context
+	 * @param snapshotFile file used for checkpoints
+	 * @param journalFile journal file
+	 * @param syncInterval milliseconds between forced writes; 0 to write only on {@link #sync()}
+	 * @return the attached journal
+	 */
+	public static ContextJournal open(Context ctx, File snapshotFile, File journalFile, long syncInterval) throws IOException {
+		return open(ctx, snapshotFile, journalFile, syncInterval, false);
+	}
+
+	/**
+	 * Restores a context from its snapshot and journal and attaches a
+	 * journal to it. Missing files are created.
+	 * @param ctx new and empty context
+	 * @param snapshotFile file used for checkpoints
+	 * @param journalFile journal file
+	 * @param syncInterval milliseconds between forced writes; 0 to write only on {@link #sync()}
+	 * @param persistentOnly only store elements that are flagged as persistent
+	 * @return the attached journal
+	 */
+	public static ContextJournal open(Context ctx, File snapshotFile, File journalFile, long syncInterval, boolean persistentOnly) throws IOException {
+		if(ctx.getJournal()!=null)
+			throw new IllegalStateException("Context \"" + ctx.getName() + "\" already has a journal!");
+
+		if(snapshotFile.exists())
+			ContextSnapshotFile.restore(snapshotFile, ctx);
+
+		// left over by an interrupted checkpoint
+		File old = getOldFile(journalFile);
+		boolean recovered = old.exists();
+		if(recovered)
+			ctx.replay(read(old, null));
+
+		long [] valid = { 0 };
+		if(journalFile.exists())
+			ctx.replay(read(journalFile, valid));
+
+		if(recovered) {
+			// everything is in the new snapshot now
+			ContextSnapshotFile.write(ctx.getSnapshot(), snapshotFile, persistentOnly);
+			old.delete();
+			valid[0] = 0;
+		}
+
+		ContextJournal j = new ContextJournal(ctx, snapshotFile, journalFile, valid[0], syncInterval, persistentOnly);
+		ctx.setJournal(j);
+		return j;
+	}
+
+	private static File getOldFile(File journalFile) {
+		return new File(journalFile.getPath() + ".old");
+	}
+
+	/**
+	 * @param validLength length of the existing journal to keep; 0 for a new journal
+	 */
+	private static FileChannel openChannel(File f, long validLength) throws IOException {
+		FileChannel fc = new RandomAccessFile(f, "rw").getChannel();
+		if(validLength < HEADER_SIZE) {
+			fc.truncate(0);
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(FORMAT);
+			header.flip();
+			while(header.hasRemaining())
+				fc.write(header);
+		} else {
+			// drop a torn record
+			fc.truncate(validLength);
+			fc.position(validLength);
+		}
+		return fc;
+	}
+
+	public Context getContext() {
+		return ctx;
+	}
+
+	public File getJournalFile() {
+		return journalFile;
+	}
+
+	public File getSnapshotFile() {
+		return snapshotFile;
+	}
+
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	public boolean isPersistentOnly() {
+		return persistentOnly;
+	}
+
+	/**
+	 * @return number of changes journaled since opening
+	 */
+	public synchronized long getAppendedCount() {
+		return appended;
+	}
+
+	/**
+	 * @return number of changes known to be on disk
+	 */
+	public synchronized long getDurableCount() {
+		return durable;
+	}
+
+	/**
+	 * @return the first write error; <em>null</em> if there was none
+	 */
+	public synchronized IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Called by the context while committing a change. Write errors are
+	 * reported by {@link #sync()}, {@link #checkpoint()} and {@link #close()}.
+	 * @param previous element replaced or removed; <em>null</em> if none
+	 */
+	synchronized void append(ContextChange change, ContextElement previous) {
+		if(closed || failure!=null)
+			return;
+
+		if(persistentOnly) {
+			boolean stored = previous!=null && previous.isPersistent();
+			switch(change.getType()) {
+			case Merged:
+				if(change.getCE().isPersistent())
+					break;
+				if(!stored)
+					return;
+				// a stored element was replaced by a volatile one
+				change = new ContextChange(ContextChange.Type.PropertyRemoved, change.getVersion(), change.getSourceName(), change.getPropertyName(), null);
+				break;
+			case PropertyRemoved:
+				if(!stored)
+					return;
+				break;
+			default:
+				break;
+			}
+		}
+
+		while(true) {
+			int start = buffer.position();
+			try {
+				encode(change);
+				appended++;
+				return;
+			} catch(BufferOverflowException boe) {
+				buffer.position(start);
+				if(start == 0) {
+					ByteBuffer nb = ByteBuffer.allocate(buffer.capacity() * 2);
+					buffer = nb;
+					appender = new ByteBufferAppender(nb);
+				} else {
+					try {
+						drain();
+					} catch(IOException ioe) {
+						failure = ioe;
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	private void putString(String s) {
+		int pos = buffer.position();
+		buffer.putInt(0);
+		appender.append(s);
+		buffer.putInt(pos, buffer.position() - pos - 4);
+	}
+
+	private void encode(ContextChange c) {
+		int start = buffer.position();
+		buffer.position(start + 8);
+
+		buffer.put((byte)c.getType().ordinal());
+		buffer.putLong(c.getVersion());
+		putString(c.getSourceName());
+		if(c.getType() != ContextChange.Type.SourceRemoved)
+			putString(c.getPropertyName());
+		if(c.getType() == ContextChange.Type.Merged) {
+			ContextElement ce = c.getCE();
+			buffer.putLong(ce.getTimestamp());
+			buffer.put(ce.isPersistent() ? FLAG_PERSISTENT : 0);
+			buffer.putInt(ce.getTypeTags().size());
+			for(String tag : ce.getTypeTags())
+				putString(tag);
+			putString(ce.getValue());
+		}
+
+		int end = buffer.position();
+		ByteBuffer body = buffer.duplicate();
+		body.position(start + 8);
+		body.limit(end);
+		crc.reset();
+		crc.update(body);
+		buffer.putInt(start, end - start - 8);
+		buffer.putInt(start + 4, (int)crc.getValue());
+	}
+
+	/**
+	 * writes the buffer to the channel; caller holds the monitor
+	 */
+	private void drain() throws IOException {
+		buffer.flip();
+		try {
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+		} finally {
+			buffer.clear();
+		}
+	}
+
+	private void flushLoop() {
+		while(true) {
+			synchronized (this) {
+				if(closed)
+					return;
+				try {
+					wait(syncInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if(closed)
+					return;
+			}
+			try {
+				flush();
+			} catch(IOException ioe) {
+				// kept in failure
+			}
+		}
+	}
+
+	/**
+	 * writes and forces all appended changes (one group commit)
+	 */
+	private void flush() throws IOException {
+		synchronized (flushLock) {
+			long seq;
+			synchronized (this) {
+				if(failure!=null)
+					throw failure;
+				if(durable >= appended)
+					return;
+				seq = appended;
+				try {
+					drain();
+				} catch(IOException ioe) {
+					failure = ioe;
+					throw ioe;
+				}
+			}
+			try {
+				channel.force(false);
+			} catch(IOException ioe) {
+				synchronized (this) {
+					failure = ioe;
+				}
+				throw ioe;
+			}
+			synchronized (this) {
+				durable = seq;
+			}
+		}
+	}
+
+	/**
+	 * Waits until all changes appended so far are on disk. Concurrent
+	 * callers share a single write.
+	 * @throws IOException if the journal could not be written
+	 */
+	public void sync() throws IOException {
+		flush();
+	}
+
+	/**
+	 * Writes a snapshot of the context and starts a new journal. Changes
+	 * committed during the checkpoint are kept in the new journal.
+	 * @return version of the written snapshot
+	 */
+	public long checkpoint() throws IOException {
+		synchronized (checkpointLock) {
+			File old = getOldFile(journalFile);
+			synchronized (flushLock) {
+				synchronized (this) {
+					if(closed)
+						throw new IOException("Journal " + journalFile + " is closed!");
+					flush();
+					channel.force(true);
+					channel.close();
+					Files.move(journalFile.toPath(), old.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					try {
+						channel = openChannel(journalFile, 0);
+					} catch(IOException ioe) {
+						failure = ioe;
+						throw ioe;
+					}
+				}
+			}
+			// contains everything in the old journal
+			ContextSnapshot cs = ctx.getSnapshot();
+			ContextSnapshotFile.write(cs, snapshotFile, persistentOnly);
+			old.delete();
+			return cs.getVersion();
+		}
+	}
+
+	/**
+	 * Writes all pending changes and detaches the journal from the context.
+	 */
+	public void close() throws IOException {
+		synchronized (flushLock) {
+			synchronized (this) {
+				if(closed)
+					return;
+				ctx.setJournal(null);
+			}
+			try {
+				flush();
+			} finally {
+				synchronized (this) {
+					closed = true;
+					notifyAll();
+					channel.close();
+				}
+			}
+		}
+	}
+
+	private static String getString(ByteBuffer bb) {
+		int len = bb.getInt();
+		if(len < 0 || len > bb.remaining())
+			throw new BufferUnderflowException();
+		String s = new String(bb.array(), bb.arrayOffset() + bb.position(), len, Protocol.protocolCharset);
+		bb.position(bb.position() + len);
+		return s;
+	}
+
+	private static ContextChange decode(ByteBuffer bb) {
+		ContextChange.Type [] types = ContextChange.Type.values();
+		int t = bb.get();
+		if(t < 0 || t >= types.length)
+			throw new BufferUnderflowException();
+		ContextChange.Type type = types[t];
+		long version = bb.getLong();
+		String source = getString(bb);
+		String property = null;
+		ContextElement ce = null;
+		if(type != ContextChange.Type.SourceRemoved)
+			property = getString(bb);
+		if(type == ContextChange.Type.Merged) {
+			long timestamp = bb.getLong();
+			boolean persistent = (bb.get() & FLAG_PERSISTENT) != 0;
+			int n = bb.getInt();
+			Set<String> tags = new TreeSet<String>();
+			for(int i=0; i<n; i++)
+				tags.add(getString(bb));
+			String value = getString(bb);
+			ce = new ContextElement(tags, source, property, value, timestamp, persistent);
+		}
+		return new ContextChange(type, version, source, property, ce);
+	}
+
+	/**
+	 * Reads all intact records of a journal.
+	 * @param f journal file
+	 * @param valid receives the length of the intact part; may be <em>null</em>
+	 */
+	static List<ContextChange> read(File f, long [] valid) throws IOException {
+		List<ContextChange> changes = new ArrayList<ContextChange>();
+		long fileLength = f.length();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), BUFFER_SIZE));
+		try {
+			long length;
+			try {
+				if(in.readInt() != MAGIC)
+					throw new IOException(f + " is not a context journal!");
+				int format = in.readInt();
+				if(format != FORMAT)
+					throw new IOException("Unsupported journal format " + format + " in " + f);
+			} catch(EOFException eofe) {
+				// empty journal
+				return changes;
+			}
+			length = HEADER_SIZE;
+
+			CRC32 crc = new CRC32();
+			byte [] body = new byte [256];
+			while(true) {
+				int len;
+				int checksum;
+				try {
+					len = in.readInt();
+					checksum = in.readInt();
+					// a torn length must not make us allocate its value
+					if(len < 0 || len > fileLength - length - 8)
+						break;
+					if(body.length < len)
+						body = new byte [Math.max(len, body.length * 2)];
+					in.readFully(body, 0, len);
+				} catch(EOFException eofe) {
+					break;
+				}
+				crc.reset();
+				crc.update(body, 0, len);
+				if((int)crc.getValue() != checksum)
+					break;
+				try {
+					changes.add(decode(ByteBuffer.wrap(body, 0, len)));
+				} catch(BufferUnderflowException bue) {
+					break;
+				}
+				length += 8 + len;
+			}
+
+			if(valid!=null)
+				valid[0] = length;
+		} finally {
+			in.close();
+		}
+		return changes;
+	}
+}
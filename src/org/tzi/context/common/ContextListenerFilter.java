@@ -0,0 +1,615 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Listener properties given by a filter expression like
+ * <em>value &gt; 30 and tag Environment</em>.</br>
+ * The expression is parsed once into a tree of nodes, so matching an
+ * element is a walk over that tree without any interpretation of text.
+ * </br>
+ * Syntax:
+ * <ul>
+ * <li><em>a and b</em>, <em>a or b</em>, <em>not a</em> (also <em>&amp;&amp;</em>,
+ * <em>||</em>, <em>!</em>), parentheses, <em>true</em>, <em>false</em></li>
+ * <li><em>field op literal</em> with the fields <em>value</em>,
+ * <em>timestamp</em>, <em>source</em> and <em>property</em> and the
+ * operators <em>= == != &lt; &lt;= &gt; &gt;=</em>. Numeric literals compare
+ * numerically; a value that is not a number fails every numeric
+ * comparison. Other literals compare as strings.</li>
+ * <li><em>field ~ "regex"</em>; the whole text must match</li>
+ * <li><em>tag name</em> or <em>tag = name</em> (element has the tag),
+ * <em>tag != name</em>, <em>tag ~ "regex"</em> (some tag matches)</li>
+ * <li><em>persistent</em></li>
+ * </ul>
+ * Literals are numbers, quoted strings (<em>"..."</em> or <em>'...'</em>,
+ * backslash escapes the next character) or bare words.</br>
+ * Source and property matching evaluates the expression with the element
+ * unknown; only parts that are false regardless of the element reject a
+ * source or property.
+ */
+public class ContextListenerFilter implements ContextListenerInterface {
+
+	private static final int FALSE = 0;
+	private static final int TRUE = 1;
+	private static final int UNKNOWN = 2;
+
+	private static final int F_VALUE = 0;
+	private static final int F_TIMESTAMP = 1;
+	private static final int F_SOURCE = 2;
+	private static final int F_PROPERTY = 3;
+
+	private static final int OP_EQ = 0;
+	private static final int OP_NE = 1;
+	private static final int OP_LT = 2;
+	private static final int OP_LE = 3;
+	private static final int OP_GT = 4;
+	private static final int OP_GE = 5;
+	private static final int OP_RE = 6;
+
+	private static abstract class Node {
+		public abstract boolean eval(ContextElement ce);
+
+		/**
+		 * @param source source or <em>null</em> if unknown
+		 * @param property property or <em>null</em> if unknown
+		 * @return TRUE, FALSE or UNKNOWN
+		 */
+		public int partial(String source, String property) {
+			return UNKNOWN;
+		}
+	}
+
+	private static final class Const extends Node {
+		private final boolean b;
+
+		public Const(boolean b) {
+			this.b = b;
+		}
+
+		public boolean eval(ContextElement ce) {
+			return b;
+		}
+
+		public int partial(String source, String property) {
+			return b ? TRUE : FALSE;
+		}
+	}
+
+	private static final class And extends Node {
+		private final Node [] nodes;
+
+		public And(Node [] nodes) {
+			this.nodes = nodes;
+		}
+
+		public boolean eval(ContextElement ce) {
+			for(Node n : nodes) {
+				if(!n.eval(ce))
+					return false;
+			}
+			return true;
+		}
+
+		public int partial(String source, String property) {
+			int r = TRUE;
+			for(Node n : nodes) {
+				int p = n.partial(source, property);
+				if(p == FALSE)
+					return FALSE;
+				if(p == UNKNOWN)
+					r = UNKNOWN;
+			}
+			return r;
+		}
+	}
+
+	private static final class Or extends Node {
+		private final Node [] nodes;
+
+		public Or(Node [] nodes) {
+			this.nodes = nodes;
+		}
+
+		public boolean eval(ContextElement ce) {
+			for(Node n : nodes) {
+				if(n.eval(ce))
+					return true;
+			}
+			return false;
+		}
+
+		public int partial(String source, String property) {
+			int r = FALSE;
+			for(Node n : nodes) {
+				int p = n.partial(source, property);
+				if(p == TRUE)
+					return TRUE;
+				if(p == UNKNOWN)
+					r = UNKNOWN;
+			}
+			return r;
+		}
+	}
+
+	private static final class Not extends Node {
+		private final Node node;
+
+		public Not(Node node) {
+			this.node = node;
+		}
+
+		public boolean eval(ContextElement ce) {
+			return !node.eval(ce);
+		}
+
+		public int partial(String source, String property) {
+			int p = node.partial(source, property);
+			return (p == UNKNOWN) ? UNKNOWN : (p == TRUE ? FALSE : TRUE);
+		}
+	}
+
+	private static final class Persistent extends Node {
+		public boolean eval(ContextElement ce) {
+			return ce.isPersistent();
+		}
+	}
+
+	private static final class HasTag extends Node {
+		private final String tag;
+
+		public HasTag(String tag) {
+			this.tag = tag;
+		}
+
+		public boolean eval(ContextElement ce) {
+			return ce.hasTypeTag(tag);
+		}
+	}
+
+	private static final class TagRegex extends Node {
+		private final Pattern pattern;
+
+		public TagRegex(Pattern pattern) {
+			this.pattern = pattern;
+		}
+
+		public boolean eval(ContextElement ce) {
+			for(String tag : ce.getTypeTags()) {
+				if(pattern.matcher(tag).matches())
+					return true;
+			}
+			return false;
+		}
+	}
+
+	private static String text(int field, ContextElement ce) {
+		switch(field) {
+		case F_VALUE: return ce.getValue();
+		case F_SOURCE: return ce.getSourceIdentifier();
+		case F_PROPERTY: return ce.getPropertyIdentifier();
+		}
+		return Long.toString(ce.getTimestamp());
+	}
+
+	private static boolean compare(int op, int c) {
+		switch(op) {
+		case OP_EQ: return c == 0;
+		case OP_NE: return c != 0;
+		case OP_LT: return c < 0;
+		case OP_LE: return c <= 0;
+		case OP_GT: return c > 0;
+		}
+		return c >= 0;
+	}
+
+	private static final class TextCompare extends Node {
+		private final int field;
+		private final int op;
+		private final String literal;
+
+		public TextCompare(int field, int op, String literal) {
+			this.field = field;
+			this.op = op;
+			this.literal = literal;
+		}
+
+		public boolean eval(ContextElement ce) {
+			return compare(op, text(field, ce).compareTo(literal));
+		}
+
+		public int partial(String source, String property) {
+			String s = (field == F_SOURCE) ? source : (field == F_PROPERTY ? property : null);
+			if(s == null)
+				return UNKNOWN;
+			return compare(op, s.compareTo(literal)) ? TRUE : FALSE;
+		}
+	}
+
+	private static final class Regex extends Node {
+		private final int field;
+		private final Pattern pattern;
+
+		public Regex(int field, Pattern pattern) {
+			this.field = field;
+			this.pattern = pattern;
+		}
+
+		public boolean eval(ContextElement ce) {
+			return pattern.matcher(text(field, ce)).matches();
+		}
+
+		public int partial(String source, String property) {
+			String s = (field == F_SOURCE) ? source : (field == F_PROPERTY ? property : null);
+			if(s == null)
+				return UNKNOWN;
+			return pattern.matcher(s).matches() ? TRUE : FALSE;
+		}
+	}
+
+	private static final class NumberCompare extends Node {
+		private final int field;
+		private final int op;
+		private final double literal;
+
+		public NumberCompare(int field, int op, double literal) {
+			this.field = field;
+			this.op = op;
+			this.literal = literal;
+		}
+
+		public boolean eval(ContextElement ce) {
+			double d;
+			if(field == F_TIMESTAMP) {
+				d = ce.getTimestamp();
+			} else {
+				try {
+					d = Double.parseDouble(text(field, ce));
+				} catch(NumberFormatException nfe) {
+					return false;
+				}
+				if(Double.isNaN(d))
+					return false;
+			}
+			return compare(op, Double.compare(d, literal));
+		}
+
+		public int partial(String source, String property) {
+			String s = (field == F_SOURCE) ? source : (field == F_PROPERTY ? property : null);
+			if(s == null)
+				return UNKNOWN;
+			try {
+				return compare(op, Double.compare(Double.parseDouble(s), literal)) ? TRUE : FALSE;
+			} catch(NumberFormatException nfe) {
+				return FALSE;
+			}
+		}
+	}
+
+	private final String expression;
+	private final Node root;
+
+	private NewElementPolicy newSourcePolicy = NewElementPolicy.Always;
+	private NewElementPolicy newPropertyPolicy = NewElementPolicy.Always;
+
+	/**
+	 * @param expression filter expression
+	 * @throws ParseException if the expression is malformed; the error
+	 * offset is the position in the expression
+	 */
+	public ContextListenerFilter(String expression) throws ParseException {
+		this.expression = expression;
+		Parser p = new Parser(expression);
+		this.root = p.parseExpression();
+		if(p.peek() != null)
+			throw p.error("Unexpected " + p.peek());
+	}
+
+	public String getExpression() {
+		return expression;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	@Override
+	public boolean matches(ContextElement ce) {
+		return root.eval(ce);
+	}
+
+	@Override
+	public boolean matchesSource(String source) {
+		return root.partial(source, null) != FALSE;
+	}
+
+	@Override
+	public boolean matchesSourceProperty(String source, String property) {
+		return root.partial(source, property) != FALSE;
+	}
+
+	@Override
+	public boolean notifyNewSource(String source) {
+		if(newSourcePolicy == NewElementPolicy.Always)
+			return true;
+		if(newSourcePolicy == NewElementPolicy.Never)
+			return false;
+		return matchesSource(source);
+	}
+
+	@Override
+	public boolean notifyNewProperty(String source, String property) {
+		if(newPropertyPolicy == NewElementPolicy.Always)
+			return true;
+		if(newPropertyPolicy == NewElementPolicy.Never)
+			return false;
+		return matchesSourceProperty(source, property);
+	}
+
+	@Override
+	public NewElementPolicy getNewSourcePolicy() {
+		return newSourcePolicy;
+	}
+
+	@Override
+	public NewElementPolicy getNewPropertyPolicy() {
+		return newPropertyPolicy;
+	}
+
+	@Override
+	public void setNewSourcePolicy(NewElementPolicy nep) {
+		newSourcePolicy = (nep==null)?NewElementPolicy.Always:nep;
+	}
+
+	@Override
+	public void setNewPropertyPolicy(NewElementPolicy nep) {
+		newPropertyPolicy = (nep==null)?NewElementPolicy.Always:nep;
+	}
+
+	/**
+	 * recursive descent parser; tokens are kept with their offsets
+	 */
+	private static final class Parser {
+		private static final String STRING = "\"";
+
+		private final String text;
+		private final List<String> tokens = new ArrayList<String>();
+		private final List<String> kinds = new ArrayList<String>();
+		private final List<Integer> offsets = new ArrayList<Integer>();
+		private int pos = 0;
+
+		public Parser(String text) throws ParseException {
+			this.text = text;
+			tokenize();
+		}
+
+		public ParseException error(String msg) {
+			int offs = (pos < offsets.size()) ? offsets.get(pos) : text.length();
+			return new ParseException(msg + " at " + offs + " in \"" + text + "\"", offs);
+		}
+
+		private void tokenize() throws ParseException {
+			int i = 0;
+			int n = text.length();
+			while(i < n) {
+				char c = text.charAt(i);
+				if(Character.isWhitespace(c)) {
+					i++;
+					continue;
+				}
+				int start = i;
+				if(c == '"' || c == '\'') {
+					StringBuilder sb = new StringBuilder();
+					i++;
+					while(i < n && text.charAt(i) != c) {
+						if(text.charAt(i) == '\\' && i + 1 < n)
+							i++;
+						sb.append(text.charAt(i++));
+					}
+					if(i >= n)
+						throw new ParseException("Unterminated string at " + start + " in \"" + text + "\"", start);
+					i++;
+					add(sb.toString(), STRING, start);
+				} else if("()~".indexOf(c) >= 0) {
+					add(String.valueOf(c), null, start);
+					i++;
+				} else if("=!<>&|".indexOf(c) >= 0) {
+					i++;
+					if(i < n && (text.charAt(i) == '=' || (c == '&' && text.charAt(i) == '&') || (c == '|' && text.charAt(i) == '|')))
+						i++;
+					String op = text.substring(start, i);
+					if(op.equals("&") || op.equals("|"))
+						throw new ParseException("Unknown operator " + op + " at " + start + " in \"" + text + "\"", start);
+					add(op, null, start);
+				} else {
+					while(i < n && !Character.isWhitespace(text.charAt(i)) && "()~=!<>&|\"'".indexOf(text.charAt(i)) < 0)
+						i++;
+					add(text.substring(start, i), null, start);
+				}
+			}
+		}
+
+		private void add(String token, String kind, int offs) {
+			tokens.add(token);
+			kinds.add(kind);
+			offsets.add(offs);
+		}
+
+		public String peek() {
+			return (pos < tokens.size()) ? tokens.get(pos) : null;
+		}
+
+		private boolean peekWord(String... words) {
+			if(pos >= tokens.size() || kinds.get(pos) == STRING)
+				return false;
+			for(String w : words) {
+				if(w.equalsIgnoreCase(tokens.get(pos)))
+					return true;
+			}
+			return false;
+		}
+
+		public Node parseExpression() throws ParseException {
+			List<Node> nodes = new ArrayList<Node>();
+			nodes.add(parseAnd());
+			while(peekWord("or", "||")) {
+				pos++;
+				nodes.add(parseAnd());
+			}
+			return (nodes.size() == 1) ? nodes.get(0) : new Or(nodes.toArray(new Node [nodes.size()]));
+		}
+
+		private Node parseAnd() throws ParseException {
+			List<Node> nodes = new ArrayList<Node>();
+			nodes.add(parseNot());
+			while(peekWord("and", "&&")) {
+				pos++;
+				nodes.add(parseNot());
+			}
+			return (nodes.size() == 1) ? nodes.get(0) : new And(nodes.toArray(new Node [nodes.size()]));
+		}
+
+		private Node parseNot() throws ParseException {
+			if(peekWord("not", "!")) {
+				pos++;
+				return new Not(parseNot());
+			}
+			return parsePrimary();
+		}
+
+		private Node parsePrimary() throws ParseException {
+			if(peek() == null)
+				throw error("Unexpected end");
+			if(peekWord("(")) {
+				pos++;
+				Node n = parseExpression();
+				if(!peekWord(")"))
+					throw error("Missing )");
+				pos++;
+				return n;
+			}
+			if(peekWord("true")) {
+				pos++;
+				return new Const(true);
+			}
+			if(peekWord("false")) {
+				pos++;
+				return new Const(false);
+			}
+			if(peekWord("persistent")) {
+				pos++;
+				return new Persistent();
+			}
+			if(peekWord("tag")) {
+				pos++;
+				return parseTag();
+			}
+			int field;
+			if(peekWord("value"))
+				field = F_VALUE;
+			else if(peekWord("timestamp"))
+				field = F_TIMESTAMP;
+			else if(peekWord("source"))
+				field = F_SOURCE;
+			else if(peekWord("property"))
+				field = F_PROPERTY;
+			else
+				throw error("Unexpected " + peek());
+			pos++;
+
+			int op = parseOperator();
+			boolean quoted = (pos < tokens.size() && kinds.get(pos) == STRING);
+			String literal = parseLiteral();
+			if(op == OP_RE)
+				return new Regex(field, compile(literal));
+			if(!quoted || field == F_TIMESTAMP) {
+				try {
+					return new NumberCompare(field, op, Double.parseDouble(literal));
+				} catch(NumberFormatException nfe) {
+					if(field == F_TIMESTAMP) {
+						pos--;
+						throw error("Timestamp needs a number");
+					}
+				}
+			}
+			return new TextCompare(field, op, literal);
+		}
+
+		private Node parseTag() throws ParseException {
+			int op = OP_EQ;
+			if(peekWord("=", "==", "!=", "~"))
+				op = parseOperator();
+			String literal = parseLiteral();
+			switch(op) {
+			case OP_EQ: return new HasTag(literal);
+			case OP_NE: return new Not(new HasTag(literal));
+			case OP_RE: return new TagRegex(compile(literal));
+			}
+			throw error("Tags only support =, != and ~");
+		}
+
+		private int parseOperator() throws ParseException {
+			String t = peek();
+			if(t == null || kinds.get(pos) == STRING)
+				throw error("Missing operator");
+			int op;
+			if(t.equals("=") || t.equals("=="))
+				op = OP_EQ;
+			else if(t.equals("!="))
+				op = OP_NE;
+			else if(t.equals("<"))
+				op = OP_LT;
+			else if(t.equals("<="))
+				op = OP_LE;
+			else if(t.equals(">"))
+				op = OP_GT;
+			else if(t.equals(">="))
+				op = OP_GE;
+			else if(t.equals("~"))
+				op = OP_RE;
+			else
+				throw error("Unknown operator " + t);
+			pos++;
+			return op;
+		}
+
+		private String parseLiteral() throws ParseException {
+			String t = peek();
+			if(t == null)
+				throw error("Missing literal");
+			if(kinds.get(pos) != STRING && (t.length() == 0 || "()~=!<>&|".indexOf(t.charAt(0)) >= 0))
+				throw error("Unexpected " + t);
+			pos++;
+			return t;
+		}
+
+		private Pattern compile(String regex) throws ParseException {
+			try {
+				return Pattern.compile(regex);
+			} catch(PatternSyntaxException pse) {
+				pos--;
+				throw error("Invalid regex (" + pse.getDescription() + ")");
+			}
+		}
+	}
+}
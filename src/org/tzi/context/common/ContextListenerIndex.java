@@ -0,0 +1,417 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Routing index for context listeners.</br>
+ * Listeners using {@link ContextListenerProperties} are stored in buckets
+ * source -&gt; property -&gt; tag (including the {@link Context#ALL_SOURCES},
+ * {@link Context#ALL_PROPERTIES} and {@link Context#ALL_TAGS} wildcards) so
+ * that only listeners that can be interested in an element are looked at.
+ * All other listeners (no properties or other implementations of
+ * {@link ContextListenerInterface}) are always candidates.</br>
+ * Candidates are a superset of the matching listeners; the final decision is
+ * still made by {@link ContextListenerInterface#matches(ContextElement)}.</br>
+ * Lookups are lock free, modifications are synchronized on the index.
+ * The buckets reflect the subscription at the time the listener was added
+ * or {@link #update(ContextListener) updated}; a listener whose
+ * properties {@link ContextListenerProperties#invalidate() changed} since
+ * is stale and a candidate for every element until it is updated.
+ */
+public class ContextListenerIndex {
+
+	private class Entry implements ContextListenerProperties.Watcher {
+		private ContextListener cl;
+		private long ordinal;
+		/**
+		 * buckets this entry was put in; needed for removal as the properties
+		 * may have changed since indexing
+		 */
+		private Set<List<String>> keys = new LinkedHashSet<List<String>>();
+		/**
+		 * properties the buckets were taken from
+		 */
+		private ContextListenerProperties watched = null;
+		private boolean stale = false;
+
+		public Entry(ContextListener cl, long ordinal) {
+			this.cl = cl;
+			this.ordinal = ordinal;
+		}
+
+		public void subscriptionChanged(ContextListenerProperties clp) {
+			markStale(this);
+		}
+	}
+
+	private static final Entry [] noEntries = new Entry [0];
+
+	private static final Comparator<Entry> ordinalOrder = new Comparator<Entry>() {
+		public int compare(Entry e1, Entry e2) {
+			return e1.ordinal < e2.ordinal ? -1 : (e1.ordinal == e2.ordinal ? 0 : 1);
+		}
+	};
+
+	private long nextOrdinal = 0;
+
+	private Map<ContextListener, Entry> entries = new IdentityHashMap<ContextListener, Entry>();
+
+	/**
+	 * listeners that can not be indexed
+	 */
+	private volatile Entry [] unindexed = noEntries;
+
+	/**
+	 * listeners whose properties changed since they were indexed
+	 */
+	private volatile Entry [] stale = noEntries;
+
+	/**
+	 * source -&gt; property -&gt; tag -&gt; listeners
+	 */
+	private Map<String, Map<String, Map<String, Entry []>>> buckets =
+		new ConcurrentHashMap<String, Map<String, Map<String, Entry []>>>();
+
+	private static Entry [] with(Entry [] a, Entry e) {
+		Entry [] n = Arrays.copyOf(a, a.length + 1);
+		n[a.length] = e;
+		return n;
+	}
+
+	private static Entry [] without(Entry [] a, Entry e) {
+		for(int i=0; i<a.length; i++) {
+			if(a[i] == e) {
+				if(a.length == 1)
+					return noEntries;
+				Entry [] n = new Entry [a.length - 1];
+				System.arraycopy(a, 0, n, 0, i);
+				System.arraycopy(a, i+1, n, i, a.length - i - 1);
+				return n;
+			}
+		}
+		return a;
+	}
+
+	private void addToBucket(Entry e, String source, String property, String tag) {
+		Map<String, Map<String, Entry []>> propMap = buckets.get(source);
+		if(propMap == null) {
+			propMap = new ConcurrentHashMap<String, Map<String, Entry []>>();
+			buckets.put(source, propMap);
+		}
+		Map<String, Entry []> tagMap = propMap.get(property);
+		if(tagMap == null) {
+			tagMap = new ConcurrentHashMap<String, Entry []>();
+			propMap.put(property, tagMap);
+		}
+		if(!e.keys.add(Arrays.asList(source, property, tag)))
+			return;
+		Entry [] b = tagMap.get(tag);
+		tagMap.put(tag, with(b == null ? noEntries : b, e));
+	}
+
+	private void removeFromBucket(Entry e, String source, String property, String tag) {
+		Map<String, Map<String, Entry []>> propMap = buckets.get(source);
+		if(propMap == null)
+			return;
+		Map<String, Entry []> tagMap = propMap.get(property);
+		if(tagMap == null)
+			return;
+		Entry [] b = tagMap.get(tag);
+		if(b == null)
+			return;
+		b = without(b, e);
+		if(b.length > 0) {
+			tagMap.put(tag, b);
+			return;
+		}
+		tagMap.remove(tag);
+		if(tagMap.isEmpty()) {
+			propMap.remove(property);
+			if(propMap.isEmpty())
+				buckets.remove(source);
+		}
+	}
+
+	public synchronized void add(ContextListener cl) {
+		if(entries.containsKey(cl))
+			return;
+
+		Entry e = new Entry(cl, nextOrdinal++);
+		entries.put(cl, e);
+		index(e);
+	}
+
+	private void index(Entry e) {
+		ContextListenerInterface cli = e.cl.getProperties();
+		if(!(cli instanceof ContextListenerProperties)) {
+			unindexed = with(unindexed, e);
+			return;
+		}
+
+		ContextListenerProperties clp = (ContextListenerProperties)cli;
+		e.watched = clp;
+		clp.addWatcher(e);
+		for(Map.Entry<String, Map<String, Set<String>>> se : clp.sourcePropTagMap.entrySet()) {
+			if(se.getValue() == null)
+				continue;
+			for(Map.Entry<String, Set<String>> pe : se.getValue().entrySet()) {
+				if(pe.getValue() == null)
+					continue;
+				if(pe.getValue().contains(Context.ALL_TAGS)) {
+					addToBucket(e, se.getKey(), pe.getKey(), Context.ALL_TAGS);
+					continue;
+				}
+				for(String tag : pe.getValue()) {
+					addToBucket(e, se.getKey(), pe.getKey(), tag);
+				}
+			}
+		}
+		// patterns can match any name, only their tags narrow them down
+		for(Map<String, Set<String>> propMap : clp.patternMap.values()) {
+			if(propMap == null)
+				continue;
+			for(Set<String> tags : propMap.values()) {
+				if(tags == null)
+					continue;
+				if(tags.contains(Context.ALL_TAGS)) {
+					addToBucket(e, Context.ALL_SOURCES, Context.ALL_PROPERTIES, Context.ALL_TAGS);
+					continue;
+				}
+				for(String tag : tags) {
+					addToBucket(e, Context.ALL_SOURCES, Context.ALL_PROPERTIES, tag);
+				}
+			}
+		}
+	}
+
+	private void unindex(Entry e) {
+		unindexed = without(unindexed, e);
+		if(e.stale) {
+			stale = without(stale, e);
+			e.stale = false;
+		}
+		if(e.watched != null) {
+			e.watched.removeWatcher(e);
+			e.watched = null;
+		}
+		for(List<String> k : e.keys) {
+			removeFromBucket(e, k.get(0), k.get(1), k.get(2));
+		}
+		e.keys.clear();
+	}
+
+	private synchronized void markStale(Entry e) {
+		if(e.stale || entries.get(e.cl) != e)
+			return;
+		e.stale = true;
+		stale = with(stale, e);
+	}
+
+	/**
+	 * @return <em>true</em> if the properties of a listener changed since
+	 * it was indexed
+	 */
+	public synchronized boolean isStale(ContextListener cl) {
+		Entry e = entries.get(cl);
+		return e != null && e.stale;
+	}
+
+	public synchronized void remove(ContextListener cl) {
+		Entry e = entries.remove(cl);
+		if(e != null)
+			unindex(e);
+	}
+
+	/**
+	 * @return <em>true</em> if the subscription or its patterns need the
+	 * bucket of a triple
+	 */
+	private static boolean needs(ContextListenerProperties clp, String source, String property, String tag) {
+		Map<String, Set<String>> propMap = clp.sourcePropTagMap.get(source);
+		Set<String> tags = (propMap == null) ? null : propMap.get(property);
+		if(tags != null && tags.contains(tag))
+			return true;
+		if(!Context.ALL_SOURCES.equals(source) || !Context.ALL_PROPERTIES.equals(property))
+			return false;
+		for(Map<String, Set<String>> patProps : clp.patternMap.values()) {
+			if(patProps == null)
+				continue;
+			for(Set<String> patTags : patProps.values()) {
+				if(patTags != null && patTags.contains(tag))
+					return true;
+			}
+		}
+		return false;
+	}
+
+	private void drop(Entry e, List<String> key) {
+		if(e.keys.remove(key))
+			removeFromBucket(e, key.get(0), key.get(1), key.get(2));
+	}
+
+	/**
+	 * Indexes the triples added by a subscription delta and drops the
+	 * buckets of removed triples and of entries a new wildcard replaced.
+	 * The listener is no longer stale, so this must only be used if the
+	 * delta is the only change since it was indexed.
+	 * @param cl listener the delta was applied to
+	 * @param delta the applied delta
+	 */
+	public synchronized void applyDelta(ContextListener cl, SubscriptionDelta delta) {
+		Entry e = entries.get(cl);
+		if(e == null || e.watched != cl.getProperties()) {
+			update(cl);
+			return;
+		}
+		ContextListenerProperties clp = e.watched;
+		for(SubscriptionDelta.Triple t : delta.getTriples()) {
+			String source = t.getSource();
+			String property = t.getProperty();
+			if(t.isAdd()) {
+				if(Context.ALL_TAGS.equals(t.getTag())) {
+					// the wildcard replaced the other tags of the entry, or all
+					// entries of the source for the property wildcard
+					boolean allProps = Context.ALL_PROPERTIES.equals(property);
+					boolean allSources = allProps && Context.ALL_SOURCES.equals(source);
+					for(List<String> k : new ArrayList<List<String>>(e.keys)) {
+						if((allSources || source.equals(k.get(0))) && (allProps || property.equals(k.get(1))) && !needs(clp, k.get(0), k.get(1), k.get(2)))
+							drop(e, k);
+					}
+				}
+				// adds covered by a wildcard leave the subscription as it is
+				if(needs(clp, source, property, t.getTag()))
+					addToBucket(e, source, property, t.getTag());
+				continue;
+			}
+			// a later triple may have added it again
+			if(needs(clp, source, property, t.getTag()))
+				continue;
+			drop(e, Arrays.asList(source, property, t.getTag()));
+			Map<String, Set<String>> propMap = clp.sourcePropTagMap.get(source);
+			Set<String> tags = (propMap == null) ? null : propMap.get(property);
+			if(tags != null && Context.ALL_TAGS.equals(t.getTag())) {
+				// the remaining tags were covered by the wildcard
+				for(String tag : tags)
+					addToBucket(e, source, property, tag);
+			}
+		}
+		if(e.stale) {
+			stale = without(stale, e);
+			e.stale = false;
+		}
+	}
+
+	/**
+	 * Re-indexes a listener after its subscription has changed. The
+	 * listener keeps its position in notification order.
+	 * @param cl listener to update
+	 */
+	public synchronized void update(ContextListener cl) {
+		Entry e = entries.get(cl);
+		if(e == null)
+			return;
+		unindex(e);
+		index(e);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private static void addTagBuckets(Map<String, Entry []> tagMap, Set<String> tags, List<Entry []> to) {
+		if(tagMap == null)
+			return;
+		Entry [] b = tagMap.get(Context.ALL_TAGS);
+		if(b != null) {
+			to.add(b);
+			if(tagMap.size() == 1)
+				return;
+		}
+		for(String tag : tags) {
+			b = tagMap.get(tag);
+			if(b != null)
+				to.add(b);
+		}
+	}
+
+	private static void addPropertyBuckets(Map<String, Map<String, Entry []>> propMap, ContextElement ce, List<Entry []> to) {
+		if(propMap == null)
+			return;
+		addTagBuckets(propMap.get(ce.getPropertyIdentifier()), ce.getTypeTags(), to);
+		addTagBuckets(propMap.get(Context.ALL_PROPERTIES), ce.getTypeTags(), to);
+	}
+
+	/**
+	 * Returns the listeners that may be interested in a context element in
+	 * the order they were added. Callers still need to check
+	 * {@link ContextListenerInterface#matches(ContextElement)} for listeners
+	 * that have properties.
+	 * @param ce element to route
+	 * @return candidate listeners
+	 */
+	public List<ContextListener> getCandidates(ContextElement ce) {
+		List<Entry []> found = new ArrayList<Entry []>(8);
+		found.add(unindexed);
+		Entry [] s = stale;
+		if(s.length > 0)
+			found.add(s);
+		addPropertyBuckets(buckets.get(ce.getSourceIdentifier()), ce, found);
+		if(!Context.ALL_SOURCES.equals(ce.getSourceIdentifier()))
+			addPropertyBuckets(buckets.get(Context.ALL_SOURCES), ce, found);
+
+		if(found.size() == 1) {
+			Entry [] u = found.get(0);
+			List<ContextListener> r = new ArrayList<ContextListener>(u.length);
+			for(Entry e : u)
+				r.add(e.cl);
+			return r;
+		}
+
+		int total = 0;
+		for(Entry [] b : found)
+			total += b.length;
+
+		Entry [] all = new Entry [total];
+		int n = 0;
+		for(Entry [] b : found) {
+			System.arraycopy(b, 0, all, n, b.length);
+			n += b.length;
+		}
+
+		// restore notification order, a listener may be in several buckets
+		Arrays.sort(all, ordinalOrder);
+
+		List<ContextListener> r = new ArrayList<ContextListener>(n);
+		Entry last = null;
+		for(Entry e : all) {
+			if(e != last)
+				r.add(e.cl);
+			last = e;
+		}
+
+		return r;
+	}
+}
@@ -0,0 +1,246 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable, hash based form of the source/property/tag map of
+ * {@link ContextListenerProperties}.</br>
+ * Wildcards are resolved once when compiling: every source and property
+ * entry knows whether it accepts all tags, and the fallback entries for
+ * {@link Context#ALL_SOURCES} and {@link Context#ALL_PROPERTIES} are held
+ * in fields. Matching an element costs two hash lookups plus one per tag
+ * in the worst case.</br>
+ * Pattern entries are compiled into one {@link GlobAutomaton} for all
+ * source patterns and one for all property patterns, so they cost a pass
+ * over the source and property name regardless of their number.</br>
+ * The matcher does not follow later changes of the maps it was compiled
+ * from; {@link #withSources(Map, Collection)} derives a matcher for a
+ * change of a few sources.
+ * @see ContextListenerProperties#compile()
+ */
+public final class ContextListenerMatcher {
+
+	private static final class TagEntry {
+		private final boolean allTags;
+		private final Set<String> tags;
+
+		/**
+		 * @param tags tags; <em>null</em> for none
+		 */
+		public TagEntry(Set<String> tags) {
+			this.allTags = tags != null && tags.contains(Context.ALL_TAGS);
+			this.tags = allTags ? null : (tags == null) ? Collections.<String>emptySet() : new HashSet<String>(tags);
+		}
+
+		public boolean matches(Set<String> ceTags) {
+			if(allTags)
+				return true;
+			if(tags.isEmpty())
+				return false;
+			for(String tag : ceTags) {
+				if(tags.contains(tag))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Properties without tags (<em>null</em>) fall back to the property
+	 * wildcard like in the map, but still count as present.
+	 */
+	private static final class SourceEntry {
+		private final Map<String, TagEntry> props = new HashMap<String, TagEntry>();
+		private final TagEntry allProps;
+		private final boolean hasAllProps;
+
+		public SourceEntry(Map<String, Set<String>> propMap) {
+			TagEntry all = null;
+			boolean hasAll = false;
+			for(Map.Entry<String, Set<String>> pe : propMap.entrySet()) {
+				TagEntry te = (pe.getValue() == null) ? null : new TagEntry(pe.getValue());
+				if(Context.ALL_PROPERTIES.equals(pe.getKey())) {
+					all = te;
+					hasAll = true;
+				} else {
+					props.put(pe.getKey(), te);
+				}
+			}
+			allProps = all;
+			hasAllProps = hasAll;
+		}
+
+		public boolean has(String property) {
+			return hasAllProps || props.containsKey(property);
+		}
+
+		public TagEntry get(String property) {
+			TagEntry te = props.get(property);
+			return (te==null) ? allProps : te;
+		}
+	}
+
+	/**
+	 * sources without a property map (<em>null</em>) fall back to the
+	 * source wildcard like in the map
+	 */
+	private final Map<String, SourceEntry> sources;
+	private SourceEntry allSources;
+	private boolean hasAllSources;
+
+	/**
+	 * pattern entry i consists of source pattern i, property pattern i and patternTags[i]
+	 */
+	private final GlobAutomaton sourcePatterns;
+	private final GlobAutomaton propertyPatterns;
+	private final TagEntry [] patternTags;
+
+	/**
+	 * @param sourcePropTagMap map as in {@link ContextListenerProperties#sourcePropTagMap}
+	 */
+	public ContextListenerMatcher(Map<String, Map<String, Set<String>>> sourcePropTagMap) {
+		this(sourcePropTagMap, Collections.<String, Map<String, Set<String>>>emptyMap());
+	}
+
+	/**
+	 * @param sourcePropTagMap map as in {@link ContextListenerProperties#sourcePropTagMap}
+	 * @param patternMap map as in {@link ContextListenerProperties#patternMap}
+	 */
+	public ContextListenerMatcher(Map<String, Map<String, Set<String>>> sourcePropTagMap, Map<String, Map<String, Set<String>>> patternMap) {
+		sources = new HashMap<String, SourceEntry>();
+		for(Map.Entry<String, Map<String, Set<String>>> se : sourcePropTagMap.entrySet())
+			putSource(se.getKey(), se.getValue());
+
+		if(patternMap.isEmpty()) {
+			sourcePatterns = null;
+			propertyPatterns = null;
+			patternTags = null;
+			return;
+		}
+
+		List<String> sps = new ArrayList<String>();
+		List<String> pps = new ArrayList<String>();
+		List<TagEntry> tes = new ArrayList<TagEntry>();
+		for(Map.Entry<String, Map<String, Set<String>>> se : patternMap.entrySet()) {
+			if(se.getValue() == null)
+				continue;
+			for(Map.Entry<String, Set<String>> pe : se.getValue().entrySet()) {
+				sps.add(se.getKey());
+				pps.add(pe.getKey());
+				tes.add(new TagEntry(pe.getValue()));
+			}
+		}
+		sourcePatterns = new GlobAutomaton(sps);
+		propertyPatterns = new GlobAutomaton(pps);
+		patternTags = tes.toArray(new TagEntry [tes.size()]);
+	}
+
+	private ContextListenerMatcher(ContextListenerMatcher m) {
+		sources = new HashMap<String, SourceEntry>(m.sources);
+		allSources = m.allSources;
+		hasAllSources = m.hasAllSources;
+		sourcePatterns = m.sourcePatterns;
+		propertyPatterns = m.propertyPatterns;
+		patternTags = m.patternTags;
+	}
+
+	private void putSource(String source, Map<String, Set<String>> propMap) {
+		SourceEntry entry = (propMap == null) ? null : new SourceEntry(propMap);
+		if(Context.ALL_SOURCES.equals(source)) {
+			allSources = entry;
+			hasAllSources = true;
+		} else {
+			sources.put(source, entry);
+		}
+	}
+
+	/**
+	 * Derives a matcher for maps that only changed in some sources. The
+	 * cost is a copy of the source table plus compiling those sources.
+	 * @param sourcePropTagMap current map
+	 * @param changed sources whose entries may have changed
+	 * @return matcher for the current map and the patterns of this one
+	 */
+	public ContextListenerMatcher withSources(Map<String, Map<String, Set<String>>> sourcePropTagMap, Collection<String> changed) {
+		ContextListenerMatcher m = new ContextListenerMatcher(this);
+		for(String source : changed) {
+			if(sourcePropTagMap.containsKey(source)) {
+				m.putSource(source, sourcePropTagMap.get(source));
+			} else if(Context.ALL_SOURCES.equals(source)) {
+				m.allSources = null;
+				m.hasAllSources = false;
+			} else {
+				m.sources.remove(source);
+			}
+		}
+		return m;
+	}
+
+	private SourceEntry getSource(String source) {
+		SourceEntry se = sources.get(source);
+		return (se==null) ? allSources : se;
+	}
+
+	public boolean hasPatterns() {
+		return patternTags != null;
+	}
+
+	public boolean matchesSource(String source) {
+		if(hasAllSources || sources.containsKey(source))
+			return true;
+		return patternTags != null && !sourcePatterns.match(source).isEmpty();
+	}
+
+	public boolean matchesSourceProperty(String source, String property) {
+		SourceEntry se = getSource(source);
+		if(se != null && se.has(property))
+			return true;
+		if(patternTags == null)
+			return false;
+		BitSet sm = sourcePatterns.match(source);
+		return !sm.isEmpty() && sm.intersects(propertyPatterns.match(property));
+	}
+
+	public boolean matches(ContextElement ce) {
+		SourceEntry se = getSource(ce.getSourceIdentifier());
+		if(se!=null) {
+			TagEntry te = se.get(ce.getPropertyIdentifier());
+			if(te != null && te.matches(ce.getTypeTags()))
+				return true;
+		}
+		if(patternTags == null)
+			return false;
+		BitSet sm = sourcePatterns.match(ce.getSourceIdentifier());
+		if(sm.isEmpty())
+			return false;
+		BitSet pm = propertyPatterns.match(ce.getPropertyIdentifier());
+		for(int i = sm.nextSetBit(0); i >= 0; i = sm.nextSetBit(i + 1)) {
+			if(pm.get(i) && patternTags[i].matches(ce.getTypeTags()))
+				return true;
+		}
+		return false;
+	}
+}
@@ -15,22 +15,275 @@
 */
 package org.tzi.context.common;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class ContextListenerProperties implements ContextListenerInterface {
 	
+	private final Runnable changed = new Runnable() {
+		public void run() {
+			invalidate();
+		}
+	};
+	
 	public NewElementPolicy newSourcePolicy = NewElementPolicy.Always;
 	public NewElementPolicy newPropertyPolicy = NewElementPolicy.Always;
 	
-	public Map<String, Map<String, Set<String>>> sourcePropTagMap = new TreeMap<String, Map<String,Set<String>>>();
+	/**
+	 * Sources mapped to properties mapped to tags; any of them may be the
+	 * matching wildcard of {@link Context}. Direct changes, also of the
+	 * maps and sets in it, are noticed; values are copied when put, so
+	 * change them through this map afterwards.
+	 */
+	public final Map<String, Map<String, Set<String>>> sourcePropTagMap = WatchedMap.subscriptionMap(changed);
+	
+	/**
+	 * Glob patterns for sources mapped to glob patterns for properties
+	 * mapped to tags, e.g. <em>room42.*</em> -&gt; <em>*</em> -&gt; {@link Context#ALL_TAGS}.
+	 * Patterns support <em>*</em> and <em>?</em> and are always matched in
+	 * compiled form. Changes are noticed as for {@link #sourcePropTagMap}.
+	 * @see #addPattern(String, String, String...)
+	 */
+	public final Map<String, Map<String, Set<String>>> patternMap = WatchedMap.subscriptionMap(changed);
+	
+	private final ConcurrentSkipListMap<String, Map<String, Deadband>> deadbands = new ConcurrentSkipListMap<String, Map<String,Deadband>>();
+	
+	/**
+	 * Deadbands for sources mapped to properties, both may be wildcards.
+	 * Matching elements are only delivered if their value passes the
+	 * deadband against the last value delivered for the same source and
+	 * property. Read-only, changed by {@link #setDeadband(String, String, Deadband)}.
+	 */
+	public final Map<String, Map<String, Deadband>> deadbandMap = Collections.unmodifiableMap(deadbands);
+	
+	private final ConcurrentSkipListMap<String, Map<String, Double>> rates = new ConcurrentSkipListMap<String, Map<String,Double>>();
+	
+	/**
+	 * Maximum number of deliveries per second for sources mapped to
+	 * properties, both may be wildcards. Only honored by listeners wrapped
+	 * in a {@link ThrottledContextListener}. Read-only, changed by
+	 * {@link #setMaxRate(String, String, double)}.
+	 */
+	public final Map<String, Map<String, Double>> rateMap = Collections.unmodifiableMap(rates);
+	
+	/**
+	 * Compiled form of sourcePropTagMap; <em>null</em> if not compiled or changed
+	 */
+	private volatile ContextListenerMatcher compiled = null;
+	
+	/**
+	 * number of changes; a matcher is only kept if none happened while compiling
+	 */
+	private volatile int modCount = 0;
+	
+	/**
+	 * Told about every change of the subscription, e.g. by a routing index
+	 */
+	interface Watcher {
+		void subscriptionChanged(ContextListenerProperties clp);
+	}
+	
+	private final CopyOnWriteArrayList<Watcher> watchers = new CopyOnWriteArrayList<Watcher>();
+	
+	void addWatcher(Watcher w) {
+		watchers.addIfAbsent(w);
+	}
+	
+	void removeWatcher(Watcher w) {
+		watchers.remove(w);
+	}
+	
+	/**
+	 * Compiles the current source/property/tag map into an immutable matcher
+	 * that is used for matching until the maps change.
+	 * @return the compiled matcher
+	 */
+	public ContextListenerMatcher compile() {
+		ContextListenerMatcher m = compiled;
+		if(m==null) {
+			int mc = modCount;
+			m = new ContextListenerMatcher(sourcePropTagMap, patternMap);
+			if(mc == modCount)
+				compiled = m;
+		}
+		return m;
+	}
+	
+	/**
+	 * Applies a delta. A compiled matcher is patched for the sources the
+	 * delta touches instead of being compiled again.
+	 * @return <em>true</em> if the subscription changed
+	 */
+	boolean applyDelta(SubscriptionDelta delta) {
+		ContextListenerMatcher m = compiled;
+		if(!delta.applyTo(this))
+			return false;
+		if(m == null)
+			return true;
+		int mc = modCount;
+		Set<String> touched = new HashSet<String>();
+		for(SubscriptionDelta.Triple t : delta.getTriples()) {
+			if(t.isAdd() && Context.ALL_SOURCES.equals(t.getSource()) && Context.ALL_PROPERTIES.equals(t.getProperty()) && Context.ALL_TAGS.equals(t.getTag())) {
+				// removes all other sources
+				touched = null;
+				break;
+			}
+			touched.add(t.getSource());
+		}
+		m = (touched == null) ? new ContextListenerMatcher(sourcePropTagMap, patternMap) : m.withSources(sourcePropTagMap, touched);
+		if(mc == modCount)
+			compiled = m;
+		return true;
+	}
+	
+	/**
+	 * Drops the compiled matcher; matching uses the map until the next
+	 * {@link #compile()}. Contexts the owning listener is registered with
+	 * check it for every element until it is re-indexed. Called on every
+	 * change of the maps.
+	 */
+	public void invalidate() {
+		modCount++;
+		compiled = null;
+		for(Watcher w : watchers)
+			w.subscriptionChanged(this);
+	}
+	
+	public boolean isCompiled() {
+		return compiled != null;
+	}
+	
+	/**
+	 * Subscribes to all sources and properties matching the patterns
+	 * @param sourcePattern glob for source names, e.g. <em>room42.*</em>
+	 * @param propertyPattern glob for property names
+	 * @param tags tags to match; {@link Context#ALL_TAGS} or none for all
+	 */
+	public void addPattern(String sourcePattern, String propertyPattern, String...tags) {
+		Set<String> tagSet = Util.listToSet(tags);
+		if(tagSet.isEmpty() || tagSet.contains(Context.ALL_TAGS)) {
+			tagSet.clear();
+			tagSet.add(Context.ALL_TAGS);
+		}
+		Map<String, Set<String>> propMap = patternMap.get(sourcePattern);
+		if(propMap == null) {
+			patternMap.put(sourcePattern, new TreeMap<String, Set<String>>());
+			propMap = patternMap.get(sourcePattern);
+		}
+		Set<String> oldTags = propMap.get(propertyPattern);
+		if(oldTags == null || tagSet.contains(Context.ALL_TAGS)) {
+			propMap.put(propertyPattern, tagSet);
+		} else if(!oldTags.contains(Context.ALL_TAGS)) {
+			oldTags.addAll(tagSet);
+		}
+	}
+	
+	/**
+	 * Sets or removes an entry of a deadband or rate map. Inner maps are
+	 * replaced instead of changed, so lookups need no lock.
+	 */
+	private static <V> void setEntry(ConcurrentSkipListMap<String, Map<String, V>> map, String source, String property, V value) {
+		Map<String, V> old = map.get(source);
+		TreeMap<String, V> propMap = (old == null) ? new TreeMap<String, V>() : new TreeMap<String, V>(old);
+		if(value == null)
+			propMap.remove(property);
+		else
+			propMap.put(property, value);
+		if(propMap.isEmpty())
+			map.remove(source);
+		else
+			map.put(source, Collections.unmodifiableMap(propMap));
+	}
+	
+	/**
+	 * Sets the deadband for a source and property. The last delivered
+	 * values are kept by whoever delivers to the listener, per context.
+	 * @param source source or {@link Context#ALL_SOURCES}
+	 * @param property property or {@link Context#ALL_PROPERTIES}
+	 * @param deadband deadband or <em>null</em> to remove it
+	 */
+	public synchronized void setDeadband(String source, String property, Deadband deadband) {
+		setEntry(deadbands, source, property, deadband);
+	}
+	
+	/**
+	 * @return deadband that applies to source and property; <em>null</em> if none
+	 */
+	public Deadband getDeadband(String source, String property) {
+		if(deadbandMap.isEmpty())
+			return null;
+		Map<String, Deadband> propMap = deadbandMap.get(source);
+		if(propMap==null)
+			propMap = deadbandMap.get(Context.ALL_SOURCES);
+		if(propMap==null)
+			return null;
+		Deadband d = propMap.get(property);
+		return (d==null) ? propMap.get(Context.ALL_PROPERTIES) : d;
+	}
+	
+	/**
+	 * Limits the delivery rate for a source and property
+	 * @param source source or {@link Context#ALL_SOURCES}
+	 * @param property property or {@link Context#ALL_PROPERTIES}
+	 * @param perSecond maximum deliveries per second; 0 to remove the limit
+	 */
+	public synchronized void setMaxRate(String source, String property, double perSecond) {
+		if(perSecond < 0 || Double.isNaN(perSecond))
+			throw new IllegalArgumentException("rate must not be negative!");
+		setEntry(rates, source, property, (perSecond == 0) ? null : Double.valueOf(perSecond));
+	}
+	
+	/**
+	 * @return maximum deliveries per second for source and property; 0 if unlimited
+	 */
+	public double getMaxRate(String source, String property) {
+		if(rateMap.isEmpty())
+			return 0;
+		Map<String, Double> propMap = rateMap.get(source);
+		if(propMap==null)
+			propMap = rateMap.get(Context.ALL_SOURCES);
+		if(propMap==null)
+			return 0;
+		Double r = propMap.get(property);
+		if(r==null)
+			r = propMap.get(Context.ALL_PROPERTIES);
+		return (r==null) ? 0 : r;
+	}
+	
+	/**
+	 * @return minimum time in milliseconds between two deliveries for
+	 * source and property; 0 if unlimited
+	 */
+	public long getMinInterval(String source, String property) {
+		double r = getMaxRate(source, property);
+		return (r <= 0) ? 0 : (long)Math.ceil(1000.0 / r);
+	}
+	
+	/**
+	 * @return current matcher; compiled on demand if there are patterns
+	 */
+	private ContextListenerMatcher getMatcher() {
+		ContextListenerMatcher m = compiled;
+		if(m==null && !patternMap.isEmpty())
+			m = compile();
+		return m;
+	}
 	
 	/* (non-Javadoc)
 	 * @see org.tzi.context.common.ContextListenerInterface#matchesSource(java.lang.String)
 	 */
 	public boolean matchesSource(String source) {
+		ContextListenerMatcher m = getMatcher();
+		if(m!=null)
+			return m.matchesSource(source);
 		return sourcePropTagMap.containsKey(source) || sourcePropTagMap.containsKey(Context.ALL_SOURCES);
 	}
 	
@@ -60,6 +313,9 @@ public class ContextListenerProperties implements ContextListenerInterface {
 	 * @see org.tzi.context.common.ContextListenerInterface#matchesSourceProperty(java.lang.String, java.lang.String)
 	 */
 	public boolean matchesSourceProperty(String source, String property) {
+		ContextListenerMatcher m = getMatcher();
+		if(m!=null)
+			return m.matchesSourceProperty(source, property);
 		Map<String, Set<String>> propMap = sourcePropTagMap.get(source);
 		if(propMap==null) {
 			propMap = sourcePropTagMap.get(Context.ALL_SOURCES);
@@ -104,6 +360,9 @@ public class ContextListenerProperties implements ContextListenerInterface {
 	 * @see org.tzi.context.common.ContextListenerInterface#matches(org.tzi.context.common.ContextElement)
 	 */
 	public boolean matches(ContextElement ce) {
+		ContextListenerMatcher m = getMatcher();
+		if(m!=null)
+			return m.matches(ce);
 		Map<String, Set<String>> propMap = sourcePropTagMap.get(ce.getSourceIdentifier());
 		if(propMap==null) {
 			propMap = sourcePropTagMap.get(Context.ALL_SOURCES);
@@ -128,72 +387,136 @@ public class ContextListenerProperties implements ContextListenerInterface {
 		return false;
 	}
 	
+	/**
+	 * Adds tags for a source and property. Only this entry is looked at;
+	 * entries made redundant by a new wildcard entry are removed.
+	 * @param source source or {@link Context#ALL_SOURCES}
+	 * @param property property or {@link Context#ALL_PROPERTIES}
+	 * @param tags tags to add; may contain {@link Context#ALL_TAGS}
+	 * @return <em>true</em> if the subscription changed
+	 */
+	public boolean addTags(String source, String property, Collection<String> tags) {
+		if(!Context.ALL_SOURCES.equals(source) && catchesAll(sourcePropTagMap.get(Context.ALL_SOURCES)))
+			return false;
+		
+		Map<String, Set<String>> propMap = sourcePropTagMap.get(source);
+		if(propMap == null) {
+			sourcePropTagMap.put(source, new TreeMap<String, Set<String>>());
+			propMap = sourcePropTagMap.get(source);
+		} else if(!Context.ALL_PROPERTIES.equals(property) && catchesAll(propMap)) {
+			return false;
+		}
+		
+		Set<String> oldTags = propMap.get(property);
+		if(oldTags != null && (oldTags.contains(Context.ALL_TAGS) || oldTags.containsAll(tags)))
+			return false;
+		
+		// tag sets may be shared with other entries, so they are replaced
+		Set<String> newTags = new TreeSet<String>();
+		if(tags.contains(Context.ALL_TAGS)) {
+			newTags.add(Context.ALL_TAGS);
+		} else {
+			if(oldTags != null)
+				newTags.addAll(oldTags);
+			newTags.addAll(tags);
+		}
+		propMap.put(property, newTags);
+		
+		if(newTags.contains(Context.ALL_TAGS) && Context.ALL_PROPERTIES.equals(property)) {
+			// other properties of the source are covered now
+			Iterator<String> pi = propMap.keySet().iterator();
+			while(pi.hasNext()) {
+				if(!Context.ALL_PROPERTIES.equals(pi.next()))
+					pi.remove();
+			}
+			// and if this is the source wildcard, all other sources
+			if(Context.ALL_SOURCES.equals(source)) {
+				Iterator<String> si = sourcePropTagMap.keySet().iterator();
+				while(si.hasNext()) {
+					if(!Context.ALL_SOURCES.equals(si.next()))
+						si.remove();
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Removes tags for a source and property. Entries without tags are removed.
+	 * @param source source or {@link Context#ALL_SOURCES}
+	 * @param property property or {@link Context#ALL_PROPERTIES}
+	 * @param tags tags to remove; {@link Context#ALL_TAGS} only removes this wildcard
+	 * @return <em>true</em> if the subscription changed
+	 */
+	public boolean removeTags(String source, String property, Collection<String> tags) {
+		Map<String, Set<String>> propMap = sourcePropTagMap.get(source);
+		if(propMap == null)
+			return false;
+		Set<String> oldTags = propMap.get(property);
+		if(oldTags == null)
+			return false;
+		
+		Set<String> newTags = new TreeSet<String>(oldTags);
+		if(!newTags.removeAll(tags))
+			return false;
+		
+		if(newTags.isEmpty()) {
+			propMap.remove(property);
+			if(propMap.isEmpty())
+				sourcePropTagMap.remove(source);
+		} else {
+			propMap.put(property, newTags);
+		}
+		return true;
+	}
+	
+	/**
+	 * @return <em>true</em> if propMap accepts all tags of all properties
+	 */
+	private static boolean catchesAll(Map<String, Set<String>> propMap) {
+		if(propMap == null)
+			return false;
+		Set<String> tags = propMap.get(Context.ALL_PROPERTIES);
+		return tags != null && tags.contains(Context.ALL_TAGS);
+	}
+	
+	/**
+	 * Adds the subscription of clp to this one. The cost depends on the size
+	 * of clp only.
+	 * @param clp subscription to add
+	 */
 	public void merge(ContextListenerProperties clp) {
 		if(clp==null)
 			return;
 		
+		for(Map.Entry<String, Map<String, Set<String>>> clpPatternEntry : clp.patternMap.entrySet()) {
+			for(Map.Entry<String, Set<String>> clpPropEntry : clpPatternEntry.getValue().entrySet()) {
+				Set<String> clpTags = clpPropEntry.getValue();
+				addPattern(clpPatternEntry.getKey(), clpPropEntry.getKey(), clpTags.toArray(new String [clpTags.size()]));
+			}
+		}
+		
 		for(Map.Entry<String, Map<String, Set<String>>> clpSourceEntry : clp.sourcePropTagMap.entrySet()) {
 			String clpSource = clpSourceEntry.getKey();
 			Map<String, Set<String>> clpPropMap = clpSourceEntry.getValue();
-			Map<String, Set<String>> propMap = sourcePropTagMap.get(clpSource);
-			// no such source before
-			if(propMap == null) {
-				if(Context.debug) {
-					System.out.println("Merge: My prop-map for " + clpSource + " is null");
-					if(clpPropMap==null) {
-						System.out.println("Sources map also...");
-					} else {
-						System.out.println("Sources is usable...");
-					}
-				}
-				sourcePropTagMap.put(clpSource, clpPropMap);
-				propMap = clpPropMap;
-			} else { // source exists
-				for(Map.Entry<String, Set<String>> clpPropEntry : clpPropMap.entrySet()) {
-					String clpProp = clpPropEntry.getKey();
-					Set<String> clpTags = clpPropEntry.getValue();
-					Set<String> tags = propMap.get(clpProp);
-					// no such property before
-					if(tags == null) {
-						propMap.put(clpProp, clpTags);
-						tags = clpTags;
-					} else { // property exists
-						tags.addAll(clpTags);
-					}
-					
-					if(tags.contains(Context.ALL_TAGS)) {
-						tags.clear();
-						tags.add(Context.ALL_TAGS);
-					}
-				}
-				
+			if(clpPropMap == null)
+				continue;
+			for(Map.Entry<String, Set<String>> clpPropEntry : clpPropMap.entrySet()) {
+				Set<String> clpTags = clpPropEntry.getValue();
+				addTags(clpSource, clpPropEntry.getKey(), (clpTags == null) ? Collections.<String>emptySet() : clpTags);
 			}
-			// check for ALL_PROPERTIES
-			if(propMap.containsKey(Context.ALL_PROPERTIES)) {
-				Iterator<Map.Entry<String, Set<String>>> pi =
-					propMap.entrySet().iterator();
-				while(pi.hasNext()) {
-					Map.Entry<String, Set<String>> pe = pi.next();
-					if(pe.getKey() == Context.ALL_PROPERTIES)
-						continue;
-					// remove property when it catches all tags
-					if(pe.getValue().contains(Context.ALL_TAGS))
-						pi.remove();
-				}
+		}
+		
+		for(Map.Entry<String, Map<String, Deadband>> clpSourceEntry : clp.deadbandMap.entrySet()) {
+			for(Map.Entry<String, Deadband> clpPropEntry : clpSourceEntry.getValue().entrySet()) {
+				setDeadband(clpSourceEntry.getKey(), clpPropEntry.getKey(), clpPropEntry.getValue());
 			}
 		}
 		
-		// check for ALL_SOURCES
-		if(sourcePropTagMap.containsKey(Context.ALL_SOURCES)) {
-			Iterator<Map.Entry<String, Map<String, Set<String>>>> si =
-				sourcePropTagMap.entrySet().iterator();
-			while(si.hasNext()) {
-				Map.Entry<String, Map<String, Set<String>>> se = si.next();
-				if(se.getKey()==Context.ALL_SOURCES)
-					continue;
-				// remove source if it catches all properties and also all tags
-				if(se.getValue().containsKey(Context.ALL_PROPERTIES) && se.getValue().containsValue(Context.ALL_TAGS))
-					si.remove();
+		for(Map.Entry<String, Map<String, Double>> clpSourceEntry : clp.rateMap.entrySet()) {
+			for(Map.Entry<String, Double> clpPropEntry : clpSourceEntry.getValue().entrySet()) {
+				setMaxRate(clpSourceEntry.getKey(), clpPropEntry.getKey(), clpPropEntry.getValue());
 			}
 		}
 	}
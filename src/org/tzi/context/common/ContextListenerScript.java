@@ -15,15 +15,182 @@
 */
 package org.tzi.context.common;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.script.Compilable;
 import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
 import javax.script.ScriptException;
 
+/**
+ * Listener properties implemented by script functions.</br>
+ * When created from a {@link ScriptEngineFactory} and a script, every
+ * calling thread gets its own engine with the script compiled into it, so
+ * dispatch threads do not share engine state. An engine passed in directly
+ * is shared and calls to it are serialized.</br>
+ * Results of the structural calls (<em>matchesSource</em>,
+ * <em>matchesSourceProperty</em>, <em>notifyNewSource</em> and
+ * <em>notifyNewProperty</em>) are memoized per source and property. Call
+ * {@link #invalidate()} if the script changes its answers, or disable
+ * memoizing for scripts that are not pure.
+ */
 public class ContextListenerScript implements ContextListenerInterface {
 	
-	private Invocable engine;
+	/**
+	 * number of memoized sources before the caches are cleared
+	 */
+	public static final int MAX_MEMO_SOURCES = 4096;
+	
+	private static class EngineHolder {
+		private Invocable engine;
+		private int generation;
+		private Set<String> lastTags;
+		private String [] lastTagArray;
+		
+		public EngineHolder(Invocable engine) {
+			this.engine = engine;
+		}
+	}
+	
+	private ScriptEngineFactory factory;
+	private String script;
+	private EngineHolder shared;
+	private ThreadLocal<EngineHolder> local;
 	
+	/**
+	 * policies set through this object; replayed to engines that have not
+	 * seen the current generation yet
+	 */
+	private volatile NewElementPolicy newPropertyPolicy = null;
+	private volatile NewElementPolicy newSourcePolicy = null;
+	private volatile int generation = 0;
+	
+	private volatile boolean memoizing = true;
+	private final ConcurrentHashMap<String, Boolean> sourceMemo = new ConcurrentHashMap<String, Boolean>();
+	private final ConcurrentHashMap<String, Boolean> newSourceMemo = new ConcurrentHashMap<String, Boolean>();
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> propertyMemo = new ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>();
+	private final ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> newPropertyMemo = new ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>();
+	
+	/**
+	 * Uses a single engine for all threads.
+	 * @param engine engine with the script functions already defined
+	 */
 	public ContextListenerScript(Invocable engine) {
-		this.engine = engine;
+		this.shared = new EngineHolder(engine);
+	}
+	
+	/**
+	 * Uses one engine per calling thread.
+	 * @param factory factory for the engines; they must be {@link Invocable}
+	 * @param script script defining the functions
+	 * @throws ScriptException if the script does not compile or evaluate
+	 */
+	public ContextListenerScript(ScriptEngineFactory factory, String script) throws ScriptException {
+		this.factory = factory;
+		this.script = script;
+		this.local = new ThreadLocal<EngineHolder>();
+		// fail early on broken scripts
+		local.set(createHolder());
+	}
+	
+	private EngineHolder createHolder() throws ScriptException {
+		ScriptEngine se = factory.getScriptEngine();
+		if(!(se instanceof Invocable))
+			throw new IllegalArgumentException("Script engine " + factory.getEngineName() + " is not invocable!");
+		if(se instanceof Compilable) {
+			((Compilable)se).compile(script).eval();
+		} else {
+			se.eval(script);
+		}
+		return new EngineHolder((Invocable)se);
+	}
+	
+	private EngineHolder holder() throws ScriptException {
+		if(shared != null)
+			return shared;
+		EngineHolder h = local.get();
+		if(h == null) {
+			h = createHolder();
+			local.set(h);
+		}
+		return h;
+	}
+	
+	private Object invoke(String name, Object...args) throws ScriptException, NoSuchMethodException {
+		return invoke(holder(), name, args);
+	}
+	
+	private Object invoke(EngineHolder h, String name, Object...args) throws ScriptException, NoSuchMethodException {
+		// uncontended unless the engine is shared
+		synchronized (h) {
+			int g = generation;
+			if(h.generation != g) {
+				NewElementPolicy nep = newPropertyPolicy;
+				if(nep != null)
+					h.engine.invokeFunction("setNewPropertyPolicy", policyToString(nep));
+				nep = newSourcePolicy;
+				if(nep != null)
+					h.engine.invokeFunction("setNewSourcePolicy", policyToString(nep));
+				h.generation = g;
+			}
+			return h.engine.invokeFunction(name, args);
+		}
+	}
+	
+	public boolean isMemoizing() {
+		return memoizing;
+	}
+	
+	public void setMemoizing(boolean memoizing) {
+		this.memoizing = memoizing;
+		invalidate();
+	}
+	
+	/**
+	 * Forgets all memoized results.
+	 */
+	public void invalidate() {
+		sourceMemo.clear();
+		newSourceMemo.clear();
+		propertyMemo.clear();
+		newPropertyMemo.clear();
+	}
+	
+	/**
+	 * Forgets the memoized results for one source.
+	 * @param source source identifier
+	 */
+	public void invalidate(String source) {
+		sourceMemo.remove(source);
+		newSourceMemo.remove(source);
+		propertyMemo.remove(source);
+		newPropertyMemo.remove(source);
+	}
+	
+	private void memo(ConcurrentHashMap<String, Boolean> memo, String source, boolean r) {
+		if(memo.size() >= MAX_MEMO_SOURCES)
+			memo.clear();
+		memo.put(source, r);
+	}
+	
+	private void memo(ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> memo, String source, String property, boolean r) {
+		ConcurrentHashMap<String, Boolean> pm = memo.get(source);
+		if(pm == null) {
+			if(memo.size() >= MAX_MEMO_SOURCES)
+				memo.clear();
+			pm = new ConcurrentHashMap<String, Boolean>();
+			ConcurrentHashMap<String, Boolean> prev = memo.putIfAbsent(source, pm);
+			if(prev != null)
+				pm = prev;
+		}
+		pm.put(property, r);
+	}
+	
+	private static Boolean lookup(ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> memo, String source, String property) {
+		ConcurrentHashMap<String, Boolean> pm = memo.get(source);
+		return (pm == null) ? null : pm.get(property);
 	}
 	
 	private NewElementPolicy resultToPolicy(Object r) {
@@ -57,7 +224,7 @@ public class ContextListenerScript implements ContextListenerInterface {
 	@Override
 	public NewElementPolicy getNewPropertyPolicy() {
 		try {
-			return resultToPolicy(engine.invokeFunction("getNewPropertyPolicy"));
+			return resultToPolicy(invoke("getNewPropertyPolicy"));
 		} catch (ScriptException e) {
 			e.printStackTrace();
 		} catch (NoSuchMethodException e) {
@@ -69,7 +236,7 @@ public class ContextListenerScript implements ContextListenerInterface {
 	@Override
 	public NewElementPolicy getNewSourcePolicy() {
 		try {
-			return resultToPolicy(engine.invokeFunction("getNewSourcePolicy"));
+			return resultToPolicy(invoke("getNewSourcePolicy"));
 		} catch (ScriptException e) {
 			e.printStackTrace();
 		} catch (NoSuchMethodException e) {
@@ -80,14 +247,21 @@ public class ContextListenerScript implements ContextListenerInterface {
 
 	@Override
 	public boolean matches(ContextElement ce) {
-		String [] tags = new String [ce.getTypeTags().size()];
-		int index = 0;
-		for(String tag : ce.getTypeTags()) {
-			tags[index++] = tag;
-		}
-		
 		try {
-			return resultToBoolean(engine.invokeFunction("matches", tags, ce.getSourceIdentifier(), ce.getPropertyIdentifier(), ce.getValue(), ce.getTimestamp(), ce.isPersistent()));
+			EngineHolder h = holder();
+			Set<String> ceTags = ce.getTypeTags();
+			String [] tags;
+			synchronized (h) {
+				// elements of one sensor usually carry the same tags
+				if(h.lastTagArray != null && h.lastTags.equals(ceTags)) {
+					tags = h.lastTagArray;
+				} else {
+					tags = ceTags.toArray(new String [ceTags.size()]);
+					h.lastTags = ceTags;
+					h.lastTagArray = tags;
+				}
+			}
+			return resultToBoolean(invoke(h, "matches", tags, ce.getSourceIdentifier(), ce.getPropertyIdentifier(), ce.getValue(), ce.getTimestamp(), ce.isPersistent()));
 		} catch (ScriptException e) {
 			e.printStackTrace();
 		} catch (NoSuchMethodException e) {
@@ -99,8 +273,16 @@ public class ContextListenerScript implements ContextListenerInterface {
 
 	@Override
 	public boolean matchesSource(String source) {
+		if(memoizing) {
+			Boolean b = sourceMemo.get(source);
+			if(b != null)
+				return b;
+		}
 		try {
-			return resultToBoolean(engine.invokeFunction("matchesSource", source));
+			boolean r = resultToBoolean(invoke("matchesSource", source));
+			if(memoizing)
+				memo(sourceMemo, source, r);
+			return r;
 		} catch (ScriptException e) {
 			e.printStackTrace();
 		} catch (NoSuchMethodException e) {
@@ -111,8 +293,16 @@ public class ContextListenerScript implements ContextListenerInterface {
 
 	@Override
 	public boolean matchesSourceProperty(String source, String property) {
+		if(memoizing) {
+			Boolean b = lookup(propertyMemo, source, property);
+			if(b != null)
+				return b;
+		}
 		try {
-			return resultToBoolean(engine.invokeFunction("matchesSourceProperty", source, property));
+			boolean r = resultToBoolean(invoke("matchesSourceProperty", source, property));
+			if(memoizing)
+				memo(propertyMemo, source, property, r);
+			return r;
 		} catch (ScriptException e) {
 			e.printStackTrace();
 		} catch (NoSuchMethodException e) {
@@ -123,8 +313,16 @@ public class ContextListenerScript implements ContextListenerInterface {
 
 	@Override
 	public boolean notifyNewProperty(String source, String property) {
+		if(memoizing) {
+			Boolean b = lookup(newPropertyMemo, source, property);
+			if(b != null)
+				return b;
+		}
 		try {
-			return resultToBoolean(engine.invokeFunction("notifyNewProperty", source, property));
+			boolean r = resultToBoolean(invoke("notifyNewProperty", source, property));
+			if(memoizing)
+				memo(newPropertyMemo, source, property, r);
+			return r;
 		} catch (ScriptException e) {
 			e.printStackTrace();
 		} catch (NoSuchMethodException e) {
@@ -135,8 +333,16 @@ public class ContextListenerScript implements ContextListenerInterface {
 
 	@Override
 	public boolean notifyNewSource(String source) {
+		if(memoizing) {
+			Boolean b = newSourceMemo.get(source);
+			if(b != null)
+				return b;
+		}
 		try {
-			return resultToBoolean(engine.invokeFunction("notifyNewSource", source));
+			boolean r = resultToBoolean(invoke("notifyNewSource", source));
+			if(memoizing)
+				memo(newSourceMemo, source, r);
+			return r;
 		} catch (ScriptException e) {
 			e.printStackTrace();
 		} catch (NoSuchMethodException e) {
@@ -156,8 +362,10 @@ public class ContextListenerScript implements ContextListenerInterface {
 
 	@Override
 	public void setNewPropertyPolicy(NewElementPolicy nep) {
+		newPropertyPolicy = nep;
+		policyChanged();
 		try {
-			engine.invokeFunction("setNewPropertyPolicy", policyToString(nep));
+			invoke("setNewPropertyPolicy", policyToString(nep));
 		} catch (ScriptException e) {
 			e.printStackTrace();
 		} catch (NoSuchMethodException e) {
@@ -167,13 +375,23 @@ public class ContextListenerScript implements ContextListenerInterface {
 
 	@Override
 	public void setNewSourcePolicy(NewElementPolicy nep) {
+		newSourcePolicy = nep;
+		policyChanged();
 		try {
-			engine.invokeFunction("setNewSourcePolicy", policyToString(nep));
+			invoke("setNewSourcePolicy", policyToString(nep));
 		} catch (ScriptException e) {
 			e.printStackTrace();
 		} catch (NoSuchMethodException e) {
 			e.printStackTrace();
 		}
 	}
+	
+	/**
+	 * makes the other engines pick up the policies before their next call
+	 */
+	private synchronized void policyChanged() {
+		generation++;
+		invalidate();
+	}
 
 }
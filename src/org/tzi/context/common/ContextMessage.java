@@ -15,6 +15,9 @@
 */
 package org.tzi.context.common;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public class ContextMessage {
 	public static enum Type { Context, SourceAdded, SourceRemoved, PropertyAdded, PropertyRemoved, ShortContext };
 	
@@ -137,55 +140,91 @@ public class ContextMessage {
 	
 	public String toString()
 	{
+		if(typeToString(type)==null)
+			return null;
+		
 		StringBuilder sb = new StringBuilder();
 		
+		try {
+			writeTo(sb);
+		} catch (IOException e) {
+			// StringBuilder does not throw
+		}
+		
+		return sb.toString();
+	}
+	
+	/**
+	 * Writes the same representation as {@link #toString()} to <em>a</em>
+	 * @param a target
+	 * @return <em>false</em> if the message has no valid type (nothing is written)
+	 */
+	public boolean writeTo(Appendable a) throws IOException
+	{
 		String types = typeToString(type);
 		
 		if(types==null)
-			return null;
-		
-		sb.append(types);
-
-		sb.append(" ");
+			return false;
 		
 		if(listenerId.length()==0)
 			throw new RuntimeException("ContextMessage without identifier!");
 		
-		sb.append(listenerId);
-		
-		sb.append(" ");
+		a.append(types);
+		a.append(' ');
+		a.append(listenerId);
+		a.append(' ');
 		
 		if(!shortFormat) {
-			sb.append(Util.urlencode(contextName.length()==0?"<unnamed>":contextName));
+			Util.urlencode(contextName.length()==0?"<unnamed>":contextName, a);
 
 			if(contextInformation!=null)
 			{
-				sb.append(";");
-				sb.append(Util.urlencode(contextInformation));
+				a.append(';');
+				Util.urlencode(contextInformation, a);
 			}
 
-			sb.append(" ");
+			a.append(' ');
 		}
 		
 		switch(type)
 		{
 		case Context:
 		case ShortContext:
-			sb.append(shortFormat ? ce.toShortString(shortPrefix) : ce.toString());
+			if(shortFormat)
+				ce.writeShortTo(a, shortPrefix);
+			else
+				ce.writeTo(a);
 			break;
 		case SourceRemoved:
-			sb.append(Util.urlencode(sourceName));
+			Util.urlencode(sourceName, a);
 			break;
 		case SourceAdded:
 		case PropertyAdded:
 		case PropertyRemoved:
-			sb.append(Util.urlencode(sourceName));
-			sb.append(" ");
-			sb.append(Util.urlencode(propertyName));
+			Util.urlencode(sourceName, a);
+			a.append(' ');
+			Util.urlencode(propertyName, a);
 			break;
 		}
 		
-		return sb.toString();
+		return true;
+	}
+	
+	/**
+	 * Writes the same representation as {@link #toString()} encoded
+	 * for the protocol into <em>bb</em>
+	 * @param bb target buffer
+	 * @return <em>false</em> if the message has no valid type (nothing is written)
+	 * @throws java.nio.BufferOverflowException if the buffer is too small 
+	 */
+	public boolean writeTo(ByteBuffer bb)
+	{
+		try {
+			return writeTo(new ByteBufferAppender(bb));
+		} catch (IOException e) {
+			// ByteBufferAppender does not throw
+			return false;
+		}
 	}
 	
 	public static ContextMessage fromString(String s) {
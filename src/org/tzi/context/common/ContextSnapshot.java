@@ -0,0 +1,222 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Immutable state of a {@link Context} at a given version.</br>
+ * Snapshots are taken in constant time by {@link Context#getSnapshot()} and
+ * can be read and iterated without locking while the context keeps changing.
+ * Consecutive snapshots share all unchanged structure.
+ */
+public class ContextSnapshot {
+
+	private static final Comparator<ContextElement> sourcePropertyOrder = new Comparator<ContextElement>() {
+		public int compare(ContextElement ce1, ContextElement ce2) {
+			int c = ce1.getSourceIdentifier().compareTo(ce2.getSourceIdentifier());
+			if(c!=0)
+				return c;
+			return ce1.getPropertyIdentifier().compareTo(ce2.getPropertyIdentifier());
+		}
+	};
+
+	private String contextName;
+	private long version;
+	private int numElements;
+	private PersistentMap<String, PersistentMap<String, ContextElement>> sources;
+
+	ContextSnapshot(String contextName) {
+		this(contextName, 0L, 0, PersistentMap.<String, PersistentMap<String, ContextElement>>empty());
+	}
+
+	private ContextSnapshot(String contextName, long version, int numElements, PersistentMap<String, PersistentMap<String, ContextElement>> sources) {
+		this.contextName = contextName;
+		this.version = version;
+		this.numElements = numElements;
+		this.sources = sources;
+	}
+
+	/**
+	 * Builds a snapshot of loaded elements at once.
+	 * @param sources elements by source and property
+	 */
+	static ContextSnapshot of(String contextName, long version, Map<String, ? extends Map<String, ContextElement>> sources) {
+		Map<String, PersistentMap<String, ContextElement>> pSources = new HashMap<String, PersistentMap<String, ContextElement>>();
+		int n = 0;
+		for(Map.Entry<String, ? extends Map<String, ContextElement>> se : sources.entrySet()) {
+			pSources.put(se.getKey(), PersistentMap.of(se.getValue()));
+			n += se.getValue().size();
+		}
+		return new ContextSnapshot(contextName, version, n, PersistentMap.of(pSources));
+	}
+
+	/**
+	 * @return snapshot with the element added or replaced
+	 */
+	ContextSnapshot with(ContextElement ce) {
+		PersistentMap<String, ContextElement> props = sources.get(ce.getSourceIdentifier());
+		if(props==null)
+			props = PersistentMap.empty();
+		int n = numElements;
+		if(!props.containsKey(ce.getPropertyIdentifier()))
+			n++;
+		props = props.plus(ce.getPropertyIdentifier(), ce);
+		return new ContextSnapshot(contextName, version+1, n, sources.plus(ce.getSourceIdentifier(), props));
+	}
+
+	/**
+	 * @return same state with a different version
+	 */
+	ContextSnapshot withVersion(long version) {
+		return new ContextSnapshot(contextName, version, numElements, sources);
+	}
+
+	/**
+	 * @return snapshot without the source; <em>this</em> if not present
+	 */
+	ContextSnapshot withoutSource(String source) {
+		PersistentMap<String, ContextElement> props = sources.get(source);
+		if(props==null)
+			return this;
+		return new ContextSnapshot(contextName, version+1, numElements - props.size(), sources.minus(source));
+	}
+
+	/**
+	 * @return snapshot without the property; <em>this</em> if not present
+	 */
+	ContextSnapshot withoutProperty(String source, String property) {
+		PersistentMap<String, ContextElement> props = sources.get(source);
+		if(props==null || !props.containsKey(property))
+			return this;
+		props = props.minus(property);
+		return new ContextSnapshot(contextName, version+1, numElements - 1, sources.plus(source, props));
+	}
+
+	public String getContextName() {
+		return contextName;
+	}
+
+	/**
+	 * @return version of the context this snapshot was taken at
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return number of context elements
+	 */
+	public int size() {
+		return numElements;
+	}
+
+	public Set<String> getSources() {
+		Set<String> r = new TreeSet<String>();
+		for(Map.Entry<String, PersistentMap<String, ContextElement>> se : sources) {
+			r.add(se.getKey());
+		}
+		return r;
+	}
+
+	public Set<String> getProperties(String source) {
+		PersistentMap<String, ContextElement> props = sources.get(source);
+		if(props==null)
+			return null;
+		Set<String> r = new TreeSet<String>();
+		for(Map.Entry<String, ContextElement> pe : props) {
+			r.add(pe.getKey());
+		}
+		return r;
+	}
+
+	public ContextElement getSourceProperty(String source, String property) {
+		PersistentMap<String, ContextElement> props = sources.get(source);
+		if(props==null)
+			return null;
+		return props.get(property);
+	}
+
+	/**
+	 * @param source the source in question
+	 * @return all context elements for the source sorted by property; <em>null</em> for unknown sources
+	 */
+	public List<ContextElement> getSourceContext(String source) {
+		PersistentMap<String, ContextElement> props = sources.get(source);
+		if(props==null)
+			return null;
+		List<ContextElement> r = new ArrayList<ContextElement>(props.size());
+		for(Map.Entry<String, ContextElement> pe : props) {
+			r.add(pe.getValue());
+		}
+		Collections.sort(r, sourcePropertyOrder);
+		return r;
+	}
+
+	/**
+	 * @return all context elements sorted by source and property
+	 */
+	public List<ContextElement> getContextElements() {
+		List<ContextElement> r = new ArrayList<ContextElement>(numElements);
+		for(ContextElement ce : elements()) {
+			r.add(ce);
+		}
+		Collections.sort(r, sourcePropertyOrder);
+		return r;
+	}
+
+	/**
+	 * @return all context elements in no particular order without copying
+	 */
+	public Iterable<ContextElement> elements() {
+		return new Iterable<ContextElement>() {
+			public Iterator<ContextElement> iterator() {
+				return new Iterator<ContextElement>() {
+					private Iterator<Map.Entry<String, PersistentMap<String, ContextElement>>> si = sources.iterator();
+					private Iterator<Map.Entry<String, ContextElement>> pi = null;
+
+					public boolean hasNext() {
+						while(pi==null || !pi.hasNext()) {
+							if(!si.hasNext())
+								return false;
+							pi = si.next().getValue().iterator();
+						}
+						return true;
+					}
+
+					public ContextElement next() {
+						if(!hasNext())
+							throw new NoSuchElementException();
+						return pi.next().getValue();
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+}
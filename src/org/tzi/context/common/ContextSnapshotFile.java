@@ -0,0 +1,330 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Binary snapshot files for contexts.</br>
+ * A snapshot file starts with a fixed header (magic, format, context
+ * version, number of elements, payload length and CRC32 of the payload)
+ * followed by a string table, a table of tag sets and the elements.
+ * Source, property and tag names are stored once; elements refer to them
+ * by index.</br>
+ * Files are written to a temporary file that replaces the target when
+ * complete, so an existing snapshot is never left half written. Reading
+ * maps the file into memory.
+ */
+public class ContextSnapshotFile {
+
+	public static final int MAGIC = 0x43545853; // "CTXS"
+	public static final int FORMAT = 1;
+
+	private static final int HEADER_SIZE = 40;
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private static final byte FLAG_PERSISTENT = 1;
+
+	/**
+	 * Writes the current state of a context.
+	 * @param ctx context to save
+	 * @param f target file
+	 * @return version that was written
+	 */
+	public static long write(Context ctx, File f) throws IOException {
+		ContextSnapshot cs = ctx.getSnapshot();
+		write(cs, f);
+		return cs.getVersion();
+	}
+
+	/**
+	 * Buffered writer computing the payload checksum
+	 */
+	private static class PayloadWriter {
+		private FileChannel fc;
+		private ByteBuffer bb = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		private CRC32 crc = new CRC32();
+		private long length = 0;
+
+		public PayloadWriter(FileChannel fc) {
+			this.fc = fc;
+		}
+
+		private void ensure(int n) throws IOException {
+			if(bb.remaining() < n)
+				flush();
+		}
+
+		public void putInt(int v) throws IOException {
+			ensure(4);
+			bb.putInt(v);
+		}
+
+		public void putLong(long v) throws IOException {
+			ensure(8);
+			bb.putLong(v);
+		}
+
+		public void put(byte b) throws IOException {
+			ensure(1);
+			bb.put(b);
+		}
+
+		public void putString(String s) throws IOException {
+			byte [] data = s.getBytes(Protocol.protocolCharset);
+			putInt(data.length);
+			int offs = 0;
+			while(offs < data.length) {
+				ensure(1);
+				int n = Math.min(bb.remaining(), data.length - offs);
+				bb.put(data, offs, n);
+				offs += n;
+			}
+		}
+
+		public void flush() throws IOException {
+			bb.flip();
+			crc.update(bb.duplicate());
+			length += bb.remaining();
+			while(bb.hasRemaining())
+				fc.write(bb);
+			bb.clear();
+		}
+	}
+
+	private static int intern(Map<String, Integer> ids, List<String> strings, String s) {
+		Integer id = ids.get(s);
+		if(id == null) {
+			id = strings.size();
+			ids.put(s, id);
+			strings.add(s);
+		}
+		return id;
+	}
+
+	/**
+	 * Writes a snapshot to a file
+	 * @param cs snapshot to write
+	 * @param f target file
+	 */
+	public static void write(ContextSnapshot cs, File f) throws IOException {
+		write(cs, f, false);
+	}
+
+	/**
+	 * Writes a snapshot to a file
+	 * @param cs snapshot to write
+	 * @param f target file
+	 * @param persistentOnly only write elements flagged as persistent
+	 */
+	public static void write(ContextSnapshot cs, File f, boolean persistentOnly) throws IOException {
+		Map<String, Integer> stringIds = new HashMap<String, Integer>();
+		List<String> strings = new ArrayList<String>();
+		Map<Set<String>, Integer> tagSetIds = new HashMap<Set<String>, Integer>();
+		List<Set<String>> tagSets = new ArrayList<Set<String>>();
+
+		int numElements = 0;
+		for(ContextElement ce : cs.elements()) {
+			if(persistentOnly && !ce.isPersistent())
+				continue;
+			intern(stringIds, strings, ce.getSourceIdentifier());
+			intern(stringIds, strings, ce.getPropertyIdentifier());
+			if(!tagSetIds.containsKey(ce.getTypeTags())) {
+				Set<String> tags = new TreeSet<String>(ce.getTypeTags());
+				tagSetIds.put(tags, tagSets.size());
+				tagSets.add(tags);
+				for(String tag : tags)
+					intern(stringIds, strings, tag);
+			}
+			numElements++;
+		}
+
+		File tmp = new File(f.getPath() + ".tmp");
+		RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+		try {
+			raf.setLength(0);
+			FileChannel fc = raf.getChannel();
+			fc.position(HEADER_SIZE);
+
+			PayloadWriter pw = new PayloadWriter(fc);
+
+			pw.putInt(strings.size());
+			for(String s : strings)
+				pw.putString(s);
+
+			pw.putInt(tagSets.size());
+			for(Set<String> tags : tagSets) {
+				pw.putInt(tags.size());
+				for(String tag : tags)
+					pw.putInt(stringIds.get(tag));
+			}
+
+			pw.putInt(numElements);
+			for(ContextElement ce : cs.elements()) {
+				if(persistentOnly && !ce.isPersistent())
+					continue;
+				pw.putInt(stringIds.get(ce.getSourceIdentifier()));
+				pw.putInt(stringIds.get(ce.getPropertyIdentifier()));
+				pw.putInt(tagSetIds.get(ce.getTypeTags()));
+				pw.putLong(ce.getTimestamp());
+				pw.put(ce.isPersistent() ? FLAG_PERSISTENT : 0);
+				pw.putString(ce.getValue());
+			}
+			pw.flush();
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC);
+			header.putInt(FORMAT);
+			header.putLong(cs.getVersion());
+			header.putInt(numElements);
+			header.putInt(0);
+			header.putLong(pw.length);
+			header.putLong(pw.crc.getValue());
+			header.flip();
+			while(header.hasRemaining())
+				fc.write(header, header.position());
+
+			fc.force(true);
+		} finally {
+			raf.close();
+		}
+
+		Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Reads a snapshot file and loads it into an empty context. Listeners are
+	 * not notified.
+	 * @param f snapshot file
+	 * @param ctx empty context to fill
+	 * @return version of the restored context
+	 * @throws IOException if the file can not be read or is corrupt
+	 */
+	public static long restore(File f, Context ctx) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			FileChannel fc = raf.getChannel();
+			long size = fc.size();
+			if(size < HEADER_SIZE)
+				throw new IOException("Snapshot " + f + " is truncated!");
+			if(size > Integer.MAX_VALUE)
+				throw new IOException("Snapshot " + f + " is too large!");
+
+			MappedByteBuffer mb = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			if(mb.getInt() != MAGIC)
+				throw new IOException(f + " is not a context snapshot!");
+			int format = mb.getInt();
+			if(format != FORMAT)
+				throw new IOException("Unsupported snapshot format " + format + " in " + f);
+			long version = mb.getLong();
+			int numElements = mb.getInt();
+			mb.getInt();
+			long length = mb.getLong();
+			long checksum = mb.getLong();
+
+			if(HEADER_SIZE + length != size)
+				throw new IOException("Snapshot " + f + " has wrong size!");
+
+			ByteBuffer payload = mb.slice();
+			CRC32 crc = new CRC32();
+			crc.update(payload.duplicate());
+			if(crc.getValue() != checksum)
+				throw new IOException("Checksum mismatch in snapshot " + f);
+
+			List<ContextElement> ces;
+			try {
+				ces = decode(payload, numElements);
+			} catch(BufferUnderflowException bue) {
+				throw new IOException("Snapshot " + f + " is corrupt!");
+			} catch(IndexOutOfBoundsException ioobe) {
+				throw new IOException("Snapshot " + f + " is corrupt!");
+			}
+
+			ctx.restore(ces, version);
+
+			return version;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static String getString(ByteBuffer bb, byte [][] scratch) {
+		int len = bb.getInt();
+		if(len < 0)
+			throw new IndexOutOfBoundsException();
+		if(scratch[0].length < len)
+			scratch[0] = new byte [Math.max(len, scratch[0].length * 2)];
+		bb.get(scratch[0], 0, len);
+		return new String(scratch[0], 0, len, Protocol.protocolCharset);
+	}
+
+	private static List<ContextElement> decode(ByteBuffer bb, int numElements) {
+		byte [][] scratch = { new byte [256] };
+
+		int numStrings = bb.getInt();
+		if(numStrings < 0)
+			throw new IndexOutOfBoundsException();
+		String [] strings = new String [numStrings];
+		for(int i=0; i<strings.length; i++)
+			strings[i] = getString(bb, scratch);
+
+		int numTagSets = bb.getInt();
+		if(numTagSets < 0)
+			throw new IndexOutOfBoundsException();
+		List<TreeSet<String>> tagSets = new ArrayList<TreeSet<String>>(Math.min(numTagSets, 1024));
+		for(int i=0; i<numTagSets; i++) {
+			int n = bb.getInt();
+			TreeSet<String> tags = new TreeSet<String>();
+			for(int t=0; t<n; t++)
+				tags.add(strings[bb.getInt()]);
+			tagSets.add(tags);
+		}
+
+		int n = bb.getInt();
+		if(n != numElements)
+			throw new IndexOutOfBoundsException();
+
+		List<ContextElement> ces = new ArrayList<ContextElement>(n);
+		for(int i=0; i<n; i++) {
+			String source = strings[bb.getInt()];
+			String property = strings[bb.getInt()];
+			// elements own their tags as if they were merged, copied on first write
+			Set<String> tags = new SharedTagSet(tagSets.get(bb.getInt()));
+			long timestamp = bb.getLong();
+			boolean persistent = (bb.get() & FLAG_PERSISTENT) != 0;
+			String value = getString(bb, scratch);
+			ces.add(new ContextElement(tags, source, property, value, timestamp, persistent));
+		}
+
+		return ces;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+/**
+ * Threshold a value has to move past the last delivered value before it
+ * is delivered again.</br>
+ * <em>Absolute</em> and <em>Relative</em> compare numeric values; if
+ * either value is not a number they behave like <em>Changed</em>, which
+ * delivers whenever the value text differs. Instances are immutable.
+ * @see ContextListenerProperties#setDeadband(String, String, Deadband)
+ */
+public final class Deadband {
+
+	public static enum Kind { Absolute, Relative, Changed };
+
+	public static final String ABSOLUTE = "abs";
+	public static final String RELATIVE = "rel";
+	public static final String CHANGED = "changed";
+
+	private final Kind kind;
+	private final double delta;
+
+	private Deadband(Kind kind, double delta) {
+		if(delta < 0 || Double.isNaN(delta))
+			throw new IllegalArgumentException("delta must not be negative!");
+		this.kind = kind;
+		this.delta = delta;
+	}
+
+	/**
+	 * @param delta minimal absolute difference
+	 */
+	public static Deadband absolute(double delta) {
+		return new Deadband(Kind.Absolute, delta);
+	}
+
+	/**
+	 * @param fraction minimal difference relative to the last delivered
+	 * value, e.g. <em>0.05</em> for 5%
+	 */
+	public static Deadband relative(double fraction) {
+		return new Deadband(Kind.Relative, fraction);
+	}
+
+	public static Deadband changed() {
+		return new Deadband(Kind.Changed, 0);
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public double getDelta() {
+		return delta;
+	}
+
+	private static double parse(String s) {
+		try {
+			return Double.parseDouble(s);
+		} catch(NumberFormatException nfe) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * @param last last delivered value; <em>null</em> if nothing was delivered yet
+	 * @param value new value
+	 * @return <em>true</em> if the new value is to be delivered
+	 */
+	public boolean passes(String last, String value) {
+		if(last == null)
+			return true;
+		if(kind != Kind.Changed) {
+			double l = parse(last);
+			double v = parse(value);
+			if(!Double.isNaN(l) && !Double.isNaN(v)) {
+				double diff = Math.abs(v - l);
+				if(kind == Kind.Absolute)
+					return diff >= delta && diff > 0;
+				return diff > 0 && diff >= delta * Math.abs(l);
+			}
+		}
+		return !last.equals(value);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Deadband))
+			return false;
+		Deadband d = (Deadband)o;
+		return kind == d.kind && Double.compare(delta, d.delta) == 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return kind.hashCode() * 31 + Double.valueOf(delta).hashCode();
+	}
+
+	@Override
+	public String toString() {
+		switch(kind) {
+		case Absolute: return ABSOLUTE + " " + delta;
+		case Relative: return RELATIVE + " " + delta;
+		}
+		return CHANGED;
+	}
+
+	public static Deadband fromString(String s) {
+		return fromWords(Util.splitWS(s), 0);
+	}
+
+	/**
+	 * @param wordsUsed if not <em>null</em>, receives the number of words read
+	 * @return deadband or <em>null</em> if the words are malformed
+	 */
+	public static Deadband fromWords(String [] words, int offs, int [] wordsUsed) {
+		if(words.length - offs < 1)
+			return null;
+		String k = words[offs];
+		if(CHANGED.equalsIgnoreCase(k)) {
+			if(wordsUsed != null)
+				wordsUsed[0] = 1;
+			return changed();
+		}
+		if(words.length - offs < 2)
+			return null;
+		double d;
+		try {
+			d = Double.parseDouble(words[offs+1]);
+		} catch(NumberFormatException nfe) {
+			return null;
+		}
+		if(d < 0 || Double.isNaN(d))
+			return null;
+		if(wordsUsed != null)
+			wordsUsed[0] = 2;
+		if(ABSOLUTE.equalsIgnoreCase(k))
+			return absolute(d);
+		if(RELATIVE.equalsIgnoreCase(k))
+			return relative(d);
+		return null;
+	}
+
+	public static Deadband fromWords(String [] words, int offs) {
+		return fromWords(words, offs, null);
+	}
+}
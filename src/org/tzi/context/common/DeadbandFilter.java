@@ -0,0 +1,100 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Last values delivered to one listener per context, source and property,
+ * for its {@link Deadband}s.</br>
+ * Kept by whoever calls the listener: the context, or a
+ * {@link ThrottledContextListener} or {@link AsyncContextListener}
+ * wrapping it, so a value only counts once it was actually delivered.
+ * Calls for one source and property must not overlap.
+ */
+final class DeadbandFilter {
+
+	private final ConcurrentHashMap<Context, ConcurrentHashMap<String, ConcurrentHashMap<String, String>>> sent =
+		new ConcurrentHashMap<Context, ConcurrentHashMap<String, ConcurrentHashMap<String, String>>>();
+
+	/**
+	 * @return <em>true</em> if the listener delivers later and applies
+	 * deadbands itself
+	 */
+	public static boolean defers(ContextListener cl) {
+		return cl instanceof ThrottledContextListener || cl instanceof AsyncContextListener;
+	}
+
+	/**
+	 * @return deadband of the listener for the element; <em>null</em> if none
+	 */
+	public static Deadband deadbandFor(ContextListener cl, ContextElement ce) {
+		ContextListenerInterface cli = cl.getProperties();
+		if(!(cli instanceof ContextListenerProperties))
+			return null;
+		return ((ContextListenerProperties)cli).getDeadband(ce.getSourceIdentifier(), ce.getPropertyIdentifier());
+	}
+
+	/**
+	 * Checks an element against a deadband and records it as delivered if
+	 * it passes. Must be called right before delivering.
+	 * @return <em>true</em> if the element is to be delivered
+	 */
+	public boolean send(Context ctx, ContextElement ce, Deadband d) {
+		ConcurrentHashMap<String, ConcurrentHashMap<String, String>> sources = sent.get(ctx);
+		if(sources==null) {
+			sources = new ConcurrentHashMap<String, ConcurrentHashMap<String, String>>();
+			ConcurrentHashMap<String, ConcurrentHashMap<String, String>> prev = sent.putIfAbsent(ctx, sources);
+			if(prev!=null)
+				sources = prev;
+		}
+		ConcurrentHashMap<String, String> values = sources.get(ce.getSourceIdentifier());
+		if(values==null) {
+			values = new ConcurrentHashMap<String, String>();
+			ConcurrentHashMap<String, String> prev = sources.putIfAbsent(ce.getSourceIdentifier(), values);
+			if(prev!=null)
+				values = prev;
+		}
+		if(!d.passes(values.get(ce.getPropertyIdentifier()), ce.getValue()))
+			return false;
+		values.put(ce.getPropertyIdentifier(), ce.getValue());
+		return true;
+	}
+
+	/**
+	 * Forgets the values of a removed source, so its next element passes.
+	 */
+	public void reset(Context ctx, String source) {
+		Map<String, ConcurrentHashMap<String, String>> sources = sent.get(ctx);
+		if(sources!=null)
+			sources.remove(source);
+	}
+
+	/**
+	 * Forgets the value of a removed property.
+	 */
+	public void reset(Context ctx, String source, String property) {
+		Map<String, ConcurrentHashMap<String, String>> sources = sent.get(ctx);
+		Map<String, String> values = (sources==null) ? null : sources.get(source);
+		if(values!=null)
+			values.remove(property);
+	}
+
+	public void clear() {
+		sent.clear();
+	}
+}
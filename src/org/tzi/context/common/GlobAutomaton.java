@@ -0,0 +1,309 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deterministic automaton matching a name against a list of glob patterns
+ * at once.</br>
+ * Patterns may contain <em>*</em> (any sequence, including none) and
+ * <em>?</em> (any single character); a backslash makes the next character
+ * literal. <em>room42.*</em> is a prefix pattern.</br>
+ * The automaton is built eagerly by subset construction over an alphabet
+ * of the literal characters used in the patterns plus one class for all
+ * other characters, so matching is a single pass over the name no matter
+ * how many patterns there are. If the patterns need more than
+ * {@link #MAX_STATES} states the positions of all patterns are tracked
+ * while matching instead, which costs time proportional to their number
+ * but never fails. Instances are immutable.
+ */
+final class GlobAutomaton {
+
+	/**
+	 * upper bound for the number of states; globs rarely come near it
+	 * @see #isDeterministic()
+	 */
+	public static final int MAX_STATES = 1 << 14;
+
+	private static final int TOKEN_ANY = -1;
+	private static final int TOKEN_STAR = -2;
+
+	private static final BitSet NONE = new BitSet();
+
+	/**
+	 * character class per ASCII character; others are looked up in classMap
+	 */
+	private final int [] asciiClass = new int [128];
+	private final Map<Character, Integer> classMap = new HashMap<Character, Integer>();
+	private final int otherClass;
+
+	/**
+	 * transitions[state][class]; -1 if no pattern can match anymore;
+	 * <em>null</em> if there were too many states
+	 */
+	private final int [][] transitions;
+	/**
+	 * indices of the patterns accepted in a state
+	 */
+	private final BitSet [] accepting;
+
+	/**
+	 * positions of all patterns for matching without the automaton
+	 */
+	private final int numPatterns;
+	private final int [] tokenAt;
+	private final int [] patternAt;
+	private final boolean [] finalAt;
+	private final BitSet start;
+
+	/**
+	 * @param patterns glob patterns; the index of a pattern in this list is
+	 * its index in the results of {@link #match(String)}
+	 */
+	public GlobAutomaton(List<String> patterns) {
+		// flatten all patterns into one list of positions
+		List<int []> tokenLists = new ArrayList<int []>(patterns.size());
+		int [] offsets = new int [patterns.size()];
+		int numPositions = 0;
+		for(int p=0; p<patterns.size(); p++) {
+			int [] tokens = tokenize(patterns.get(p));
+			tokenLists.add(tokens);
+			offsets[p] = numPositions;
+			// one position per token plus the final one
+			numPositions += tokens.length + 1;
+		}
+
+		numPatterns = patterns.size();
+		tokenAt = new int [numPositions];
+		patternAt = new int [numPositions];
+		finalAt = new boolean [numPositions];
+		int numClasses = 0;
+		Arrays.fill(asciiClass, -1);
+		for(int p=0; p<patterns.size(); p++) {
+			int [] tokens = tokenLists.get(p);
+			for(int i=0; i<tokens.length; i++) {
+				tokenAt[offsets[p] + i] = tokens[i];
+				patternAt[offsets[p] + i] = p;
+				if(tokens[i] >= 0 && classOf((char)tokens[i]) < 0) {
+					setClass((char)tokens[i], numClasses++);
+				}
+			}
+			finalAt[offsets[p] + tokens.length] = true;
+			patternAt[offsets[p] + tokens.length] = p;
+		}
+		otherClass = numClasses++;
+		for(int c=0; c<asciiClass.length; c++) {
+			if(asciiClass[c] < 0)
+				asciiClass[c] = otherClass;
+		}
+
+		// subset construction
+		Map<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+		List<BitSet> states = new ArrayList<BitSet>();
+		List<int []> trans = new ArrayList<int []>();
+
+		start = new BitSet(numPositions);
+		for(int p=0; p<patterns.size(); p++)
+			start.set(offsets[p]);
+		closure(start, tokenAt, finalAt);
+		ids.put(start, 0);
+		states.add(start);
+
+		build:
+		for(int s=0; s<states.size(); s++) {
+			BitSet cur = states.get(s);
+			int [] t = new int [numClasses];
+			for(int cls=0; cls<numClasses; cls++) {
+				BitSet next = new BitSet(numPositions);
+				for(int pos = cur.nextSetBit(0); pos >= 0; pos = cur.nextSetBit(pos + 1)) {
+					if(finalAt[pos])
+						continue;
+					int tok = tokenAt[pos];
+					if(tok == TOKEN_STAR)
+						next.set(pos);
+					else if(tok == TOKEN_ANY || classOf((char)tok) == cls)
+						next.set(pos + 1);
+				}
+				if(next.isEmpty()) {
+					t[cls] = -1;
+					continue;
+				}
+				closure(next, tokenAt, finalAt);
+				Integer id = ids.get(next);
+				if(id == null) {
+					if(states.size() >= MAX_STATES) {
+						trans = null;
+						break build;
+					}
+					id = states.size();
+					ids.put(next, id);
+					states.add(next);
+				}
+				t[cls] = id;
+			}
+			trans.add(t);
+		}
+
+		if(trans == null) {
+			transitions = null;
+			accepting = null;
+			return;
+		}
+
+		transitions = trans.toArray(new int [trans.size()][]);
+		accepting = new BitSet [states.size()];
+		for(int s=0; s<states.size(); s++) {
+			BitSet st = states.get(s);
+			BitSet acc = null;
+			for(int pos = st.nextSetBit(0); pos >= 0; pos = st.nextSetBit(pos + 1)) {
+				if(finalAt[pos]) {
+					if(acc == null)
+						acc = new BitSet(patterns.size());
+					acc.set(patternAt[pos]);
+				}
+			}
+			accepting[s] = (acc == null) ? NONE : acc;
+		}
+	}
+
+	private void setClass(char c, int cls) {
+		if(c < asciiClass.length)
+			asciiClass[c] = cls;
+		else
+			classMap.put(c, cls);
+	}
+
+	/**
+	 * @return class of a literal character; -1 while not yet assigned
+	 */
+	private int classOf(char c) {
+		if(c < asciiClass.length)
+			return asciiClass[c];
+		Integer cls = classMap.get(c);
+		return (cls == null) ? -1 : cls;
+	}
+
+	private static void closure(BitSet set, int [] tokenAt, boolean [] finalAt) {
+		// a star may match nothing; positions only move forward
+		for(int pos = set.nextSetBit(0); pos >= 0; pos = set.nextSetBit(pos + 1)) {
+			if(!finalAt[pos] && tokenAt[pos] == TOKEN_STAR)
+				set.set(pos + 1);
+		}
+	}
+
+	private static int [] tokenize(String pattern) {
+		int [] tokens = new int [pattern.length()];
+		int n = 0;
+		for(int i=0; i<pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if(c == '\\' && i + 1 < pattern.length()) {
+				tokens[n++] = pattern.charAt(++i);
+			} else if(c == '*') {
+				// consecutive stars are equivalent to one
+				if(n == 0 || tokens[n-1] != TOKEN_STAR)
+					tokens[n++] = TOKEN_STAR;
+			} else if(c == '?') {
+				tokens[n++] = TOKEN_ANY;
+			} else {
+				tokens[n++] = c;
+			}
+		}
+		int [] r = new int [n];
+		System.arraycopy(tokens, 0, r, 0, n);
+		return r;
+	}
+
+	/**
+	 * @param name name to match
+	 * @return indices of all matching patterns; must not be modified
+	 */
+	public BitSet match(String name) {
+		if(transitions == null)
+			return simulate(name);
+		int state = 0;
+		for(int i=0; i<name.length(); i++) {
+			char c = name.charAt(i);
+			int cls;
+			if(c < asciiClass.length) {
+				cls = asciiClass[c];
+			} else {
+				Integer ci = classMap.get(c);
+				cls = (ci == null) ? otherClass : ci;
+			}
+			state = transitions[state][cls];
+			if(state < 0)
+				return NONE;
+		}
+		return accepting[state];
+	}
+
+	/**
+	 * Matches by moving the positions of all patterns over the name
+	 */
+	private BitSet simulate(String name) {
+		BitSet cur = (BitSet)start.clone();
+		BitSet next = new BitSet(tokenAt.length);
+		for(int i=0; i<name.length(); i++) {
+			char c = name.charAt(i);
+			next.clear();
+			for(int pos = cur.nextSetBit(0); pos >= 0; pos = cur.nextSetBit(pos + 1)) {
+				if(finalAt[pos])
+					continue;
+				int tok = tokenAt[pos];
+				if(tok == TOKEN_STAR)
+					next.set(pos);
+				else if(tok == TOKEN_ANY || tok == c)
+					next.set(pos + 1);
+			}
+			if(next.isEmpty())
+				return NONE;
+			closure(next, tokenAt, finalAt);
+			BitSet t = cur;
+			cur = next;
+			next = t;
+		}
+		BitSet acc = null;
+		for(int pos = cur.nextSetBit(0); pos >= 0; pos = cur.nextSetBit(pos + 1)) {
+			if(finalAt[pos]) {
+				if(acc == null)
+					acc = new BitSet(numPatterns);
+				acc.set(patternAt[pos]);
+			}
+		}
+		return (acc == null) ? NONE : acc;
+	}
+
+	/**
+	 * @return <em>false</em> if the patterns needed too many states and
+	 * are matched one by one
+	 */
+	public boolean isDeterministic() {
+		return transitions != null;
+	}
+
+	/**
+	 * @return number of states; 0 if not {@link #isDeterministic() deterministic}
+	 */
+	public int getStateCount() {
+		return (transitions == null) ? 0 : transitions.length;
+	}
+}
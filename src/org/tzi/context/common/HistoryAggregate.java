@@ -0,0 +1,230 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.io.IOException;
+
+/**
+ * Summary of the history samples in one time bucket.</br>
+ * Count, first and last cover all samples; minimum, maximum and average
+ * only the numeric ones and are <em>NaN</em> if there were none.
+ * @see AggregatingHistoryProvider#getAggregatedHistory(Integer, long, long, long, java.util.Set)
+ */
+public final class HistoryAggregate {
+
+	private long start;
+	private long width;
+	private int count = 0;
+	private int numericCount = 0;
+	private double min = Double.NaN;
+	private double max = Double.NaN;
+	private double sum = 0;
+	private long firstTs;
+	private String first;
+	private long lastTs;
+	private String last;
+
+	HistoryAggregate(long start, long width) {
+		this.start = start;
+		this.width = width;
+	}
+
+	HistoryAggregate(long start, long width, int count, int numericCount, double min, double max, double sum, long firstTs, String first, long lastTs, String last) {
+		this.start = start;
+		this.width = width;
+		this.count = count;
+		this.numericCount = numericCount;
+		this.min = min;
+		this.max = max;
+		this.sum = sum;
+		this.firstTs = firstTs;
+		this.first = first;
+		this.lastTs = lastTs;
+		this.last = last;
+	}
+
+	/**
+	 * @param number numeric value of <em>value</em> or <em>NaN</em>
+	 */
+	void add(long ts, String value, double number) {
+		if(count == 0 || ts < firstTs) {
+			firstTs = ts;
+			first = value;
+		}
+		if(count == 0 || ts >= lastTs) {
+			lastTs = ts;
+			last = value;
+		}
+		count++;
+		if(!Double.isNaN(number)) {
+			if(numericCount == 0) {
+				min = number;
+				max = number;
+			} else {
+				if(number < min)
+					min = number;
+				if(number > max)
+					max = number;
+			}
+			sum += number;
+			numericCount++;
+		}
+	}
+
+	/**
+	 * Adds the samples of another aggregate of the same bucket.
+	 */
+	void merge(HistoryAggregate ha) {
+		if(ha.count == 0)
+			return;
+		if(count == 0 || ha.firstTs < firstTs) {
+			firstTs = ha.firstTs;
+			first = ha.first;
+		}
+		if(count == 0 || ha.lastTs >= lastTs) {
+			lastTs = ha.lastTs;
+			last = ha.last;
+		}
+		count += ha.count;
+		if(ha.numericCount > 0) {
+			min = (numericCount == 0) ? ha.min : Math.min(min, ha.min);
+			max = (numericCount == 0) ? ha.max : Math.max(max, ha.max);
+			sum += ha.sum;
+			numericCount += ha.numericCount;
+		}
+	}
+
+	/**
+	 * @return start of the bucket; a multiple of the width
+	 */
+	public long getStart() {
+		return start;
+	}
+
+	public long getWidth() {
+		return width;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * @return number of samples with a numeric value
+	 */
+	public int getNumericCount() {
+		return numericCount;
+	}
+
+	public double getMin() {
+		return min;
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getSum() {
+		return sum;
+	}
+
+	public double getAverage() {
+		return (numericCount == 0) ? Double.NaN : sum / numericCount;
+	}
+
+	public long getFirstTimestamp() {
+		return firstTs;
+	}
+
+	public String getFirst() {
+		return first;
+	}
+
+	public long getLastTimestamp() {
+		return lastTs;
+	}
+
+	public String getLast() {
+		return last;
+	}
+
+	/**
+	 * Writes the same representation as {@link #toShortString()} to <em>a</em>
+	 * @param a target
+	 */
+	public void writeShortTo(Appendable a) throws IOException {
+		Util.appendLong(a, start);
+		a.append(' ');
+		Util.appendLong(a, width);
+		a.append(' ');
+		Util.appendLong(a, count);
+		a.append(' ');
+		Util.appendLong(a, numericCount);
+		a.append(' ');
+		a.append(Double.toString(min));
+		a.append(' ');
+		a.append(Double.toString(max));
+		a.append(' ');
+		a.append(Double.toString(sum));
+		a.append(' ');
+		Util.appendLong(a, firstTs);
+		a.append(' ');
+		Util.urlencode(first, a);
+		a.append(' ');
+		Util.appendLong(a, lastTs);
+		a.append(' ');
+		Util.urlencode(last, a);
+	}
+
+	/**
+	 * @return <em>start width count numeric min max sum firstTs first lastTs last</em>
+	 * with the values url-encoded
+	 */
+	public String toShortString() {
+		StringBuilder sb = new StringBuilder();
+		try {
+			writeShortTo(sb);
+		} catch (IOException e) {
+			// StringBuilder does not throw
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return aggregate or <em>null</em> if the string is malformed
+	 */
+	public static HistoryAggregate fromShortString(String s) {
+		String [] words = Util.splitWS(s);
+		if(words.length != 11)
+			return null;
+		try {
+			HistoryAggregate ha = new HistoryAggregate(Long.parseLong(words[0]), Long.parseLong(words[1]),
+					Integer.parseInt(words[2]), Integer.parseInt(words[3]),
+					Double.parseDouble(words[4]), Double.parseDouble(words[5]), Double.parseDouble(words[6]),
+					Long.parseLong(words[7]), Util.urldecode(words[8]), Long.parseLong(words[9]), Util.urldecode(words[10]));
+			if(ha.width <= 0 || ha.count <= 0 || ha.numericCount < 0 || ha.numericCount > ha.count)
+				return null;
+			return ha;
+		} catch(NumberFormatException nfe) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return toShortString();
+	}
+}
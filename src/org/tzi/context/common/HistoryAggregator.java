@@ -0,0 +1,146 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Sorts samples into buckets of a fixed width and aggregates them in a
+ * single pass.</br>
+ * Buckets start at multiples of the width, so results of different
+ * queries and precomputed buckets line up. Samples may arrive in any
+ * order; in timestamp order each one costs a comparison and the number
+ * parse, which is skipped if the value is the same String as before.
+ * Not thread-safe.
+ */
+public class HistoryAggregator {
+
+	private final long width;
+	private final TreeMap<Long, HistoryAggregate> buckets = new TreeMap<Long, HistoryAggregate>();
+	private HistoryAggregate current = null;
+	private String lastValue = null;
+	private double lastNumber = Double.NaN;
+
+	/**
+	 * @param width bucket width in milliseconds
+	 */
+	public HistoryAggregator(long width) {
+		if(width <= 0)
+			throw new IllegalArgumentException("bucket width must be positive!");
+		this.width = width;
+	}
+
+	public long getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return start of the bucket containing ts
+	 */
+	public long bucketStart(long ts) {
+		long b = ts / width;
+		if(ts < 0 && b * width != ts)
+			b--;
+		return b * width;
+	}
+
+	private static double parse(String s) {
+		int len = s.length();
+		if(len == 0 || len > 32)
+			return Double.NaN;
+		char c = s.charAt(0);
+		if(!((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.'))
+			return Double.NaN;
+		try {
+			return Double.parseDouble(s);
+		} catch(NumberFormatException nfe) {
+			return Double.NaN;
+		}
+	}
+
+	private HistoryAggregate bucketFor(long ts) {
+		HistoryAggregate ha = current;
+		if(ha != null && ts >= ha.getStart() && ts - ha.getStart() < width)
+			return ha;
+		long start = bucketStart(ts);
+		ha = buckets.get(start);
+		if(ha == null) {
+			ha = new HistoryAggregate(start, width);
+			buckets.put(start, ha);
+		}
+		current = ha;
+		return ha;
+	}
+
+	public void add(long ts, String value) {
+		if(value != lastValue) {
+			lastValue = value;
+			lastNumber = parse(value);
+		}
+		bucketFor(ts).add(ts, value, lastNumber);
+	}
+
+	public void add(ContextElement ce) {
+		add(ce.getTimestamp(), ce.getValue());
+	}
+
+	public void addAll(List<ContextElement> ces) {
+		for(ContextElement ce : ces)
+			add(ce.getTimestamp(), ce.getValue());
+	}
+
+	/**
+	 * Adds a bucket aggregated elsewhere, e.g. a precomputed rollup.
+	 * @throws IllegalArgumentException if the width is not a multiple of
+	 * the aggregate's width
+	 */
+	public void add(HistoryAggregate ha) {
+		if(!fits(ha.getWidth()) || ha.getStart() % ha.getWidth() != 0)
+			throw new IllegalArgumentException("aggregate does not match the bucket width!");
+		bucketFor(ha.getStart()).merge(ha);
+	}
+
+	/**
+	 * @return <em>true</em> if buckets of the width can be added, i.e. each
+	 * lies within one bucket of this aggregator
+	 */
+	public boolean fits(long otherWidth) {
+		return otherWidth > 0 && width % otherWidth == 0;
+	}
+
+	/**
+	 * @return the non-empty buckets in time order
+	 */
+	public List<HistoryAggregate> getAggregates() {
+		return new ArrayList<HistoryAggregate>(buckets.values());
+	}
+
+	/**
+	 * Aggregates the history of any provider. Providers without a faster
+	 * way have all samples of the range read.
+	 * @see AggregatingHistoryProvider#getAggregatedHistory(Integer, long, long, long, Set)
+	 */
+	public static List<HistoryAggregate> aggregate(HistoryProvider hp, Integer prpId, long from, long to, long width, Set<String> withTags) {
+		if(hp instanceof AggregatingHistoryProvider)
+			return ((AggregatingHistoryProvider)hp).getAggregatedHistory(prpId, from, to, width, withTags);
+		HistoryAggregator agg = new HistoryAggregator(width);
+		agg.addAll(hp.getHistory(prpId, from, to, 0, withTags));
+		return agg.getAggregates();
+	}
+}
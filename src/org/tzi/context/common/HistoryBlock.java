@@ -0,0 +1,651 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Compressed encoding of a run of history samples of one property.</br>
+ * A block starts with a dictionary of the strings and tag sets it uses,
+ * followed by a bit stream with per sample:
+ * <ul>
+ * <li>the timestamp as delta-of-delta in 1, 9, 12, 16 or 68 bits</li>
+ * <li>the value: decimal numbers (<em>20</em>, <em>-3.125</em>,
+ * <em>20.50</em>) and numbers as printed by Java (<em>1.0E-5</em>) are
+ * XORed with the previous number and stored with the leading and trailing
+ * zero bits cut off; other values are dictionary ids. A kind change costs
+ * a few extra bits.</li>
+ * <li>one bit if tag set and persistence equal the previous sample,
+ * otherwise the tag set id and the persistent flag</li>
+ * </ul>
+ * Samples must be in timestamp order. Decoding reproduces the value
+ * strings exactly.
+ */
+public final class HistoryBlock {
+
+	private static final int KIND_DECIMAL = 0;
+	private static final int KIND_DOUBLE = 1;
+	private static final int KIND_STRING = 2;
+
+	private static final int MAX_SCALE = 31;
+
+	private HistoryBlock() {
+	}
+
+	private static final class BitWriter {
+		private byte [] buf;
+		private int len;
+		private long acc = 0;
+		private int nacc = 0;
+
+		public BitWriter(int capacity) {
+			buf = new byte [Math.max(capacity, 16)];
+		}
+
+		private void put(int b) {
+			if(len == buf.length) {
+				byte [] nb = new byte [buf.length * 2];
+				System.arraycopy(buf, 0, nb, 0, len);
+				buf = nb;
+			}
+			buf[len++] = (byte)b;
+		}
+
+		public void write(long bits, int n) {
+			if(n > 32) {
+				write(bits >>> 32, n - 32);
+				write(bits & 0xFFFFFFFFL, 32);
+				return;
+			}
+			if(n == 0)
+				return;
+			acc = (acc << n) | (bits & ((1L << n) - 1));
+			nacc += n;
+			while(nacc >= 8) {
+				put((int)(acc >>> (nacc - 8)));
+				nacc -= 8;
+			}
+		}
+
+		public void writeBit(boolean b) {
+			write(b ? 1 : 0, 1);
+		}
+
+		public void writeVarInt(int v) {
+			while((v & ~0x7F) != 0) {
+				write((v & 0x7F) | 0x80, 8);
+				v >>>= 7;
+			}
+			write(v, 8);
+		}
+
+		public void writeBytes(byte [] b) {
+			writeVarInt(b.length);
+			if(nacc == 0) {
+				for(byte x : b)
+					put(x);
+			} else {
+				for(byte x : b)
+					write(x, 8);
+			}
+		}
+
+		public byte [] finish() {
+			if(nacc > 0) {
+				put((int)(acc << (8 - nacc)));
+				nacc = 0;
+			}
+			byte [] r = new byte [len];
+			System.arraycopy(buf, 0, r, 0, len);
+			return r;
+		}
+	}
+
+	private static final class BitReader {
+		private final ByteBuffer bb;
+		private long acc = 0;
+		private int nacc = 0;
+
+		public BitReader(ByteBuffer bb) {
+			this.bb = bb;
+		}
+
+		public long read(int n) {
+			if(n > 32) {
+				long hi = read(n - 32);
+				return (hi << 32) | read(32);
+			}
+			if(n == 0)
+				return 0;
+			while(nacc < n) {
+				acc = (acc << 8) | (bb.get() & 0xFF);
+				nacc += 8;
+			}
+			nacc -= n;
+			return (acc >>> nacc) & ((1L << n) - 1);
+		}
+
+		public boolean readBit() {
+			return read(1) != 0;
+		}
+
+		public int readVarInt() {
+			int v = 0;
+			for(int shift = 0; shift < 32; shift += 7) {
+				int b = (int)read(8);
+				v |= (b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					return v;
+			}
+			throw new BufferUnderflowException();
+		}
+
+		public String readString() {
+			int n = readVarInt();
+			if(n < 0)
+				throw new BufferUnderflowException();
+			byte [] b = new byte [n];
+			if(nacc == 0) {
+				bb.get(b);
+			} else {
+				for(int i=0; i<n; i++)
+					b[i] = (byte)read(8);
+			}
+			return new String(b, Protocol.protocolCharset);
+		}
+	}
+
+	private static int bitsFor(int n) {
+		return (n <= 1) ? 0 : 32 - Integer.numberOfLeadingZeros(n - 1);
+	}
+
+	/**
+	 * Classification of a value: kind, bit pattern and decimal scale.
+	 */
+	private static final class Value {
+		private int kind;
+		private long pattern;
+		private int scale;
+
+		public void classify(String s) {
+			if(parseDecimal(s))
+				return;
+			if(s.length() > 0 && s.length() < 32) {
+				char c = s.charAt(0);
+				if((c >= '0' && c <= '9') || c == '-') {
+					try {
+						double d = Double.parseDouble(s);
+						if(Double.toString(d).equals(s)) {
+							kind = KIND_DOUBLE;
+							pattern = Double.doubleToRawLongBits(d);
+							return;
+						}
+					} catch(NumberFormatException nfe) {
+						// not a number
+					}
+				}
+			}
+			kind = KIND_STRING;
+		}
+
+		/**
+		 * accepts exactly the strings {@link HistoryBlock#formatDecimal(long, int)} produces
+		 */
+		private boolean parseDecimal(String s) {
+			int n = s.length();
+			int i = 0;
+			boolean negative = false;
+			if(n > 0 && s.charAt(0) == '-') {
+				negative = true;
+				i = 1;
+			}
+			int intStart = i;
+			long unscaled = 0;
+			int digits = 0;
+			while(i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+				unscaled = unscaled * 10 + (s.charAt(i) - '0');
+				digits++;
+				i++;
+			}
+			int intDigits = i - intStart;
+			if(intDigits == 0 || (intDigits > 1 && s.charAt(intStart) == '0'))
+				return false;
+			int sc = 0;
+			if(i < n) {
+				if(s.charAt(i) != '.')
+					return false;
+				i++;
+				while(i < n && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+					unscaled = unscaled * 10 + (s.charAt(i) - '0');
+					digits++;
+					sc++;
+					i++;
+				}
+				if(sc == 0 || i < n)
+					return false;
+			}
+			if(digits > 18 || sc > MAX_SCALE)
+				return false;
+			if(negative) {
+				if(unscaled == 0)
+					return false;
+				unscaled = -unscaled;
+			}
+			kind = KIND_DECIMAL;
+			pattern = unscaled;
+			scale = sc;
+			return true;
+		}
+	}
+
+	private static String formatDecimal(long unscaled, int scale) {
+		if(scale == 0)
+			return Long.toString(unscaled);
+		String digits = Long.toString(Math.abs(unscaled));
+		StringBuilder sb = new StringBuilder(digits.length() + scale + 3);
+		if(unscaled < 0)
+			sb.append('-');
+		if(digits.length() <= scale) {
+			sb.append("0.");
+			for(int i = digits.length(); i < scale; i++)
+				sb.append('0');
+			sb.append(digits);
+		} else {
+			sb.append(digits, 0, digits.length() - scale);
+			sb.append('.');
+			sb.append(digits, digits.length() - scale, digits.length());
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * state of the XOR encoding of numeric values
+	 */
+	private static final class XorState {
+		private long prev = 0;
+		private int leading = -1;
+		private int trailing = 0;
+
+		public void reset() {
+			prev = 0;
+			leading = -1;
+			trailing = 0;
+		}
+
+		public void write(BitWriter w, long pattern) {
+			long x = pattern ^ prev;
+			prev = pattern;
+			if(x == 0) {
+				w.writeBit(false);
+				return;
+			}
+			w.writeBit(true);
+			int lead = Math.min(Long.numberOfLeadingZeros(x), 63);
+			int trail = Long.numberOfTrailingZeros(x);
+			if(leading >= 0 && lead >= leading && trail >= trailing) {
+				w.writeBit(false);
+				w.write(x >>> trailing, 64 - leading - trailing);
+			} else {
+				int sig = 64 - lead - trail;
+				w.writeBit(true);
+				w.write(lead, 6);
+				w.write(sig - 1, 6);
+				w.write(x >>> trail, sig);
+				leading = lead;
+				trailing = trail;
+			}
+		}
+
+		public long read(BitReader r) {
+			if(!r.readBit())
+				return prev;
+			long x;
+			if(!r.readBit()) {
+				x = r.read(64 - leading - trailing) << trailing;
+			} else {
+				int lead = (int)r.read(6);
+				int sig = (int)r.read(6) + 1;
+				int trail = 64 - lead - sig;
+				if(trail < 0)
+					throw new BufferUnderflowException();
+				x = r.read(sig) << trail;
+				leading = lead;
+				trailing = trail;
+			}
+			prev ^= x;
+			return prev;
+		}
+	}
+
+	private static void writeTimestampDod(BitWriter w, long dod) {
+		if(dod == 0) {
+			w.writeBit(false);
+		} else if(dod >= -63 && dod <= 64) {
+			w.write(0x2, 2);
+			w.write(dod + 63, 7);
+		} else if(dod >= -255 && dod <= 256) {
+			w.write(0x6, 3);
+			w.write(dod + 255, 9);
+		} else if(dod >= -2047 && dod <= 2048) {
+			w.write(0xE, 4);
+			w.write(dod + 2047, 12);
+		} else {
+			w.write(0xF, 4);
+			w.write(dod, 64);
+		}
+	}
+
+	private static long readTimestampDod(BitReader r) {
+		if(!r.readBit())
+			return 0;
+		if(!r.readBit())
+			return r.read(7) - 63;
+		if(!r.readBit())
+			return r.read(9) - 255;
+		if(!r.readBit())
+			return r.read(12) - 2047;
+		return r.read(64);
+	}
+
+	/**
+	 * Encodes samples of one property.
+	 * @param ces samples in timestamp order; source and property are not stored
+	 * @return encoded block
+	 */
+	public static byte [] encode(List<ContextElement> ces) {
+		int n = ces.size();
+		Value [] vals = new Value [n];
+		Map<String, Integer> strings = new HashMap<String, Integer>();
+		List<String> stringList = new ArrayList<String>();
+		Map<Set<String>, Integer> tagSets = new HashMap<Set<String>, Integer>();
+		List<Set<String>> tagSetList = new ArrayList<Set<String>>();
+		int [] tagSetIds = new int [n];
+
+		for(int i=0; i<n; i++) {
+			ContextElement ce = ces.get(i);
+			Value v = new Value();
+			v.classify(ce.getValue());
+			vals[i] = v;
+			if(v.kind == KIND_STRING)
+				intern(ce.getValue(), strings, stringList);
+			Integer ts = tagSets.get(ce.getTypeTags());
+			if(ts == null) {
+				ts = tagSetList.size();
+				tagSets.put(ce.getTypeTags(), ts);
+				tagSetList.add(ce.getTypeTags());
+				for(String tag : ce.getTypeTags())
+					intern(tag, strings, stringList);
+			}
+			tagSetIds[i] = ts;
+		}
+
+		BitWriter w = new BitWriter(64 + n * 4);
+		w.writeVarInt(n);
+		w.writeVarInt(stringList.size());
+		for(String s : stringList)
+			w.writeBytes(s.getBytes(Protocol.protocolCharset));
+		w.writeVarInt(tagSetList.size());
+		for(Set<String> tags : tagSetList) {
+			w.writeVarInt(tags.size());
+			for(String tag : tags)
+				w.writeVarInt(strings.get(tag));
+		}
+		if(n == 0)
+			return w.finish();
+
+		int stringBits = bitsFor(stringList.size());
+		int tagSetBits = bitsFor(tagSetList.size());
+
+		long prevTs = ces.get(0).getTimestamp();
+		long prevDelta = 0;
+		w.write(prevTs, 64);
+		int prevKind = -1;
+		int prevScale = -1;
+		int prevMeta = -1;
+		XorState xor = new XorState();
+		for(int i=0; i<n; i++) {
+			ContextElement ce = ces.get(i);
+			if(i > 0) {
+				long delta = ce.getTimestamp() - prevTs;
+				writeTimestampDod(w, delta - prevDelta);
+				prevTs = ce.getTimestamp();
+				prevDelta = delta;
+			}
+
+			Value v = vals[i];
+			if(v.kind == prevKind && (v.kind != KIND_DECIMAL || v.scale == prevScale)) {
+				w.writeBit(false);
+			} else {
+				w.writeBit(true);
+				w.write(v.kind, 2);
+				if(v.kind == KIND_DECIMAL)
+					w.write(v.scale, 5);
+				xor.reset();
+				prevKind = v.kind;
+				prevScale = v.scale;
+			}
+			if(v.kind == KIND_STRING)
+				w.write(strings.get(ce.getValue()), stringBits);
+			else
+				xor.write(w, v.pattern);
+
+			int meta = (tagSetIds[i] << 1) | (ce.isPersistent() ? 1 : 0);
+			if(meta == prevMeta) {
+				w.writeBit(false);
+			} else {
+				w.writeBit(true);
+				w.write(tagSetIds[i], tagSetBits);
+				w.writeBit(ce.isPersistent());
+				prevMeta = meta;
+			}
+		}
+		return w.finish();
+	}
+
+	private static void intern(String s, Map<String, Integer> strings, List<String> stringList) {
+		if(!strings.containsKey(s)) {
+			strings.put(s, stringList.size());
+			stringList.add(s);
+		}
+	}
+
+	/**
+	 * Dictionary part of a block.
+	 */
+	static final class Header {
+		private int count;
+		private String [] strings;
+		private List<Set<String>> tagSets;
+		private BitReader reader;
+
+		public int getCount() {
+			return count;
+		}
+
+		public List<Set<String>> getTagSets() {
+			return tagSets;
+		}
+
+		/**
+		 * @return per tag set whether it has one of the tags; <em>null</em> if none has
+		 */
+		public boolean [] matchTags(Set<String> withTags) {
+			boolean [] m = new boolean [tagSets.size()];
+			boolean any = false;
+			for(int i=0; i<m.length; i++) {
+				for(String tag : tagSets.get(i)) {
+					if(withTags.contains(tag)) {
+						m[i] = true;
+						any = true;
+						break;
+					}
+				}
+			}
+			return any ? m : null;
+		}
+	}
+
+	/**
+	 * Reads the dictionary of a block.
+	 * @param bb encoded block from its position to its limit; consumed
+	 * @throws BufferUnderflowException if the block is malformed
+	 */
+	static Header readHeader(ByteBuffer bb) {
+		Header h = new Header();
+		BitReader r = new BitReader(bb);
+		h.reader = r;
+		h.count = r.readVarInt();
+		int ns = r.readVarInt();
+		if(h.count < 0 || ns < 0 || ns > bb.remaining())
+			throw new BufferUnderflowException();
+		h.strings = new String [ns];
+		for(int i=0; i<ns; i++)
+			h.strings[i] = r.readString();
+		int nt = r.readVarInt();
+		if(nt < 0 || nt > bb.remaining() + 1)
+			throw new BufferUnderflowException();
+		h.tagSets = new ArrayList<Set<String>>(nt);
+		for(int i=0; i<nt; i++) {
+			int size = r.readVarInt();
+			Set<String> tags = new TreeSet<String>();
+			for(int j=0; j<size; j++) {
+				int id = r.readVarInt();
+				if(id < 0 || id >= ns)
+					throw new BufferUnderflowException();
+				tags.add(h.strings[id]);
+			}
+			h.tagSets.add(Collections.unmodifiableSet(tags));
+		}
+		return h;
+	}
+
+	/**
+	 * Decodes the samples of a block with from &lt;= timestamp &lt;= to.
+	 * @param bb encoded block from its position to its limit; consumed
+	 * @param source source of the samples
+	 * @param property property of the samples
+	 * @param limit maximum number of samples to add; &lt;= 0 for all
+	 * @param withTags samples need one of these tags; <em>null</em> or empty for all
+	 * @param out receives the samples
+	 * @return number of samples added
+	 * @throws BufferUnderflowException if the block is malformed
+	 */
+	public static int decode(ByteBuffer bb, String source, String property, long from, long to, int limit, Set<String> withTags, List<ContextElement> out) {
+		Header h = readHeader(bb);
+		boolean [] tagMatch = null;
+		if(withTags != null && !withTags.isEmpty()) {
+			tagMatch = h.matchTags(withTags);
+			if(tagMatch == null)
+				return 0;
+		}
+		return decode(h, source, property, from, to, limit, tagMatch, out);
+	}
+
+	/**
+	 * Decodes the samples after the header.
+	 * @param tagMatch per tag set whether it is accepted; <em>null</em> for all
+	 */
+	static int decode(Header h, String source, String property, long from, long to, int limit, boolean [] tagMatch, List<ContextElement> out) {
+		int n = h.count;
+		if(n == 0)
+			return 0;
+		BitReader r = h.reader;
+		int stringBits = bitsFor(h.strings.length);
+		int tagSetBits = bitsFor(h.tagSets.size());
+
+		long ts = r.read(64);
+		long delta = 0;
+		int kind = -1;
+		int scale = 0;
+		int tagSet = -1;
+		boolean persistent = false;
+		XorState xor = new XorState();
+		String lastValue = null;
+		long lastPattern = 0;
+		int lastKind = -1;
+		int lastScale = 0;
+		int added = 0;
+		for(int i=0; i<n; i++) {
+			if(i > 0) {
+				delta += readTimestampDod(r);
+				ts += delta;
+			}
+			if(ts > to)
+				break;
+
+			if(r.readBit()) {
+				kind = (int)r.read(2);
+				if(kind == KIND_DECIMAL)
+					scale = (int)r.read(5);
+				else if(kind != KIND_DOUBLE && kind != KIND_STRING)
+					throw new BufferUnderflowException();
+				xor.reset();
+			} else if(kind < 0) {
+				throw new BufferUnderflowException();
+			}
+			int stringId = -1;
+			long pattern = 0;
+			if(kind == KIND_STRING) {
+				stringId = (int)r.read(stringBits);
+				if(stringId >= h.strings.length)
+					throw new BufferUnderflowException();
+			} else {
+				pattern = xor.read(r);
+			}
+
+			if(r.readBit()) {
+				tagSet = (int)r.read(tagSetBits);
+				if(tagSet >= h.tagSets.size())
+					throw new BufferUnderflowException();
+				persistent = r.readBit();
+			} else if(tagSet < 0) {
+				throw new BufferUnderflowException();
+			}
+
+			if(ts < from || (tagMatch != null && !tagMatch[tagSet]))
+				continue;
+			String value;
+			if(kind == KIND_STRING) {
+				value = h.strings[stringId];
+			} else if(lastValue != null && pattern == lastPattern && kind == lastKind && scale == lastScale) {
+				// slowly changing values repeat often
+				value = lastValue;
+			} else {
+				if(kind == KIND_DECIMAL)
+					value = formatDecimal(pattern, scale);
+				else
+					value = Double.toString(Double.longBitsToDouble(pattern));
+				lastValue = value;
+				lastPattern = pattern;
+				lastKind = kind;
+				lastScale = scale;
+			}
+			out.add(new ContextElement(h.tagSets.get(tagSet), source, property, value, ts, persistent));
+			added++;
+			if(limit > 0 && added >= limit)
+				break;
+		}
+		return added;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Iterates a history query page by page, so at most one page of elements
+ * is held in memory.</br>
+ * {@link #getContinuation()} returns a token for the position after the
+ * last element returned by {@link #next()}; a new cursor started with it
+ * continues there, e.g. after a reconnect.
+ * @see HistoryPage
+ */
+public class HistoryCursor implements Iterator<ContextElement> {
+
+	public static final int DEFAULT_PAGE_SIZE = 1024;
+
+	private final HistoryProvider hp;
+	private final Integer prpId;
+	private final long from;
+	private final long to;
+	private final int pageSize;
+	private final Set<String> withTags;
+
+	private List<ContextElement> page = null;
+	private int index = 0;
+	private String pageContinuation;
+	private boolean lastPage = false;
+
+	private long lastTs;
+	private int seen = 0;
+	private String continuation;
+
+	public HistoryCursor(HistoryProvider hp, Integer prpId, long from, long to, Set<String> withTags) {
+		this(hp, prpId, from, to, DEFAULT_PAGE_SIZE, withTags, null);
+	}
+
+	/**
+	 * @param pageSize number of elements read at once
+	 * @param continuation token to start after; <em>null</em> to start at <em>from</em>
+	 * @throws IllegalArgumentException if the token is malformed
+	 */
+	public HistoryCursor(HistoryProvider hp, Integer prpId, long from, long to, int pageSize, Set<String> withTags, String continuation) {
+		if(pageSize <= 0)
+			throw new IllegalArgumentException("page size must be positive!");
+		this.hp = hp;
+		this.prpId = prpId;
+		this.from = from;
+		this.to = to;
+		this.pageSize = pageSize;
+		this.withTags = withTags;
+		this.pageContinuation = continuation;
+		this.continuation = continuation;
+		if(continuation != null) {
+			long [] c = HistoryPage.parseContinuation(continuation);
+			lastTs = c[0];
+			seen = (int)c[1];
+		}
+	}
+
+	public boolean hasNext() {
+		while(page == null || index >= page.size()) {
+			if(lastPage)
+				return false;
+			HistoryPage hpg = HistoryPage.fetch(hp, prpId, from, to, pageSize, withTags, pageContinuation);
+			page = hpg.getElements();
+			index = 0;
+			pageContinuation = hpg.getContinuation();
+			lastPage = !hpg.hasMore();
+		}
+		return true;
+	}
+
+	public ContextElement next() {
+		if(!hasNext())
+			throw new NoSuchElementException();
+		ContextElement ce = page.get(index++);
+		if(ce.getTimestamp() != lastTs || seen == 0) {
+			lastTs = ce.getTimestamp();
+			seen = 0;
+		}
+		seen++;
+		continuation = null;
+		return ce;
+	}
+
+	/**
+	 * @return the elements of the current page not returned by {@link #next()} yet;
+	 * reads the next page if this one is used up
+	 */
+	public List<ContextElement> nextPage() {
+		if(!hasNext())
+			throw new NoSuchElementException();
+		List<ContextElement> rest = page.subList(index, page.size());
+		for(ContextElement ce : rest) {
+			if(ce.getTimestamp() != lastTs || seen == 0) {
+				lastTs = ce.getTimestamp();
+				seen = 0;
+			}
+			seen++;
+		}
+		continuation = null;
+		index = page.size();
+		return rest;
+	}
+
+	/**
+	 * @return token to continue after the last returned element;
+	 * <em>null</em> if nothing was returned and the cursor was not started
+	 * with a token
+	 */
+	public String getContinuation() {
+		if(continuation == null && seen > 0)
+			continuation = HistoryPage.continuation(lastTs, seen);
+		return continuation;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,119 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * One page of a history query and the token to continue after it.</br>
+ * A continuation token is the timestamp of the last element returned and
+ * the number of returned elements with that timestamp, so it stays valid
+ * while new samples are appended and needs no state in the provider.
+ * Repeat the query with the same range and tags to get the next page.
+ * @see HistoryCursor
+ */
+public final class HistoryPage {
+
+	private final List<ContextElement> elements;
+	private final String continuation;
+
+	public HistoryPage(List<ContextElement> elements, String continuation) {
+		this.elements = Collections.unmodifiableList(elements);
+		this.continuation = continuation;
+	}
+
+	public List<ContextElement> getElements() {
+		return elements;
+	}
+
+	/**
+	 * @return token for the next page; <em>null</em> if this is the last one
+	 */
+	public String getContinuation() {
+		return continuation;
+	}
+
+	public boolean hasMore() {
+		return continuation != null;
+	}
+
+	static String continuation(long ts, int seen) {
+		return ts + "/" + seen;
+	}
+
+	/**
+	 * @return timestamp and count of a continuation token
+	 * @throws IllegalArgumentException if the token is malformed
+	 */
+	static long [] parseContinuation(String token) {
+		int slash = token.indexOf('/');
+		try {
+			if(slash > 0) {
+				long ts = Long.parseLong(token.substring(0, slash));
+				long seen = Long.parseLong(token.substring(slash + 1));
+				if(seen > 0 && seen <= Integer.MAX_VALUE)
+					return new long [] { ts, seen };
+			}
+		} catch(NumberFormatException nfe) {
+		}
+		throw new IllegalArgumentException("Malformed continuation token '" + token + "'!");
+	}
+
+	/**
+	 * Reads one page of a history query.
+	 * @param pageSize maximum number of elements in the page
+	 * @param continuation token of the previous page; <em>null</em> to start at <em>from</em>
+	 * @throws IllegalArgumentException if the token is malformed
+	 */
+	public static HistoryPage fetch(HistoryProvider hp, Integer prpId, long from, long to, int pageSize, Set<String> withTags, String continuation) {
+		if(pageSize <= 0)
+			throw new IllegalArgumentException("page size must be positive!");
+		long start = from;
+		int skip = 0;
+		if(continuation != null) {
+			long [] c = parseContinuation(continuation);
+			if(c[0] >= from) {
+				start = c[0];
+				skip = (int)c[1];
+			}
+		}
+		List<ContextElement> page = new ArrayList<ContextElement>(pageSize);
+		if(start > to)
+			return new HistoryPage(page, null);
+
+		// one more than needed tells if there is another page
+		int limit = (int)Math.min(Integer.MAX_VALUE, (long)skip + pageSize + 1);
+		List<ContextElement> l = hp.getHistory(prpId, start, to, limit, withTags);
+		int i = 0;
+		while(i < skip && i < l.size() && l.get(i).getTimestamp() == start)
+			i++;
+		int seen = i;
+		long lastTs = start;
+		for(; i < l.size() && page.size() < pageSize; i++) {
+			ContextElement ce = l.get(i);
+			if(ce.getTimestamp() != lastTs) {
+				lastTs = ce.getTimestamp();
+				seen = 0;
+			}
+			seen++;
+			page.add(ce);
+		}
+		return new HistoryPage(page, (i < l.size()) ? continuation(lastTs, seen) : null);
+	}
+}
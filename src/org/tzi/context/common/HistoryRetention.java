@@ -0,0 +1,216 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rules how long history is kept.</br>
+ * A rule applies to a source, a property and a tag, each of which may be
+ * the wildcard {@link Context#ALL_SOURCES}, {@link Context#ALL_PROPERTIES}
+ * or {@link Context#ALL_TAGS}. A sample is governed by the most specific
+ * matching rule, a tag counting more than a property and a property more
+ * than a source; among equally specific rules the one keeping raw samples
+ * longest wins. Samples without a rule are kept forever.</br>
+ * Raw samples older than the raw age are removed; if the rule has a rollup
+ * width they are first aggregated into buckets of that width, which are
+ * kept for the rollup age. Ages are relative to the time the compaction
+ * runs. A history store keeps one retention, so per context policies use
+ * the store of that context. Thread-safe.
+ * @see SegmentHistoryProvider#setRetention(HistoryRetention)
+ */
+public class HistoryRetention {
+
+	/**
+	 * age meaning no limit
+	 */
+	public static final long FOREVER = 0;
+
+	public static final class Rule {
+		private final String source;
+		private final String property;
+		private final String tag;
+		private final long rawAge;
+		private final long rollupWidth;
+		private final long rollupAge;
+
+		private Rule(String source, String property, String tag, long rawAge, long rollupWidth, long rollupAge) {
+			this.source = source;
+			this.property = property;
+			this.tag = tag;
+			this.rawAge = rawAge;
+			this.rollupWidth = rollupWidth;
+			this.rollupAge = rollupAge;
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		public String getProperty() {
+			return property;
+		}
+
+		public String getTag() {
+			return tag;
+		}
+
+		/**
+		 * @return milliseconds raw samples are kept; {@link HistoryRetention#FOREVER} for no limit
+		 */
+		public long getRawAge() {
+			return rawAge;
+		}
+
+		/**
+		 * @return bucket width of the rollups in milliseconds; 0 for no rollups
+		 */
+		public long getRollupWidth() {
+			return rollupWidth;
+		}
+
+		/**
+		 * @return milliseconds rollups are kept; {@link HistoryRetention#FOREVER} for no limit
+		 */
+		public long getRollupAge() {
+			return rollupAge;
+		}
+
+		private boolean matches(String source, String property) {
+			return (this.source.equals(Context.ALL_SOURCES) || this.source.equals(source))
+				&& (this.property.equals(Context.ALL_PROPERTIES) || this.property.equals(property));
+		}
+
+		private boolean matches(String source, String property, Set<String> tags) {
+			return matches(source, property) && (tag.equals(Context.ALL_TAGS) || tags.contains(tag));
+		}
+
+		private int specificity() {
+			return (source.equals(Context.ALL_SOURCES) ? 0 : 1)
+				+ (property.equals(Context.ALL_PROPERTIES) ? 0 : 2)
+				+ (tag.equals(Context.ALL_TAGS) ? 0 : 4);
+		}
+
+		/**
+		 * @return <em>true</em> if samples at time <em>ts</em> are past the raw age
+		 */
+		public boolean expires(long ts, long now) {
+			return rawAge != FOREVER && ts < now - rawAge;
+		}
+
+		/**
+		 * @return <em>true</em> if an expiring sample at time <em>ts</em> goes into a rollup
+		 */
+		public boolean rollsUp(long ts, long now) {
+			return rollupWidth > 0 && (rollupAge == FOREVER || ts >= now - rollupAge);
+		}
+
+		@Override
+		public String toString() {
+			return source + " " + property + " " + tag + " raw " + rawAge + " rollup " + rollupWidth + " for " + rollupAge;
+		}
+	}
+
+	private volatile List<Rule> rules = Collections.emptyList();
+
+	/**
+	 * Adds a rule, replacing one for the same source, property and tag.
+	 * @param rawAge milliseconds raw samples are kept; {@link #FOREVER} for no limit
+	 * @param rollupWidth bucket width of rollups of removed samples; 0 for none
+	 * @param rollupAge milliseconds rollups are kept; {@link #FOREVER} for no limit
+	 * @return this retention
+	 */
+	public synchronized HistoryRetention addRule(String source, String property, String tag, long rawAge, long rollupWidth, long rollupAge) {
+		if(source == null || property == null || tag == null)
+			throw new IllegalArgumentException("use the wildcards of Context instead of null!");
+		if(rawAge < 0 || rollupWidth < 0 || rollupAge < 0)
+			throw new IllegalArgumentException("ages and width must not be negative!");
+		List<Rule> nr = new ArrayList<Rule>(rules.size() + 1);
+		for(Rule r : rules) {
+			if(!(r.source.equals(source) && r.property.equals(property) && r.tag.equals(tag)))
+				nr.add(r);
+		}
+		nr.add(new Rule(source, property, tag, rawAge, rollupWidth, rollupAge));
+		rules = Collections.unmodifiableList(nr);
+		return this;
+	}
+
+	/**
+	 * Keeps raw samples of everything for <em>rawAge</em> and rollups of
+	 * width <em>rollupWidth</em> for <em>rollupAge</em>.
+	 */
+	public HistoryRetention setDefault(long rawAge, long rollupWidth, long rollupAge) {
+		return addRule(Context.ALL_SOURCES, Context.ALL_PROPERTIES, Context.ALL_TAGS, rawAge, rollupWidth, rollupAge);
+	}
+
+	public List<Rule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * @return rule governing a sample; <em>null</em> if it is kept forever
+	 */
+	public Rule ruleFor(String source, String property, Set<String> tags) {
+		Rule best = null;
+		for(Rule r : rules) {
+			if(!r.matches(source, property, tags))
+				continue;
+			if(best == null || r.specificity() > best.specificity()
+					|| (r.specificity() == best.specificity() && keepsLonger(r, best)))
+				best = r;
+		}
+		return best;
+	}
+
+	private static boolean keepsLonger(Rule a, Rule b) {
+		if(b.rawAge == FOREVER)
+			return false;
+		return a.rawAge == FOREVER || a.rawAge > b.rawAge;
+	}
+
+	/**
+	 * @return shortest raw age of the rules for a source and property;
+	 * {@link #FOREVER} if none of their samples ever expires
+	 */
+	public long minRawAge(String source, String property) {
+		long min = FOREVER;
+		for(Rule r : rules) {
+			if(r.matches(source, property) && r.rawAge != FOREVER && (min == FOREVER || r.rawAge < min))
+				min = r.rawAge;
+		}
+		return min;
+	}
+
+	/**
+	 * @return longest age of rollups of a width for a source and property;
+	 * {@link #FOREVER} if they are kept forever
+	 */
+	public long maxRollupAge(String source, String property, long rollupWidth) {
+		long max = -1;
+		for(Rule r : rules) {
+			if(!r.matches(source, property) || r.rollupWidth != rollupWidth)
+				continue;
+			if(r.rollupAge == FOREVER)
+				return FOREVER;
+			max = Math.max(max, r.rollupAge);
+		}
+		// rollups without a rule any more are kept
+		return (max < 0) ? FOREVER : max;
+	}
+}
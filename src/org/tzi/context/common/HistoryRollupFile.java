@@ -0,0 +1,362 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Rollups of one property and bucket width.</br>
+ * Layout: header (magic, format, width, source and property name), then
+ * chunks of <em>length, crc32, first and last bucket start, count</em>
+ * and the {@link HistoryAggregate}s of one compaction. Chunk bounds are
+ * kept in memory so reads only touch overlapping chunks; a torn tail is
+ * cut off when the file is opened.</br>
+ * Reads are thread-safe; appends and {@link #expire(long)} must come from
+ * one thread at a time. Expiring rewrites the file without blocking reads
+ * until the new file is swapped in.
+ */
+final class HistoryRollupFile {
+
+	public static final int MAGIC = 0x43545852; // "CTXR"
+	public static final int FORMAT = 1;
+
+	public static final String PREFIX = "rollup-";
+	public static final String SUFFIX = ".agg";
+
+	private final File file;
+	private final long width;
+	private String source;
+	private String property;
+	private FileChannel channel;
+	private long headerEnd;
+	private long end;
+	private CRC32 crc = new CRC32();
+
+	private List<long []> chunks = new ArrayList<long []>();
+	private int count = 0;
+
+	private HistoryRollupFile(File file, long width) {
+		this.file = file;
+		this.width = width;
+	}
+
+	public static File fileFor(File dir, long width) {
+		return new File(dir, PREFIX + width + SUFFIX);
+	}
+
+	/**
+	 * @return width encoded in a file name; -1 if it is no rollup file
+	 */
+	public static long widthOf(File f) {
+		String name = f.getName();
+		if(!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+			return -1;
+		try {
+			long w = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+			return (w > 0) ? w : -1;
+		} catch(NumberFormatException nfe) {
+			return -1;
+		}
+	}
+
+	public static HistoryRollupFile create(File file, long width, String source, String property) throws IOException {
+		HistoryRollupFile rf = new HistoryRollupFile(file, width);
+		rf.source = source;
+		rf.property = property;
+		rf.channel = new RandomAccessFile(file, "rw").getChannel();
+		rf.channel.truncate(0);
+		byte [] s = Protocol.encodeString(source);
+		byte [] p = Protocol.encodeString(property);
+		ByteBuffer bb = ByteBuffer.allocate(24 + s.length + p.length);
+		bb.putInt(MAGIC);
+		bb.putInt(FORMAT);
+		bb.putLong(width);
+		bb.putInt(s.length);
+		bb.put(s);
+		bb.putInt(p.length);
+		bb.put(p);
+		bb.flip();
+		rf.write(bb, 0);
+		rf.headerEnd = bb.limit();
+		rf.end = rf.headerEnd;
+		return rf;
+	}
+
+	/**
+	 * @throws IOException if the file is not a rollup file of this width
+	 */
+	public static HistoryRollupFile open(File file, long width) throws IOException {
+		HistoryRollupFile rf = new HistoryRollupFile(file, width);
+		rf.channel = new RandomAccessFile(file, "rw").getChannel();
+		boolean ok = false;
+		try {
+			rf.scan();
+			ok = true;
+		} finally {
+			if(!ok)
+				rf.channel.close();
+		}
+		return rf;
+	}
+
+	private void scan() throws IOException {
+		long length = channel.size();
+		ByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		try {
+			if(bb.getInt() != MAGIC || bb.getInt() != FORMAT || bb.getLong() != width)
+				throw new IOException(file + " is not a rollup file of width " + width + "!");
+			source = getString(bb);
+			property = getString(bb);
+		} catch(BufferUnderflowException bue) {
+			throw new IOException(file + " has a broken header!");
+		}
+		headerEnd = bb.position();
+		long pos = headerEnd;
+		while(pos + 28 <= length) {
+			bb.position((int)pos);
+			int len = bb.getInt();
+			int checksum = bb.getInt();
+			if(len < 20 || pos + 8 + len > length)
+				break;
+			ByteBuffer body = bb.duplicate();
+			body.limit((int)(pos + 8 + len));
+			crc.reset();
+			crc.update(body);
+			if((int)crc.getValue() != checksum)
+				break;
+			long minStart = bb.getLong();
+			long maxStart = bb.getLong();
+			int n = bb.getInt();
+			chunks.add(new long [] { pos, minStart, maxStart });
+			count += n;
+			pos += 8 + len;
+		}
+		end = pos;
+		if(pos < length)
+			channel.truncate(pos);
+	}
+
+	private void write(ByteBuffer bb, long pos) throws IOException {
+		while(bb.hasRemaining())
+			pos += channel.write(bb, pos);
+	}
+
+	private static String getString(ByteBuffer bb) {
+		int len = bb.getInt();
+		if(len < 0 || len > bb.remaining())
+			throw new BufferUnderflowException();
+		byte [] b = new byte [len];
+		bb.get(b);
+		return new String(b, Protocol.protocolCharset);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getWidth() {
+		return width;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public String getProperty() {
+		return property;
+	}
+
+	/**
+	 * @return number of buckets
+	 */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	private static ByteBuffer encode(List<HistoryAggregate> aggregates, CRC32 crc) {
+		List<byte []> strings = new ArrayList<byte []>(aggregates.size() * 2);
+		int size = 28;
+		long minStart = Long.MAX_VALUE;
+		long maxStart = Long.MIN_VALUE;
+		for(HistoryAggregate ha : aggregates) {
+			byte [] f = Protocol.encodeString(ha.getFirst());
+			byte [] l = Protocol.encodeString(ha.getLast());
+			strings.add(f);
+			strings.add(l);
+			size += 64 + f.length + l.length;
+			minStart = Math.min(minStart, ha.getStart());
+			maxStart = Math.max(maxStart, ha.getStart());
+		}
+		ByteBuffer bb = ByteBuffer.allocate(size);
+		bb.position(8);
+		bb.putLong(minStart);
+		bb.putLong(maxStart);
+		bb.putInt(aggregates.size());
+		int i = 0;
+		for(HistoryAggregate ha : aggregates) {
+			bb.putLong(ha.getStart());
+			bb.putInt(ha.getCount());
+			bb.putInt(ha.getNumericCount());
+			bb.putDouble(ha.getMin());
+			bb.putDouble(ha.getMax());
+			bb.putDouble(ha.getSum());
+			bb.putLong(ha.getFirstTimestamp());
+			byte [] f = strings.get(i++);
+			bb.putInt(f.length);
+			bb.put(f);
+			bb.putLong(ha.getLastTimestamp());
+			byte [] l = strings.get(i++);
+			bb.putInt(l.length);
+			bb.put(l);
+		}
+		ByteBuffer body = bb.duplicate();
+		body.flip();
+		body.position(8);
+		crc.reset();
+		crc.update(body);
+		bb.putInt(0, bb.position() - 8);
+		bb.putInt(4, (int)crc.getValue());
+		bb.flip();
+		return bb;
+	}
+
+	/**
+	 * Appends the buckets of one compaction and forces them to the device.
+	 * @param aggregates buckets of this width
+	 */
+	public synchronized void append(List<HistoryAggregate> aggregates) throws IOException {
+		if(aggregates.isEmpty())
+			return;
+		ByteBuffer bb = encode(aggregates, crc);
+		long minStart = bb.getLong(8);
+		long maxStart = bb.getLong(16);
+		write(bb, end);
+		channel.force(false);
+		chunks.add(new long [] { end, minStart, maxStart });
+		end += bb.limit();
+		count += aggregates.size();
+	}
+
+	private List<HistoryAggregate> readChunk(long pos) throws IOException {
+		ByteBuffer head = ByteBuffer.allocate(4);
+		channel.read(head, pos);
+		head.flip();
+		ByteBuffer bb = ByteBuffer.allocate(head.getInt());
+		long p = pos + 8;
+		while(bb.hasRemaining()) {
+			int n = channel.read(bb, p);
+			if(n < 0)
+				throw new IOException("Unexpected end of " + file);
+			p += n;
+		}
+		bb.flip();
+		bb.getLong();
+		bb.getLong();
+		int n = bb.getInt();
+		List<HistoryAggregate> l = new ArrayList<HistoryAggregate>(n);
+		for(int i=0; i<n; i++) {
+			long start = bb.getLong();
+			int cnt = bb.getInt();
+			int numeric = bb.getInt();
+			double min = bb.getDouble();
+			double max = bb.getDouble();
+			double sum = bb.getDouble();
+			long firstTs = bb.getLong();
+			String first = getString(bb);
+			long lastTs = bb.getLong();
+			String last = getString(bb);
+			l.add(new HistoryAggregate(start, width, cnt, numeric, min, max, sum, firstTs, first, lastTs, last));
+		}
+		return l;
+	}
+
+	/**
+	 * Adds the buckets lying within from and to (inclusive) to an
+	 * aggregator. Buckets only partly in the range can not be split and
+	 * are left out; their raw samples are gone.
+	 */
+	public synchronized void read(long from, long to, HistoryAggregator agg) throws IOException {
+		for(long [] c : chunks) {
+			if(c[1] > to || c[2] + width <= from)
+				continue;
+			for(HistoryAggregate ha : readChunk(c[0])) {
+				if(ha.getStart() >= from && ha.getStart() + width - 1 <= to)
+					agg.add(ha);
+			}
+		}
+	}
+
+	/**
+	 * Removes the buckets ending before a time by rewriting the file.
+	 * @return number of buckets removed
+	 */
+	public int expire(long before) throws IOException {
+		List<long []> old;
+		synchronized (this) {
+			old = chunks;
+		}
+		boolean any = false;
+		for(long [] c : old) {
+			if(c[1] + width <= before)
+				any = true;
+		}
+		if(!any)
+			return 0;
+		File tmp = new File(file.getPath() + ".tmp");
+		HistoryRollupFile nf = create(tmp, width, source, property);
+		int removed = 0;
+		try {
+			// chunks only change by appends, which come from this thread
+			for(long [] c : old) {
+				List<HistoryAggregate> l = readChunk(c[0]);
+				if(c[1] + width <= before) {
+					List<HistoryAggregate> keep = new ArrayList<HistoryAggregate>(l.size());
+					for(HistoryAggregate ha : l) {
+						if(ha.getStart() + width > before)
+							keep.add(ha);
+					}
+					removed += l.size() - keep.size();
+					l = keep;
+				}
+				nf.append(l);
+			}
+		} finally {
+			nf.channel.close();
+		}
+		synchronized (this) {
+			channel.close();
+			if(!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+				throw new IOException("Can not replace " + file);
+			channel = new RandomAccessFile(file, "rw").getChannel();
+			chunks = nf.chunks;
+			end = nf.end;
+			count = nf.count;
+		}
+		return removed;
+	}
+
+	public synchronized void close() throws IOException {
+		channel.close();
+	}
+}
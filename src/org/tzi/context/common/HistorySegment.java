@@ -0,0 +1,837 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * One file of the history of a property.</br>
+ * Layout: header (magic, format, source and property name), records of
+ * <em>length, crc32, timestamp, flags, tags, value</em> in timestamp
+ * order, and once sealed a sparse index of every
+ * {@link #INDEX_INTERVAL}th record followed by a fixed size trailer.</br>
+ * In the compressed format a record is a {@link HistoryBlock} of up to
+ * {@link #BLOCK_SAMPLES} samples framed by length and crc32, and every
+ * block has an index entry. Samples of the unfinished block are kept in
+ * memory until it is full, flushed or sealed.</br>
+ * Every index entry has a bitmap of the tags in its records or block
+ * (tags after the 63rd of a segment share the last bit), stored with the
+ * index when sealed. Tag filtered reads skip segments without any of the
+ * tags and entries whose bitmap does not match.
+ * Sealed segments are memory-mapped for reading; the open segment is
+ * appended through a buffer and a torn tail is cut off when it is opened
+ * again.</br>
+ * Not thread-safe; the owner serializes access.
+ */
+final class HistorySegment {
+
+	public static final int MAGIC = 0x43545848; // "CTXH"
+	public static final int FORMAT_RECORDS = 1;
+	public static final int FORMAT_BLOCKS = 2;
+	public static final int TRAILER_MAGIC = 0x48584543;
+	/**
+	 * trailer of a segment with tag bitmaps between index and trailer
+	 */
+	public static final int TRAILER_TAGS_MAGIC = 0x48584554;
+
+	/**
+	 * number of records per index entry
+	 */
+	public static final int INDEX_INTERVAL = 32;
+
+	/**
+	 * number of samples per block in the compressed format
+	 */
+	public static final int BLOCK_SAMPLES = 1024;
+
+	private static final int TRAILER_SIZE = 36;
+	private static final int INDEX_ENTRY_SIZE = 16;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final byte FLAG_PERSISTENT = 1;
+
+	private static final long ALL_TAGS = -1L;
+
+	private final File file;
+	private String source;
+	private String property;
+	private int format;
+	private long headerEnd;
+
+	private long firstTs = Long.MAX_VALUE;
+	private long lastTs = Long.MIN_VALUE;
+	private int count = 0;
+	/**
+	 * end of the last record including buffered ones
+	 */
+	private long recordsEnd;
+
+	private long [] idxTs = new long [16];
+	private long [] idxOffs = new long [16];
+	private int idxCount = 0;
+	/**
+	 * tag bitmap per index entry
+	 */
+	private long [] idxTags = new long [16];
+	private Map<String, Integer> tagIds = new HashMap<String, Integer>();
+	private List<String> tagNames = new ArrayList<String>();
+	/**
+	 * <em>false</em> for sealed segments written without tag bitmaps
+	 */
+	private boolean tagsKnown = true;
+
+	private boolean sealed = false;
+	private FileChannel channel;
+	private ByteBuffer writeBuffer;
+	private ByteBuffer record;
+	private ByteBufferAppender recordAppender;
+	private CRC32 crc = new CRC32();
+	private MappedByteBuffer mapped;
+	private List<ContextElement> pending;
+
+	private HistorySegment(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Creates a new, open segment of uncompressed records.
+	 */
+	public static HistorySegment create(File file, String source, String property) throws IOException {
+		return create(file, source, property, false);
+	}
+
+	/**
+	 * Creates a new, open segment.
+	 * @param compressed write {@link HistoryBlock}s instead of single records
+	 */
+	public static HistorySegment create(File file, String source, String property, boolean compressed) throws IOException {
+		HistorySegment hs = new HistorySegment(file);
+		hs.source = source;
+		hs.property = property;
+		hs.format = compressed ? FORMAT_BLOCKS : FORMAT_RECORDS;
+		hs.channel = new RandomAccessFile(file, "rw").getChannel();
+		hs.channel.truncate(0);
+		hs.initWriting();
+		hs.record.putInt(MAGIC);
+		hs.record.putInt(hs.format);
+		hs.putString(source);
+		hs.putString(property);
+		hs.record.flip();
+		hs.writeBuffer.put(hs.record);
+		hs.headerEnd = hs.writeBuffer.position();
+		hs.recordsEnd = hs.headerEnd;
+		return hs;
+	}
+
+	/**
+	 * Opens an existing segment. A sealed segment only has its index read;
+	 * an open segment is scanned and stays writable.
+	 * @throws IOException if the file is not a history segment
+	 */
+	public static HistorySegment open(File file) throws IOException {
+		HistorySegment hs = new HistorySegment(file);
+		FileChannel fc = new RandomAccessFile(file, "rw").getChannel();
+		boolean ok = false;
+		try {
+			long length = fc.size();
+			ByteBuffer header = ByteBuffer.allocate((int)Math.min(length, BUFFER_SIZE));
+			readFully(fc, header, 0);
+			header.flip();
+			try {
+				if(header.getInt() != MAGIC)
+					throw new IOException(file + " is not a history segment!");
+				hs.format = header.getInt();
+				if(hs.format != FORMAT_RECORDS && hs.format != FORMAT_BLOCKS)
+					throw new IOException("Unsupported segment format " + hs.format + " in " + file);
+				hs.source = getString(header);
+				hs.property = getString(header);
+			} catch(BufferUnderflowException bue) {
+				throw new IOException(file + " has a broken header!");
+			}
+			hs.headerEnd = header.position();
+
+			if(hs.readTrailer(fc, length)) {
+				fc.close();
+				hs.sealed = true;
+			} else {
+				hs.channel = fc;
+				hs.scan();
+				hs.initWriting();
+			}
+			ok = true;
+		} finally {
+			if(!ok)
+				fc.close();
+		}
+		return hs;
+	}
+
+	private static void readFully(FileChannel fc, ByteBuffer bb, long pos) throws IOException {
+		while(bb.hasRemaining()) {
+			int n = fc.read(bb, pos);
+			if(n < 0)
+				break;
+			pos += n;
+		}
+	}
+
+	private void initWriting() {
+		writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+		record = ByteBuffer.allocate(256);
+		recordAppender = new ByteBufferAppender(record);
+		if(format == FORMAT_BLOCKS)
+			pending = new ArrayList<ContextElement>();
+	}
+
+	/**
+	 * @return <em>true</em> if a valid trailer and index were found
+	 */
+	private boolean readTrailer(FileChannel fc, long length) throws IOException {
+		if(length < headerEnd + TRAILER_SIZE)
+			return false;
+		ByteBuffer t = ByteBuffer.allocate(TRAILER_SIZE);
+		readFully(fc, t, length - TRAILER_SIZE);
+		t.flip();
+		long first = t.getLong();
+		long last = t.getLong();
+		int n = t.getInt();
+		long end = t.getLong();
+		int ni = t.getInt();
+		int magic = t.getInt();
+		if((magic != TRAILER_MAGIC && magic != TRAILER_TAGS_MAGIC) || n < 0 || ni < 0 || end < headerEnd)
+			return false;
+		long idxEnd = end + (long)ni * INDEX_ENTRY_SIZE;
+		if((magic == TRAILER_MAGIC) ? idxEnd + TRAILER_SIZE != length : idxEnd + 4 + (long)ni * 8 + TRAILER_SIZE > length)
+			return false;
+		ByteBuffer idx = ByteBuffer.allocate((int)(length - TRAILER_SIZE - end));
+		readFully(fc, idx, end);
+		idx.flip();
+		idxTs = new long [Math.max(ni, 1)];
+		idxOffs = new long [Math.max(ni, 1)];
+		idxTags = new long [Math.max(ni, 1)];
+		for(int i=0; i<ni; i++) {
+			idxTs[i] = idx.getLong();
+			idxOffs[i] = idx.getLong();
+		}
+		if(magic == TRAILER_TAGS_MAGIC) {
+			try {
+				int nt = idx.getInt();
+				if(nt < 0)
+					return false;
+				for(int i=0; i<nt; i++) {
+					String tag = getString(idx);
+					tagIds.put(tag, Integer.valueOf(tagNames.size()));
+					tagNames.add(tag);
+				}
+				for(int i=0; i<ni; i++)
+					idxTags[i] = idx.getLong();
+			} catch(BufferUnderflowException bue) {
+				return false;
+			}
+			if(idx.hasRemaining())
+				return false;
+		} else {
+			tagsKnown = false;
+		}
+		idxCount = ni;
+		firstTs = first;
+		lastTs = last;
+		count = n;
+		recordsEnd = end;
+		return true;
+	}
+
+	/**
+	 * rebuilds count, bounds and index of an open segment and cuts off a torn tail
+	 */
+	private void scan() throws IOException {
+		long length = channel.size();
+		ByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+		long pos = headerEnd;
+		List<ContextElement> samples = new ArrayList<ContextElement>();
+		while(pos + 8 <= length) {
+			bb.position((int)pos);
+			int len = bb.getInt();
+			int checksum = bb.getInt();
+			if(len < ((format == FORMAT_BLOCKS) ? 1 : 17) || pos + 8 + len > length)
+				break;
+			ByteBuffer body = bb.duplicate();
+			body.limit((int)(pos + 8 + len));
+			crc.reset();
+			crc.update(body);
+			if((int)crc.getValue() != checksum)
+				break;
+			if(format == FORMAT_BLOCKS) {
+				ByteBuffer block = bb.slice();
+				block.limit(len);
+				samples.clear();
+				try {
+					HistoryBlock.decode(block, source, property, Long.MIN_VALUE, Long.MAX_VALUE, 0, null, samples);
+				} catch(BufferUnderflowException bue) {
+					break;
+				}
+				if(samples.isEmpty() || (count > 0 && samples.get(0).getTimestamp() < lastTs))
+					break;
+				indexBlock(samples, pos);
+			} else {
+				long ts = bb.getLong();
+				if(count > 0 && ts < lastTs)
+					break;
+				bb.get();
+				long mask;
+				try {
+					mask = tagMask(getTags(bb));
+				} catch(BufferUnderflowException bue) {
+					break;
+				}
+				indexRecord(ts, pos, mask);
+			}
+			pos += 8 + len;
+		}
+		recordsEnd = pos;
+		if(pos < length)
+			channel.truncate(pos);
+	}
+
+	private void addIndexEntry(long ts, long offs) {
+		if(idxCount == idxTs.length) {
+			long [] nt = new long [idxCount * 2];
+			long [] no = new long [idxCount * 2];
+			long [] ng = new long [idxCount * 2];
+			System.arraycopy(idxTs, 0, nt, 0, idxCount);
+			System.arraycopy(idxOffs, 0, no, 0, idxCount);
+			System.arraycopy(idxTags, 0, ng, 0, idxCount);
+			idxTs = nt;
+			idxOffs = no;
+			idxTags = ng;
+		}
+		idxTs[idxCount] = ts;
+		idxOffs[idxCount] = offs;
+		idxTags[idxCount] = 0;
+		idxCount++;
+	}
+
+	/**
+	 * @return bitmap of the tags; tags new to this segment get an id
+	 */
+	private long tagMask(Set<String> tags) {
+		long mask = 0;
+		for(String tag : tags) {
+			Integer id = tagIds.get(tag);
+			if(id == null) {
+				id = Integer.valueOf(tagNames.size());
+				tagIds.put(tag, id);
+				tagNames.add(tag);
+			}
+			mask |= 1L << Math.min(id.intValue(), 63);
+		}
+		return mask;
+	}
+
+	/**
+	 * @return bitmap an index entry needs to intersect; {@link #ALL_TAGS}
+	 * if entries can not be skipped, 0 if no record can match
+	 */
+	private long queryMask(Set<String> withTags) {
+		if(withTags == null || withTags.isEmpty() || !tagsKnown)
+			return ALL_TAGS;
+		long mask = 0;
+		for(String tag : withTags) {
+			Integer id = tagIds.get(tag);
+			if(id != null)
+				mask |= 1L << Math.min(id.intValue(), 63);
+		}
+		return mask;
+	}
+
+	private void indexRecord(long ts, long offs, long mask) {
+		if(count % INDEX_INTERVAL == 0)
+			addIndexEntry(ts, offs);
+		idxTags[idxCount - 1] |= mask;
+		if(count == 0)
+			firstTs = ts;
+		lastTs = ts;
+		count++;
+	}
+
+	/**
+	 * indexes a block read from the file
+	 */
+	private void indexBlock(List<ContextElement> samples, long offs) {
+		addIndexEntry(samples.get(0).getTimestamp(), offs);
+		for(ContextElement ce : samples)
+			idxTags[idxCount - 1] |= tagMask(ce.getTypeTags());
+		if(count == 0)
+			firstTs = samples.get(0).getTimestamp();
+		lastTs = samples.get(samples.size() - 1).getTimestamp();
+		count += samples.size();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public String getProperty() {
+		return property;
+	}
+
+	public long getFirstTimestamp() {
+		return firstTs;
+	}
+
+	public long getLastTimestamp() {
+		return lastTs;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public boolean isSealed() {
+		return sealed;
+	}
+
+	public boolean isCompressed() {
+		return format == FORMAT_BLOCKS;
+	}
+
+	/**
+	 * @return size of header and records including buffered ones; samples
+	 * of an unfinished block are not counted
+	 */
+	public long getLength() {
+		return recordsEnd;
+	}
+
+	/**
+	 * @return <em>true</em> if an element with this timestamp keeps the records ordered
+	 */
+	public boolean canAppend(long ts) {
+		return !sealed && (count == 0 || ts >= lastTs);
+	}
+
+	private void putString(String s) {
+		int pos = record.position();
+		record.putInt(0);
+		recordAppender.append(s);
+		record.putInt(pos, record.position() - pos - 4);
+	}
+
+	private void encode(ContextElement ce) {
+		record.clear();
+		record.position(8);
+		record.putLong(ce.getTimestamp());
+		record.put(ce.isPersistent() ? FLAG_PERSISTENT : 0);
+		record.putInt(ce.getTypeTags().size());
+		for(String tag : ce.getTypeTags())
+			putString(tag);
+		putString(ce.getValue());
+		int end = record.position();
+		ByteBuffer body = record.duplicate();
+		body.position(8);
+		body.limit(end);
+		crc.reset();
+		crc.update(body);
+		record.putInt(0, end - 8);
+		record.putInt(4, (int)crc.getValue());
+		record.flip();
+	}
+
+	public void append(ContextElement ce) throws IOException {
+		if(!canAppend(ce.getTimestamp()))
+			throw new IllegalStateException("Segment is sealed or element is out of order!");
+		if(format == FORMAT_BLOCKS) {
+			if(count == 0)
+				firstTs = ce.getTimestamp();
+			lastTs = ce.getTimestamp();
+			count++;
+			tagMask(ce.getTypeTags());
+			pending.add(ce);
+			if(pending.size() >= BLOCK_SAMPLES)
+				writeBlock();
+			return;
+		}
+		while(true) {
+			try {
+				encode(ce);
+				break;
+			} catch(BufferOverflowException boe) {
+				record = ByteBuffer.allocate(record.capacity() * 2);
+				recordAppender = new ByteBufferAppender(record);
+			}
+		}
+		indexRecord(ce.getTimestamp(), recordsEnd, tagMask(ce.getTypeTags()));
+		write(record);
+	}
+
+	private void write(ByteBuffer bb) throws IOException {
+		if(bb.remaining() > writeBuffer.remaining()) {
+			drain();
+			if(bb.remaining() > writeBuffer.capacity())
+				writeBuffer = ByteBuffer.allocate(bb.remaining());
+		}
+		recordsEnd += bb.remaining();
+		writeBuffer.put(bb);
+	}
+
+	/**
+	 * encodes the samples held in memory as one block
+	 */
+	private void writeBlock() throws IOException {
+		if(pending == null || pending.isEmpty())
+			return;
+		byte [] block = HistoryBlock.encode(pending);
+		crc.reset();
+		crc.update(block);
+		ByteBuffer frame = ByteBuffer.allocate(8 + block.length);
+		frame.putInt(block.length);
+		frame.putInt((int)crc.getValue());
+		frame.put(block);
+		frame.flip();
+		addIndexEntry(pending.get(0).getTimestamp(), recordsEnd);
+		for(ContextElement ce : pending)
+			idxTags[idxCount - 1] |= tagMask(ce.getTypeTags());
+		write(frame);
+		pending.clear();
+	}
+
+	private void drain() throws IOException {
+		writeBuffer.flip();
+		long pos = recordsEnd - writeBuffer.remaining();
+		while(writeBuffer.hasRemaining())
+			pos += channel.write(writeBuffer, pos);
+		writeBuffer.clear();
+	}
+
+	/**
+	 * Writes buffered records to the file.
+	 * @param force also force them to the device
+	 */
+	public void flush(boolean force) throws IOException {
+		if(sealed)
+			return;
+		writeBlock();
+		drain();
+		if(force)
+			channel.force(false);
+	}
+
+	/**
+	 * Writes index and trailer; the segment is read-only afterwards.
+	 */
+	public void seal() throws IOException {
+		if(sealed)
+			return;
+		writeBlock();
+		drain();
+		List<byte []> tagBytes = new ArrayList<byte []>(tagNames.size());
+		int tagsSize = 4 + idxCount * 8;
+		for(String tag : tagNames) {
+			byte [] b = Protocol.encodeString(tag);
+			tagBytes.add(b);
+			tagsSize += 4 + b.length;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(idxCount * INDEX_ENTRY_SIZE + (tagsKnown ? tagsSize : 0) + TRAILER_SIZE);
+		for(int i=0; i<idxCount; i++) {
+			bb.putLong(idxTs[i]);
+			bb.putLong(idxOffs[i]);
+		}
+		if(tagsKnown) {
+			bb.putInt(tagBytes.size());
+			for(byte [] b : tagBytes) {
+				bb.putInt(b.length);
+				bb.put(b);
+			}
+			for(int i=0; i<idxCount; i++)
+				bb.putLong(idxTags[i]);
+		}
+		bb.putLong(firstTs);
+		bb.putLong(lastTs);
+		bb.putInt(count);
+		bb.putLong(recordsEnd);
+		bb.putInt(idxCount);
+		bb.putInt(tagsKnown ? TRAILER_TAGS_MAGIC : TRAILER_MAGIC);
+		bb.flip();
+		long pos = recordsEnd;
+		while(bb.hasRemaining())
+			pos += channel.write(bb, pos);
+		channel.truncate(pos);
+		channel.force(false);
+		channel.close();
+		channel = null;
+		writeBuffer = null;
+		record = null;
+		recordAppender = null;
+		pending = null;
+		sealed = true;
+	}
+
+	/**
+	 * @return read-only view of the records area, positioned nowhere in particular
+	 */
+	private ByteBuffer view() throws IOException {
+		if(sealed) {
+			if(mapped == null) {
+				FileChannel fc = new RandomAccessFile(file, "r").getChannel();
+				try {
+					mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0, recordsEnd);
+				} finally {
+					fc.close();
+				}
+			}
+			return mapped.duplicate();
+		}
+		drain();
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, recordsEnd);
+	}
+
+	/**
+	 * @return offset of the first record that may have a timestamp &gt;= ts
+	 */
+	private long seek(long ts) {
+		int found = seekEntry(ts);
+		return (found < 0) ? headerEnd : idxOffs[found];
+	}
+
+	/**
+	 * @return last index entry before ts; -1 if there is none
+	 */
+	private int seekEntry(long ts) {
+		// last index entry before ts; equal timestamps may span entries
+		int lo = 0;
+		int hi = idxCount - 1;
+		int found = -1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(idxTs[mid] < ts) {
+				found = mid;
+				lo = mid + 1;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	private static String getString(ByteBuffer bb) {
+		int len = bb.getInt();
+		if(len < 0 || len > bb.remaining())
+			throw new BufferUnderflowException();
+		String s;
+		if(bb.hasArray()) {
+			s = new String(bb.array(), bb.arrayOffset() + bb.position(), len, Protocol.protocolCharset);
+			bb.position(bb.position() + len);
+		} else {
+			byte [] b = new byte [len];
+			bb.get(b);
+			s = new String(b, Protocol.protocolCharset);
+		}
+		return s;
+	}
+
+	/**
+	 * reads the tag count and tags of a record
+	 */
+	private static Set<String> getTags(ByteBuffer bb) {
+		int nt = bb.getInt();
+		if(nt < 0)
+			throw new BufferUnderflowException();
+		Set<String> tags = new TreeSet<String>();
+		for(int i=0; i<nt; i++)
+			tags.add(getString(bb));
+		return tags;
+	}
+
+	private static boolean hasAnyTag(Set<String> tags, Set<String> withTags) {
+		for(String tag : tags) {
+			if(withTags.contains(tag))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds the elements with from &lt;= timestamp &lt;= to in timestamp order.
+	 * @param limit maximum number of elements to add; &lt;= 0 for all
+	 * @param withTags elements need one of these tags; <em>null</em> or empty for all
+	 * @return number of elements added
+	 */
+	public int read(long from, long to, int limit, Set<String> withTags, List<ContextElement> out) throws IOException {
+		if(count == 0 || from > lastTs || to < firstTs || from > to)
+			return 0;
+		if(format == FORMAT_BLOCKS)
+			return readBlocks(from, to, limit, withTags, out, null);
+		return readRecords(from, to, limit, withTags, out, null);
+	}
+
+	/**
+	 * Adds the samples with from &lt;= timestamp &lt;= to to an aggregator
+	 * without keeping them.
+	 * @param withTags samples need one of these tags; <em>null</em> or empty for all
+	 */
+	public void aggregate(long from, long to, Set<String> withTags, HistoryAggregator agg) throws IOException {
+		if(count == 0 || from > lastTs || to < firstTs || from > to)
+			return;
+		if(format == FORMAT_BLOCKS)
+			readBlocks(from, to, 0, withTags, null, agg);
+		else
+			readRecords(from, to, 0, withTags, null, agg);
+	}
+
+	/**
+	 * @param agg if not <em>null</em> samples go there instead of <em>out</em>
+	 */
+	private int readRecords(long from, long to, int limit, Set<String> withTags, List<ContextElement> out, HistoryAggregator agg) throws IOException {
+		boolean filter = withTags != null && !withTags.isEmpty();
+		long mask = queryMask(withTags);
+		if(mask == 0)
+			return 0;
+		ByteBuffer bb = view();
+		int added = 0;
+		for(int g = Math.max(seekEntry(from), 0); g < idxCount; g++) {
+			if(idxTs[g] > to)
+				break;
+			if(mask != ALL_TAGS && (idxTags[g] & mask) == 0)
+				continue;
+			long pos = idxOffs[g];
+			long end = (g + 1 < idxCount) ? idxOffs[g + 1] : recordsEnd;
+			while(pos < end) {
+				bb.position((int)pos);
+				int len = bb.getInt();
+				bb.getInt();
+				long ts = bb.getLong();
+				if(ts > to)
+					return added;
+				pos += 8 + len;
+				if(ts < from)
+					continue;
+				boolean persistent = (bb.get() & FLAG_PERSISTENT) != 0;
+				if(agg != null && !filter) {
+					int nt = bb.getInt();
+					for(int i=0; i<nt; i++)
+						bb.position(bb.position() + 4 + bb.getInt(bb.position()));
+					agg.add(ts, getString(bb));
+					continue;
+				}
+				Set<String> tags = getTags(bb);
+				if(filter && !hasAnyTag(tags, withTags))
+					continue;
+				String value = getString(bb);
+				if(agg != null) {
+					agg.add(ts, value);
+					continue;
+				}
+				out.add(new ContextElement(Collections.unmodifiableSet(tags), source, property, value, ts, persistent));
+				added++;
+				if(limit > 0 && added >= limit)
+					return added;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * @param agg if not <em>null</em> samples go there instead of <em>out</em>
+	 */
+	private int readBlocks(long from, long to, int limit, Set<String> withTags, List<ContextElement> out, HistoryAggregator agg) throws IOException {
+		if(withTags != null && withTags.isEmpty())
+			withTags = null;
+		long mask = queryMask(withTags);
+		if(mask == 0)
+			return 0;
+		List<ContextElement> target = (agg == null) ? out : new ArrayList<ContextElement>();
+		int added = 0;
+		if(idxCount > 0) {
+			ByteBuffer bb = view();
+			// blocks starting before from may still reach into the range
+			for(int i = Math.max(seekEntry(from), 0); i < idxCount; i++) {
+				if(idxTs[i] > to || (limit > 0 && added >= limit))
+					return added;
+				if(mask != ALL_TAGS && (idxTags[i] & mask) == 0)
+					continue;
+				bb.clear();
+				bb.position((int)idxOffs[i]);
+				int len = bb.getInt();
+				bb.getInt();
+				ByteBuffer block = bb.slice();
+				block.limit(len);
+				added += HistoryBlock.decode(block, source, property, from, to, (limit > 0) ? limit - added : 0, withTags, target);
+				if(agg != null) {
+					agg.addAll(target);
+					target.clear();
+				}
+			}
+		}
+		if(pending != null) {
+			for(ContextElement ce : pending) {
+				if(ce.getTimestamp() > to || (limit > 0 && added >= limit))
+					break;
+				if(ce.getTimestamp() < from || (withTags != null && !hasAnyTag(ce.getTypeTags(), withTags)))
+					continue;
+				if(agg != null)
+					agg.add(ce);
+				else
+					out.add(ce);
+				added++;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Flushes an open segment and releases the file.
+	 */
+	public void close() throws IOException {
+		if(channel != null) {
+			writeBlock();
+			drain();
+			channel.close();
+			channel = null;
+		}
+		mapped = null;
+	}
+
+	/**
+	 * Closes and removes the file.
+	 */
+	public boolean delete() throws IOException {
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+		mapped = null;
+		return file.delete();
+	}
+}
@@ -0,0 +1,448 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable hash map (hash array mapped trie).</br>
+ * {@link #plus(Object, Object)} and {@link #minus(Object)} return a new map
+ * that shares all unchanged nodes with the original, so an update copies
+ * only the path to the changed entry (at most seven nodes). Instances can
+ * be read and iterated from any thread without locking.</br>
+ * Iteration order is unspecified. Null keys are not supported.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class PersistentMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+	private static final int BITS = 5;
+	private static final int MASK = (1 << BITS) - 1;
+
+	private static final class Leaf implements Map.Entry<Object, Object> {
+		private final int hash;
+		private final Object key;
+		private final Object value;
+
+		public Leaf(int hash, Object key, Object value) {
+			this.hash = hash;
+			this.key = key;
+			this.value = value;
+		}
+
+		public Object getKey() {
+			return key;
+		}
+
+		public Object getValue() {
+			return value;
+		}
+
+		public Object setValue(Object value) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + value;
+		}
+	}
+
+	/**
+	 * children are either LeafS or nodes
+	 */
+	private static final class BitmapNode {
+		private final int bitmap;
+		private final Object [] children;
+
+		public BitmapNode(int bitmap, Object [] children) {
+			this.bitmap = bitmap;
+			this.children = children;
+		}
+	}
+
+	/**
+	 * leaves with identical hash
+	 */
+	private static final class CollisionNode {
+		private final int hash;
+		private final Leaf [] leaves;
+
+		public CollisionNode(int hash, Leaf [] leaves) {
+			this.hash = hash;
+			this.leaves = leaves;
+		}
+	}
+
+	private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<Object, Object>(null, 0);
+
+	private final Object root;
+	private final int size;
+
+	private PersistentMap(Object root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <K, V> PersistentMap<K, V> empty() {
+		return (PersistentMap<K, V>)EMPTY;
+	}
+
+	/**
+	 * Builds a map in one pass instead of adding the entries one by one.
+	 * @param map entries to put
+	 * @return map with the same entries
+	 */
+	public static <K, V> PersistentMap<K, V> of(Map<? extends K, ? extends V> map) {
+		if(map.isEmpty())
+			return empty();
+		Leaf [] leaves = new Leaf [map.size()];
+		int i = 0;
+		for(Map.Entry<? extends K, ? extends V> e : map.entrySet()) {
+			K key = e.getKey();
+			if(key == null)
+				throw new IllegalArgumentException("null keys are not supported!");
+			leaves[i++] = new Leaf(hash(key), key, e.getValue());
+		}
+		return new PersistentMap<K, V>(build(leaves, new Leaf [leaves.length], 0, leaves.length, 0), leaves.length);
+	}
+
+	/**
+	 * creates the node for leaves[from..to), sorting them by their hash bits
+	 * at shift; tmp is scratch space of the same length
+	 */
+	private static Object build(Leaf [] leaves, Leaf [] tmp, int from, int to, int shift) {
+		if(to - from == 1)
+			return leaves[from];
+		int h = leaves[from].hash;
+		boolean same = true;
+		for(int i=from+1; same && i<to; i++)
+			same = leaves[i].hash == h;
+		if(same) {
+			Leaf [] cl = new Leaf [to - from];
+			System.arraycopy(leaves, from, cl, 0, cl.length);
+			return new CollisionNode(h, cl);
+		}
+
+		int [] start = new int [MASK + 2];
+		for(int i=from; i<to; i++)
+			start[((leaves[i].hash >>> shift) & MASK) + 1]++;
+		int bitmap = 0;
+		int numChildren = 0;
+		for(int b=0; b<=MASK; b++) {
+			if(start[b + 1] != 0) {
+				bitmap |= 1 << b;
+				numChildren++;
+			}
+			start[b + 1] += start[b];
+		}
+		int [] pos = start.clone();
+		for(int i=from; i<to; i++)
+			tmp[from + pos[(leaves[i].hash >>> shift) & MASK]++] = leaves[i];
+		System.arraycopy(tmp, from, leaves, from, to - from);
+
+		Object [] children = new Object [numChildren];
+		int c = 0;
+		for(int b=0; b<=MASK; b++) {
+			if(start[b + 1] != start[b])
+				children[c++] = build(leaves, tmp, from + start[b], from + start[b + 1], shift + BITS);
+		}
+		return new BitmapNode(bitmap, children);
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean containsKey(Object key) {
+		return find(key) != null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		Leaf l = find(key);
+		return (l == null) ? null : (V)l.value;
+	}
+
+	private Leaf find(Object key) {
+		int h = hash(key);
+		Object n = root;
+		int shift = 0;
+		while(n != null) {
+			if(n instanceof Leaf) {
+				Leaf l = (Leaf)n;
+				return (l.hash == h && l.key.equals(key)) ? l : null;
+			}
+			if(n instanceof CollisionNode) {
+				CollisionNode cn = (CollisionNode)n;
+				if(cn.hash != h)
+					return null;
+				for(Leaf l : cn.leaves) {
+					if(l.key.equals(key))
+						return l;
+				}
+				return null;
+			}
+			BitmapNode bn = (BitmapNode)n;
+			int bit = 1 << ((h >>> shift) & MASK);
+			if((bn.bitmap & bit) == 0)
+				return null;
+			n = bn.children[Integer.bitCount(bn.bitmap & (bit - 1))];
+			shift += BITS;
+		}
+		return null;
+	}
+
+	/**
+	 * @return map with key mapped to value; <em>this</em> if nothing changed
+	 */
+	public PersistentMap<K, V> plus(K key, V value) {
+		if(key == null)
+			throw new IllegalArgumentException("null keys are not supported!");
+		Leaf l = new Leaf(hash(key), key, value);
+		if(root == null)
+			return new PersistentMap<K, V>(l, 1);
+		boolean [] added = { false };
+		Object nr = put(root, 0, l, added);
+		if(nr == root)
+			return this;
+		return new PersistentMap<K, V>(nr, added[0] ? size + 1 : size);
+	}
+
+	/**
+	 * @return map without key; <em>this</em> if key was not present
+	 */
+	public PersistentMap<K, V> minus(Object key) {
+		if(key == null || root == null)
+			return this;
+		Object nr = remove(root, 0, hash(key), key);
+		if(nr == root)
+			return this;
+		return new PersistentMap<K, V>(nr, size - 1);
+	}
+
+	private static int hashOf(Object n) {
+		if(n instanceof Leaf)
+			return ((Leaf)n).hash;
+		return ((CollisionNode)n).hash;
+	}
+
+	/**
+	 * creates a node containing two children (LeafS or CollisionNodeS) with different keys
+	 */
+	private static Object join(int shift, Object a, Object b) {
+		int ha = hashOf(a);
+		int hb = hashOf(b);
+		if(ha == hb) {
+			// b is always a leaf here
+			Leaf lb = (Leaf)b;
+			if(a instanceof Leaf)
+				return new CollisionNode(ha, new Leaf [] { (Leaf)a, lb });
+			CollisionNode ca = (CollisionNode)a;
+			Leaf [] leaves = new Leaf [ca.leaves.length + 1];
+			System.arraycopy(ca.leaves, 0, leaves, 0, ca.leaves.length);
+			leaves[ca.leaves.length] = lb;
+			return new CollisionNode(ha, leaves);
+		}
+		int ia = (ha >>> shift) & MASK;
+		int ib = (hb >>> shift) & MASK;
+		if(ia == ib)
+			return new BitmapNode(1 << ia, new Object [] { join(shift + BITS, a, b) });
+		if(ia < ib)
+			return new BitmapNode((1 << ia) | (1 << ib), new Object [] { a, b });
+		return new BitmapNode((1 << ia) | (1 << ib), new Object [] { b, a });
+	}
+
+	private static Object put(Object n, int shift, Leaf l, boolean [] added) {
+		if(n instanceof Leaf) {
+			Leaf o = (Leaf)n;
+			if(o.hash == l.hash && o.key.equals(l.key)) {
+				return (o.value == l.value) ? o : l;
+			}
+			added[0] = true;
+			return join(shift, o, l);
+		}
+
+		if(n instanceof CollisionNode) {
+			CollisionNode cn = (CollisionNode)n;
+			if(cn.hash == l.hash) {
+				for(int i=0; i<cn.leaves.length; i++) {
+					if(cn.leaves[i].key.equals(l.key)) {
+						if(cn.leaves[i].value == l.value)
+							return cn;
+						Leaf [] leaves = cn.leaves.clone();
+						leaves[i] = l;
+						return new CollisionNode(cn.hash, leaves);
+					}
+				}
+			}
+			added[0] = true;
+			return join(shift, cn, l);
+		}
+
+		BitmapNode bn = (BitmapNode)n;
+		int bit = 1 << ((l.hash >>> shift) & MASK);
+		int idx = Integer.bitCount(bn.bitmap & (bit - 1));
+
+		if((bn.bitmap & bit) == 0) {
+			Object [] children = new Object [bn.children.length + 1];
+			System.arraycopy(bn.children, 0, children, 0, idx);
+			children[idx] = l;
+			System.arraycopy(bn.children, idx, children, idx + 1, bn.children.length - idx);
+			added[0] = true;
+			return new BitmapNode(bn.bitmap | bit, children);
+		}
+
+		Object child = bn.children[idx];
+		Object nc = put(child, shift + BITS, l, added);
+		if(nc == child)
+			return bn;
+		Object [] children = bn.children.clone();
+		children[idx] = nc;
+		return new BitmapNode(bn.bitmap, children);
+	}
+
+	/**
+	 * @return replacement for n; n if key was not found; null if n is now empty
+	 */
+	private static Object remove(Object n, int shift, int h, Object key) {
+		if(n instanceof Leaf) {
+			Leaf o = (Leaf)n;
+			return (o.hash == h && o.key.equals(key)) ? null : o;
+		}
+
+		if(n instanceof CollisionNode) {
+			CollisionNode cn = (CollisionNode)n;
+			if(cn.hash != h)
+				return cn;
+			for(int i=0; i<cn.leaves.length; i++) {
+				if(cn.leaves[i].key.equals(key)) {
+					if(cn.leaves.length == 2)
+						return cn.leaves[1 - i];
+					Leaf [] leaves = new Leaf [cn.leaves.length - 1];
+					System.arraycopy(cn.leaves, 0, leaves, 0, i);
+					System.arraycopy(cn.leaves, i + 1, leaves, i, leaves.length - i);
+					return new CollisionNode(cn.hash, leaves);
+				}
+			}
+			return cn;
+		}
+
+		BitmapNode bn = (BitmapNode)n;
+		int bit = 1 << ((h >>> shift) & MASK);
+		if((bn.bitmap & bit) == 0)
+			return bn;
+		int idx = Integer.bitCount(bn.bitmap & (bit - 1));
+		Object child = bn.children[idx];
+		Object nc = remove(child, shift + BITS, h, key);
+		if(nc == child)
+			return bn;
+
+		if(nc == null) {
+			if(bn.children.length == 1)
+				return null;
+			if(bn.children.length == 2) {
+				// a single remaining leaf or collision can move up
+				Object other = bn.children[1 - idx];
+				if(!(other instanceof BitmapNode))
+					return other;
+			}
+			Object [] children = new Object [bn.children.length - 1];
+			System.arraycopy(bn.children, 0, children, 0, idx);
+			System.arraycopy(bn.children, idx + 1, children, idx, children.length - idx);
+			return new BitmapNode(bn.bitmap & ~bit, children);
+		}
+
+		if(bn.children.length == 1 && !(nc instanceof BitmapNode))
+			return nc;
+
+		Object [] children = bn.children.clone();
+		children[idx] = nc;
+		return new BitmapNode(bn.bitmap, children);
+	}
+
+	/**
+	 * Entries of the map. The iterator does not support removal.
+	 */
+	public Iterator<Map.Entry<K, V>> iterator() {
+		return new Iterator<Map.Entry<K, V>>() {
+			// stack of node arrays and positions
+			private List<Object []> nodes = new ArrayList<Object []>();
+			private List<int []> positions = new ArrayList<int []>();
+			private Leaf next;
+
+			{
+				if(root != null) {
+					nodes.add(new Object [] { root });
+					positions.add(new int [] { 0 });
+				}
+				advance();
+			}
+
+			private void advance() {
+				next = null;
+				while(!nodes.isEmpty()) {
+					int top = nodes.size() - 1;
+					Object [] a = nodes.get(top);
+					int [] p = positions.get(top);
+					if(p[0] >= a.length) {
+						nodes.remove(top);
+						positions.remove(top);
+						continue;
+					}
+					Object n = a[p[0]++];
+					if(n instanceof Leaf) {
+						next = (Leaf)n;
+						return;
+					}
+					nodes.add((n instanceof CollisionNode) ? ((CollisionNode)n).leaves : ((BitmapNode)n).children);
+					positions.add(new int [] { 0 });
+				}
+			}
+
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@SuppressWarnings("unchecked")
+			public Map.Entry<K, V> next() {
+				if(next == null)
+					throw new NoSuchElementException();
+				Leaf l = next;
+				advance();
+				return (Map.Entry<K, V>)(Map.Entry<?, ?>)l;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
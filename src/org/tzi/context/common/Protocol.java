@@ -18,10 +18,12 @@ package org.tzi.context.common;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.charset.Charset;
 import java.text.Collator;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -82,8 +84,23 @@ public class Protocol {
 	public static final String LISTSUB = "LISTSUB";
 	public static final String CANCELSUB = "CANCELSUB";
 	public static final String SHORTSUB = "SHORTSUB";
+	public static final String SUBDELTA = "SUBDELTA";
+	public static final String DEADBAND = "DEADBAND";
+	public static final String MAXRATE = "MAXRATE";
 	public static final String LISTIDS = "LISTIDS";
 	public static final String HISTORY = "HISTORY";
+	/**
+	 * option word of {@link #HISTORY} followed by the bucket width in
+	 * milliseconds; the reply carries {@link HistoryAggregate}s instead of
+	 * elements
+	 */
+	public static final String AGGREGATE = "AGGREGATE";
+	/**
+	 * option word of {@link #HISTORY} followed by the page size and a
+	 * continuation token (<em>@</em> for the first page); the reply
+	 * carries the token for the next page before the elements
+	 */
+	public static final String PAGE = "PAGE";
 	public static final String TXPACKET = "TX";
 	public static final String TXCTX = "TXCTX";
 	public static final String TXACK = "TXACK";
@@ -123,6 +140,9 @@ public class Protocol {
 		LISTSUB,
 		CANCELSUB,
 		SHORTSUB,
+		SUBDELTA,
+		DEADBAND,
+		MAXRATE,
 		LISTIDS,
 		HISTORY,
 		TXPACKET,
@@ -167,6 +187,9 @@ public class Protocol {
 		cmdMap.put(LISTSUB, Command.LISTSUB);
 		cmdMap.put(CANCELSUB, Command.CANCELSUB);
 		cmdMap.put(SHORTSUB, Command.SHORTSUB);
+		cmdMap.put(SUBDELTA, Command.SUBDELTA);
+		cmdMap.put(DEADBAND, Command.DEADBAND);
+		cmdMap.put(MAXRATE, Command.MAXRATE);
 		cmdMap.put(LISTIDS, Command.LISTIDS);
 		cmdMap.put(HISTORY, Command.HISTORY);
 		cmdMap.put(TXPACKET, Command.TXPACKET);
@@ -382,6 +405,72 @@ public class Protocol {
 		return new WriteMessageResult(transferId, packetBytes);
 	}
 	
+	/**
+	 * Creates a buffer suitable for {@link #writeMessage(OutputStream, ContextMessage, ByteBuffer, UniqueIdProvider)}.
+	 * The buffer is meant to be reused for all messages of a connection.
+	 * @return a new buffer
+	 */
+	public static ByteBuffer createMessageBuffer() {
+		return ByteBuffer.allocate(maxDataSize);
+	}
+	
+	/**
+	 * Encodes a message (terminated by newline) into <em>buffer</em>.
+	 * @return <em>true</em> if the message fits into a single packet, 
+	 * <em>false</em> if it needs to be transferred
+	 */
+	private static boolean encodeMessage(ContextMessage cm, ByteBuffer buffer) {
+		buffer.clear();
+		if(buffer.remaining() > maxDataSize)
+			buffer.limit(maxDataSize);
+		try {
+			if(!cm.writeTo(buffer))
+				throw new RuntimeException("ContextMessage without valid type!");
+			buffer.put(newLineBytes);
+		} catch(BufferOverflowException boe) {
+			return false;
+		}
+		buffer.flip();
+		return true;
+	}
+	
+	/**
+	 * Writes a message directly from its serialized form without creating
+	 * intermediate Strings. Messages that do not fit into a single packet
+	 * are sent as transfer like {@link #writeMessage(OutputStream, String, boolean, UniqueIdProvider)}
+	 * would do.
+	 * @param os stream to write to
+	 * @param cm message to write
+	 * @param buffer reusable buffer (see {@link #createMessageBuffer()})
+	 * @param uid id provider for transfers
+	 */
+	public static WriteMessageResult writeMessage(OutputStream os, ContextMessage cm, ByteBuffer buffer, UniqueIdProvider uid) throws IOException {
+		if(!encodeMessage(cm, buffer))
+			return writeMessage(os, cm.toString(), cm.getType() == ContextMessage.Type.Context || cm.getType() == ContextMessage.Type.ShortContext, uid);
+		
+		if(buffer.hasArray()) {
+			os.write(buffer.array(), buffer.arrayOffset(), buffer.limit());
+		} else {
+			byte [] data = new byte [buffer.limit()];
+			buffer.get(data);
+			os.write(data);
+		}
+		
+		return new WriteMessageResult();
+	}
+	
+	/**
+	 * Channel variant of {@link #writeMessage(OutputStream, ContextMessage, ByteBuffer, UniqueIdProvider)}
+	 */
+	public static WriteMessageResult writeMessageC(ByteChannel c, ContextMessage cm, ByteBuffer buffer, UniqueIdProvider uid) throws IOException {
+		if(!encodeMessage(cm, buffer))
+			return writeMessageC(c, cm.toString(), cm.getType() == ContextMessage.Type.Context || cm.getType() == ContextMessage.Type.ShortContext, uid);
+		
+		writeByteChannel(c, buffer);
+		
+		return new WriteMessageResult();
+	}
+	
 	private static void writeByteChannel(ByteChannel c, ByteBuffer bb) throws IOException {
 		int l = bb.limit();
 		int written = 0;
@@ -617,4 +706,84 @@ public class Protocol {
 		}
 		return null;
 	}
+	
+	/**
+	 * @return reply to a paged {@link #HISTORY} query:
+	 * <em>REPLY count continuation element...</em> with the continuation
+	 * <em>@</em> on the last page
+	 */
+	public static String formatHistoryPage(HistoryPage page) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(REPLY).append(' ').append(page.getElements().size()).append(' ');
+		try {
+			Util.urlencode(page.hasMore() ? page.getContinuation() : "", sb);
+			for(ContextElement ce : page.getElements()) {
+				sb.append(' ');
+				Util.urlencode(ce.toShortString(null), sb);
+			}
+		} catch (IOException e) {
+			// StringBuilder does not throw
+		}
+		return sb.toString();
+	}
+	
+	public static HistoryPage parseHistoryPage(String srcName, String prpName, String histstring) {
+		String [] words = Util.splitWS(histstring);
+		words = Util.stripPrefix(words);
+		if(words.length>2 && Protocol.REPLY.equalsIgnoreCase(words[0])) {
+			if(Util.parseIntOr(words[1], -1) != words.length - 3)
+				return null;
+			
+			String continuation = Util.urldecode(words[2]);
+			List<ContextElement> celist = new ArrayList<ContextElement>(words.length - 3);
+			for(int i=3; i<words.length; i++) {
+				ContextElement ce = ContextElement.fromShortString(srcName, prpName, Util.urldecode(words[i]));
+				if(ce == null)
+					return null;
+				celist.add(ce);
+			}
+			
+			return new HistoryPage(celist, (continuation.length() == 0) ? null : continuation);
+		}
+		return null;
+	}
+	
+	/**
+	 * @return reply to an aggregated {@link #HISTORY} query:
+	 * <em>REPLY count bucket...</em> with each bucket url-encoded
+	 */
+	public static String formatAggregatedHistory(List<HistoryAggregate> aggregates) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(REPLY).append(' ').append(aggregates.size());
+		for(HistoryAggregate ha : aggregates) {
+			sb.append(' ');
+			try {
+				Util.urlencode(ha.toShortString(), sb);
+			} catch (IOException e) {
+				// StringBuilder does not throw
+			}
+		}
+		return sb.toString();
+	}
+	
+	public static List<HistoryAggregate> parseAggregatedHistory(String histstring) {
+		String [] words = Util.splitWS(histstring);
+		words = Util.stripPrefix(words);
+		if(words.length>1 && Protocol.REPLY.equalsIgnoreCase(words[0])) {
+			List<HistoryAggregate> halist = new ArrayList<HistoryAggregate>(words.length - 2);
+			
+			if(Util.parseIntOr(words[1], -1) != words.length - 2)
+				return null;
+			
+			for(int i=2; i<words.length; i++) {
+				HistoryAggregate ha = HistoryAggregate.fromShortString(Util.urldecode(words[i]));
+				if(ha == null)
+					return null;
+				halist.add(ha);
+			}
+			
+			return halist;
+		}
+		return null;
+	}
 }
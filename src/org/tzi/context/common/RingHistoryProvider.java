@@ -0,0 +1,469 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * In-memory history keeping the most recent samples of every property.
+ * </br>
+ * Each property has a ring of primitive arrays (timestamps, value ids and
+ * tag set ids). Values and tag sets are interned per property, so a
+ * sensor repeating a few values costs 16 bytes per sample. A ring holds
+ * at most a fixed number of samples and, if set, only samples younger
+ * than the maximum age relative to the newest one. When all rings
+ * together exceed the memory budget the oldest samples of the least
+ * recently used property are dropped.</br>
+ * Queries binary search the timestamps and return elements in timestamp
+ * order, <em>from</em> and <em>to</em> inclusive; a limit &lt;= 0 means
+ * no limit and elements need one of <em>withTags</em> unless it is
+ * <em>null</em> or empty.
+ */
+public class RingHistoryProvider implements AggregatingHistoryProvider {
+
+	/**
+	 * returned by {@link #earliestRecord(Integer)} and
+	 * {@link #latestRecord(Integer)} for properties without history
+	 */
+	public static final long NO_RECORD = -1;
+
+	/**
+	 * bytes per sample in the rings
+	 */
+	public static final int SAMPLE_SIZE = 16;
+
+	/**
+	 * estimated bytes of an interned string besides its characters
+	 */
+	private static final int STRING_OVERHEAD = 48;
+
+	private static final boolean [] NO_MATCH = new boolean [0];
+
+	/**
+	 * Values or tag sets of one property mapped to ids with reference
+	 * counts; ids of unreferenced entries are reused.
+	 */
+	private static final class Dictionary<T> {
+		private final Map<T, Integer> ids = new HashMap<T, Integer>();
+		private Object [] entries = new Object [8];
+		private int [] refs = new int [8];
+		private int [] free = new int [8];
+		private int numFree = 0;
+		private int next = 0;
+
+		/**
+		 * @return id of t or -1
+		 */
+		public int find(T t) {
+			Integer id = ids.get(t);
+			return (id == null) ? -1 : id;
+		}
+
+		public void retain(int id) {
+			refs[id]++;
+		}
+
+		/**
+		 * @param t entry that is not in the dictionary yet
+		 * @return its id
+		 */
+		public int add(T t) {
+			int i;
+			if(numFree > 0) {
+				i = free[--numFree];
+			} else {
+				if(next == entries.length) {
+					int n = entries.length * 2;
+					Object [] ne = new Object [n];
+					int [] nr = new int [n];
+					System.arraycopy(entries, 0, ne, 0, next);
+					System.arraycopy(refs, 0, nr, 0, next);
+					entries = ne;
+					refs = nr;
+				}
+				i = next++;
+			}
+			entries[i] = t;
+			refs[i] = 1;
+			ids.put(t, i);
+			return i;
+		}
+
+		/**
+		 * @return the entry if it is not referenced anymore, <em>null</em> otherwise
+		 */
+		@SuppressWarnings("unchecked")
+		public T release(int id) {
+			if(--refs[id] > 0)
+				return null;
+			T t = (T)entries[id];
+			entries[id] = null;
+			ids.remove(t);
+			if(numFree == free.length) {
+				int [] nf = new int [free.length * 2];
+				System.arraycopy(free, 0, nf, 0, numFree);
+				free = nf;
+			}
+			free[numFree++] = id;
+			return t;
+		}
+
+		@SuppressWarnings("unchecked")
+		public T get(int id) {
+			return (T)entries[id];
+		}
+
+		public int capacity() {
+			return next;
+		}
+	}
+
+	private static final class Ring {
+		private String source;
+		private String property;
+		private long [] ts = new long [16];
+		private int [] vals = new int [16];
+		/**
+		 * tag set id shifted left by one, lowest bit is the persistent flag
+		 */
+		private int [] meta = new int [16];
+		private int head = 0;
+		private int size = 0;
+		private final Dictionary<String> values = new Dictionary<String>();
+		private final Dictionary<Set<String>> tagSets = new Dictionary<Set<String>>();
+		/**
+		 * bytes used by samples and interned strings
+		 */
+		private long bytes = 0;
+
+		public Ring(String source, String property) {
+			this.source = source;
+			this.property = property;
+		}
+
+		private int slot(int i) {
+			return (head + i) & (ts.length - 1);
+		}
+
+		public long tsAt(int i) {
+			return ts[slot(i)];
+		}
+
+		private void grow(int maxSize) {
+			int n = Math.min(ts.length * 2, Integer.highestOneBit(Math.max(maxSize - 1, 1)) << 1);
+			long [] nts = new long [n];
+			int [] nvals = new int [n];
+			int [] nmeta = new int [n];
+			for(int i=0; i<size; i++) {
+				int s = slot(i);
+				nts[i] = ts[s];
+				nvals[i] = vals[s];
+				nmeta[i] = meta[s];
+			}
+			ts = nts;
+			vals = nvals;
+			meta = nmeta;
+			head = 0;
+		}
+
+		/**
+		 * @return index of the first sample with a timestamp &gt;= t
+		 */
+		public int lowerBound(long t) {
+			int lo = 0;
+			int hi = size;
+			while(lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if(tsAt(mid) < t)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		/**
+		 * @return change of the used bytes
+		 */
+		public long add(ContextElement ce, int maxSize) {
+			long before = bytes;
+			if(size == maxSize)
+				removeOldest(1);
+			else if(size == ts.length)
+				grow(maxSize);
+
+			String value = ce.getValue();
+			int v = values.find(value);
+			if(v >= 0) {
+				values.retain(v);
+			} else {
+				v = values.add(value);
+				bytes += STRING_OVERHEAD + 2L * value.length();
+			}
+			int t = tagSets.find(ce.getTypeTags());
+			if(t >= 0) {
+				tagSets.retain(t);
+			} else {
+				// the set of the element may be modified later on
+				Set<String> copy = Collections.unmodifiableSet(new TreeSet<String>(ce.getTypeTags()));
+				t = tagSets.add(copy);
+				bytes += STRING_OVERHEAD;
+				for(String tag : copy)
+					bytes += STRING_OVERHEAD + 2L * tag.length();
+			}
+
+			// mostly appends; late samples are moved into place
+			long timestamp = ce.getTimestamp();
+			int pos = size;
+			while(pos > 0 && tsAt(pos - 1) > timestamp)
+				pos--;
+			for(int i=size; i>pos; i--) {
+				int d = slot(i);
+				int s = slot(i - 1);
+				ts[d] = ts[s];
+				vals[d] = vals[s];
+				meta[d] = meta[s];
+			}
+			int s = slot(pos);
+			ts[s] = timestamp;
+			vals[s] = v;
+			meta[s] = (t << 1) | (ce.isPersistent() ? 1 : 0);
+			size++;
+			bytes += SAMPLE_SIZE;
+			return bytes - before;
+		}
+
+		/**
+		 * @return change of the used bytes
+		 */
+		public long removeOldest(int n) {
+			long before = bytes;
+			n = Math.min(n, size);
+			for(int i=0; i<n; i++) {
+				int s = slot(0);
+				String value = values.release(vals[s]);
+				if(value != null)
+					bytes -= STRING_OVERHEAD + 2L * value.length();
+				Set<String> tags = tagSets.release(meta[s] >>> 1);
+				if(tags != null) {
+					bytes -= STRING_OVERHEAD;
+					for(String tag : tags)
+						bytes -= STRING_OVERHEAD + 2L * tag.length();
+				}
+				head = (head + 1) & (ts.length - 1);
+				size--;
+				bytes -= SAMPLE_SIZE;
+			}
+			return bytes - before;
+		}
+
+		/**
+		 * @return number of samples older than t
+		 */
+		public int countBefore(long t) {
+			return lowerBound(t);
+		}
+
+		/**
+		 * @return per tag set id whether it has one of the tags; <em>null</em>
+		 * to accept all, {@link #NO_MATCH} if no tag set matches
+		 */
+		private boolean [] matchTags(Set<String> withTags) {
+			if(withTags == null || withTags.isEmpty())
+				return null;
+			boolean [] tagMatch = new boolean [tagSets.capacity()];
+			boolean any = false;
+			for(int i=0; i<tagMatch.length; i++) {
+				Set<String> tags = tagSets.get(i);
+				if(tags == null)
+					continue;
+				for(String tag : tags) {
+					if(withTags.contains(tag)) {
+						tagMatch[i] = true;
+						any = true;
+						break;
+					}
+				}
+			}
+			return any ? tagMatch : NO_MATCH;
+		}
+
+		public void read(long from, long to, int limit, Set<String> withTags, List<ContextElement> out) {
+			boolean [] tagMatch = matchTags(withTags);
+			if(tagMatch == NO_MATCH)
+				return;
+			for(int i = lowerBound(from); i < size; i++) {
+				int s = slot(i);
+				long t = ts[s];
+				if(t > to)
+					break;
+				int m = meta[s];
+				if(tagMatch != null && !tagMatch[m >>> 1])
+					continue;
+				out.add(new ContextElement(tagSets.get(m >>> 1), source, property, values.get(vals[s]), t, (m & 1) != 0));
+				if(limit > 0 && out.size() >= limit)
+					break;
+			}
+		}
+
+		public void aggregate(long from, long to, Set<String> withTags, HistoryAggregator agg) {
+			boolean [] tagMatch = matchTags(withTags);
+			if(tagMatch == NO_MATCH)
+				return;
+			for(int i = lowerBound(from); i < size; i++) {
+				int s = slot(i);
+				long t = ts[s];
+				if(t > to)
+					break;
+				if(tagMatch != null && !tagMatch[meta[s] >>> 1])
+					continue;
+				agg.add(t, values.get(vals[s]));
+			}
+		}
+	}
+
+	private final int maxSamples;
+	private final long maxAge;
+	private final long memoryBudget;
+
+	/**
+	 * rings in access order, least recently used first; guarded by itself
+	 */
+	private final LinkedHashMap<Integer, Ring> rings = new LinkedHashMap<Integer, Ring>(16, 0.75f, true);
+	private long usedBytes = 0;
+
+	/**
+	 * @param maxSamples maximum number of samples per property
+	 * @param maxAge maximum age in milliseconds relative to the newest
+	 * sample of a property; 0 for no limit
+	 * @param memoryBudget approximate maximum number of bytes used by all
+	 * properties together
+	 */
+	public RingHistoryProvider(int maxSamples, long maxAge, long memoryBudget) {
+		if(maxSamples < 1)
+			throw new IllegalArgumentException("maxSamples must be positive!");
+		if(maxAge < 0)
+			throw new IllegalArgumentException("maxAge must not be negative!");
+		if(memoryBudget < SAMPLE_SIZE)
+			throw new IllegalArgumentException("memory budget too small!");
+		this.maxSamples = maxSamples;
+		this.maxAge = maxAge;
+		this.memoryBudget = memoryBudget;
+	}
+
+	public int getMaxSamples() {
+		return maxSamples;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @return estimated number of bytes used
+	 */
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	/**
+	 * @return number of samples of a property
+	 */
+	public synchronized int getSampleCount(Integer prpId) {
+		Ring r = rings.get(prpId);
+		return (r == null) ? 0 : r.size;
+	}
+
+	/**
+	 * Adds an element to the history of a property.
+	 * @param prpId property id
+	 * @param ce element
+	 */
+	public synchronized void append(Integer prpId, ContextElement ce) {
+		Ring r = rings.get(prpId);
+		if(r == null) {
+			r = new Ring(ce.getSourceIdentifier(), ce.getPropertyIdentifier());
+			rings.put(prpId, r);
+		}
+		usedBytes += r.add(ce, maxSamples);
+		if(maxAge > 0 && r.size > 0)
+			usedBytes += r.removeOldest(r.countBefore(r.tsAt(r.size - 1) - maxAge));
+
+		if(usedBytes <= memoryBudget)
+			return;
+		Iterator<Ring> ri = rings.values().iterator();
+		while(usedBytes > memoryBudget && ri.hasNext()) {
+			Ring lru = ri.next();
+			// drop in chunks so the next append does not evict again
+			int chunk = Math.max(1, lru.size / 8);
+			while(usedBytes > memoryBudget && lru.size > 0)
+				usedBytes += lru.removeOldest(chunk);
+			if(lru.size == 0 && lru != r)
+				ri.remove();
+		}
+	}
+
+	/**
+	 * Forgets the history of a property.
+	 */
+	public synchronized void remove(Integer prpId) {
+		Ring r = rings.remove(prpId);
+		if(r != null)
+			usedBytes -= r.bytes;
+	}
+
+	public boolean historySupported() {
+		return true;
+	}
+
+	public synchronized List<ContextElement> getHistory(Integer prpId, long from, long to, int limit, Set<String> withTags) {
+		List<ContextElement> result = new ArrayList<ContextElement>();
+		Ring r = rings.get(prpId);
+		if(r != null && from <= to)
+			r.read(from, to, limit, withTags, result);
+		return result;
+	}
+
+	public synchronized List<HistoryAggregate> getAggregatedHistory(Integer prpId, long from, long to, long bucketWidth, Set<String> withTags) {
+		HistoryAggregator agg = new HistoryAggregator(bucketWidth);
+		Ring r = rings.get(prpId);
+		if(r != null && from <= to)
+			r.aggregate(from, to, withTags, agg);
+		return agg.getAggregates();
+	}
+
+	public synchronized long earliestRecord(Integer prpId) {
+		Ring r = rings.get(prpId);
+		return (r == null || r.size == 0) ? NO_RECORD : r.tsAt(0);
+	}
+
+	public synchronized long latestRecord(Integer prpId) {
+		Ring r = rings.get(prpId);
+		return (r == null || r.size == 0) ? NO_RECORD : r.tsAt(r.size - 1);
+	}
+}
@@ -0,0 +1,559 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Embedded history store writing one directory of segment files per
+ * property id.</br>
+ * Elements are appended to the open segment of their property; it is
+ * sealed and a new one started when it reaches the segment size or when
+ * an element is older than the last one, so every segment is in timestamp
+ * order. Range queries binary search the sparse index of each segment
+ * that overlaps the range. Earliest and latest record are kept in memory.
+ * </br>
+ * Queries return elements in timestamp order, <em>from</em> and
+ * <em>to</em> inclusive; a limit &lt;= 0 means no limit and elements need
+ * one of <em>withTags</em> unless it is <em>null</em> or empty.
+ * Appends and queries of one property are serialized, different
+ * properties do not block each other.</br>
+ * New segments can be written compressed as {@link HistoryBlock}s;
+ * existing segments are read in the format they were written in.</br>
+ * With a {@link HistoryRetention} set, {@link #compact(long)} (or a
+ * background thread started by {@link #startCompaction(long)}) rewrites
+ * sealed segments with expired samples, moving those into rollup files of
+ * the property. The rewrite reads and writes without holding the lock of
+ * the property; it is only taken to swap the files and append the
+ * rollups, so queries see the samples once. Aggregated queries
+ * without tags include the rollup buckets within the range whose width
+ * divides the bucket width.
+ * A crash between swapping a segment and writing its rollups loses those
+ * rollups but never counts samples twice.
+ */
+public class SegmentHistoryProvider implements AggregatingHistoryProvider {
+
+	public static final long DEFAULT_SEGMENT_SIZE = 8L << 20;
+
+	/**
+	 * returned by {@link #earliestRecord(Integer)} and
+	 * {@link #latestRecord(Integer)} for properties without history
+	 */
+	public static final long NO_RECORD = -1;
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private static final class PropertyHistory {
+		private final File dir;
+		private final List<HistorySegment> segments = new ArrayList<HistorySegment>();
+		private final Map<Long, HistoryRollupFile> rollups = new TreeMap<Long, HistoryRollupFile>();
+		private long nextSequence = 0;
+		private volatile long earliest = NO_RECORD;
+		private volatile long latest = NO_RECORD;
+
+		public PropertyHistory(File dir) {
+			this.dir = dir;
+		}
+
+		public HistorySegment getActive() {
+			if(segments.isEmpty())
+				return null;
+			HistorySegment hs = segments.get(segments.size() - 1);
+			return hs.isSealed() ? null : hs;
+		}
+
+		public File nextFile() {
+			return new File(dir, String.format("%016d%s", nextSequence++, SEGMENT_SUFFIX));
+		}
+
+		public void updateBounds() {
+			long e = Long.MAX_VALUE;
+			long l = Long.MIN_VALUE;
+			for(HistorySegment hs : segments) {
+				if(hs.getCount() == 0)
+					continue;
+				e = Math.min(e, hs.getFirstTimestamp());
+				l = Math.max(l, hs.getLastTimestamp());
+			}
+			earliest = (e == Long.MAX_VALUE) ? NO_RECORD : e;
+			latest = (l == Long.MIN_VALUE) ? NO_RECORD : l;
+		}
+	}
+
+	private final File dir;
+	private final long segmentSize;
+	private final boolean compressed;
+	private final ConcurrentHashMap<Integer, PropertyHistory> histories = new ConcurrentHashMap<Integer, PropertyHistory>();
+
+	private volatile HistoryRetention retention = null;
+	/**
+	 * held during a compaction pass
+	 */
+	private final Object compactLock = new Object();
+	private Thread compactor = null;
+
+	public SegmentHistoryProvider(File dir) throws IOException {
+		this(dir, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Opens or creates a store.
+	 * @param dir directory of the store
+	 * @param segmentSize size in bytes at which segments are sealed
+	 * @throws IOException if the directory or a segment can not be read
+	 */
+	public SegmentHistoryProvider(File dir, long segmentSize) throws IOException {
+		this(dir, segmentSize, false);
+	}
+
+	/**
+	 * Opens or creates a store.
+	 * @param dir directory of the store
+	 * @param segmentSize size in bytes at which segments are sealed
+	 * @param compressed write new segments as compressed blocks
+	 * @throws IOException if the directory or a segment can not be read
+	 */
+	public SegmentHistoryProvider(File dir, long segmentSize, boolean compressed) throws IOException {
+		if(segmentSize < 1024 || segmentSize > Integer.MAX_VALUE / 2)
+			throw new IllegalArgumentException("segment size must be between 1KiB and 1GiB!");
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.compressed = compressed;
+		if(!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Can not create " + dir);
+
+		File [] propDirs = dir.listFiles();
+		if(propDirs == null)
+			throw new IOException("Can not list " + dir);
+		for(File pd : propDirs) {
+			Integer prpId;
+			try {
+				prpId = Integer.valueOf(pd.getName());
+			} catch(NumberFormatException nfe) {
+				continue;
+			}
+			if(pd.isDirectory())
+				histories.put(prpId, load(pd));
+		}
+	}
+
+	private static PropertyHistory load(File pd) throws IOException {
+		PropertyHistory ph = new PropertyHistory(pd);
+		File [] files = pd.listFiles();
+		if(files == null)
+			throw new IOException("Can not list " + pd);
+		Arrays.sort(files);
+		for(File f : files) {
+			String name = f.getName();
+			if(name.endsWith(TMP_SUFFIX)) {
+				// left over by an interrupted compaction
+				f.delete();
+				continue;
+			}
+			long width = HistoryRollupFile.widthOf(f);
+			if(width > 0) {
+				ph.rollups.put(Long.valueOf(width), HistoryRollupFile.open(f, width));
+				continue;
+			}
+			if(!name.endsWith(SEGMENT_SUFFIX))
+				continue;
+			try {
+				long seq = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				ph.nextSequence = Math.max(ph.nextSequence, seq + 1);
+			} catch(NumberFormatException nfe) {
+				continue;
+			}
+			ph.segments.add(HistorySegment.open(f));
+		}
+		// only the newest segment may stay open
+		for(int i=0; i<ph.segments.size() - 1; i++)
+			ph.segments.get(i).seal();
+		ph.updateBounds();
+		return ph;
+	}
+
+	public File getDirectory() {
+		return dir;
+	}
+
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	private PropertyHistory getHistory(Integer prpId, boolean create) {
+		PropertyHistory ph = histories.get(prpId);
+		if(ph == null && create) {
+			ph = new PropertyHistory(new File(dir, prpId.toString()));
+			PropertyHistory prev = histories.putIfAbsent(prpId, ph);
+			if(prev != null)
+				ph = prev;
+		}
+		return ph;
+	}
+
+	/**
+	 * Appends an element to the history of a property.
+	 * @param prpId property id
+	 * @param ce element
+	 */
+	public void append(Integer prpId, ContextElement ce) throws IOException {
+		PropertyHistory ph = getHistory(prpId, true);
+		synchronized (ph) {
+			HistorySegment active = ph.getActive();
+			if(active != null && (!active.canAppend(ce.getTimestamp()) || active.getLength() >= segmentSize)) {
+				active.seal();
+				active = null;
+			}
+			if(active == null) {
+				if(!ph.dir.isDirectory() && !ph.dir.mkdirs())
+					throw new IOException("Can not create " + ph.dir);
+				active = HistorySegment.create(ph.nextFile(), ce.getSourceIdentifier(), ce.getPropertyIdentifier(), compressed);
+				ph.segments.add(active);
+			}
+			active.append(ce);
+			if(ph.earliest == NO_RECORD || ce.getTimestamp() < ph.earliest)
+				ph.earliest = ce.getTimestamp();
+			if(ph.latest == NO_RECORD || ce.getTimestamp() > ph.latest)
+				ph.latest = ce.getTimestamp();
+		}
+	}
+
+	/**
+	 * Writes buffered elements of all properties to their files.
+	 * @param force also force them to the device
+	 */
+	public void flush(boolean force) throws IOException {
+		for(PropertyHistory ph : histories.values()) {
+			synchronized (ph) {
+				HistorySegment active = ph.getActive();
+				if(active != null)
+					active.flush(force);
+			}
+		}
+	}
+
+	/**
+	 * Flushes and closes all segments; open segments stay open on disk and
+	 * are continued by the next instance. Stops the compaction thread and
+	 * waits for a running compaction.
+	 */
+	public void close() throws IOException {
+		stopCompaction();
+		synchronized (compactLock) {
+			IOException first = null;
+			for(PropertyHistory ph : histories.values()) {
+				synchronized (ph) {
+					for(HistorySegment hs : ph.segments) {
+						try {
+							hs.close();
+						} catch(IOException ioe) {
+							if(first == null)
+								first = ioe;
+						}
+					}
+					for(HistoryRollupFile rf : ph.rollups.values()) {
+						try {
+							rf.close();
+						} catch(IOException ioe) {
+							if(first == null)
+								first = ioe;
+						}
+					}
+				}
+			}
+			histories.clear();
+			if(first != null)
+				throw first;
+		}
+	}
+
+	/**
+	 * @param retention rules applied by the next compaction; <em>null</em> to keep everything
+	 */
+	public void setRetention(HistoryRetention retention) {
+		this.retention = retention;
+	}
+
+	public HistoryRetention getRetention() {
+		return retention;
+	}
+
+	/**
+	 * Runs {@link #compact(long)} with the current time every
+	 * <em>interval</em> milliseconds in a daemon thread.
+	 */
+	public synchronized void startCompaction(final long interval) {
+		if(interval <= 0)
+			throw new IllegalArgumentException("interval must be positive!");
+		if(compactor != null)
+			throw new IllegalStateException("Compaction is already running!");
+		compactor = new Thread(new Runnable() {
+			public void run() {
+				compactLoop(interval);
+			}
+		});
+		compactor.setName("SegmentHistoryProvider " + dir.getName());
+		compactor.setDaemon(true);
+		compactor.start();
+	}
+
+	/**
+	 * Stops the compaction thread; a running compaction still finishes.
+	 */
+	public synchronized void stopCompaction() {
+		compactor = null;
+		notifyAll();
+	}
+
+	private void compactLoop(long interval) {
+		while(true) {
+			synchronized (this) {
+				if(compactor != Thread.currentThread())
+					return;
+				try {
+					wait(interval);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if(compactor != Thread.currentThread())
+					return;
+			}
+			try {
+				compact(System.currentTimeMillis());
+			} catch(IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Applies the retention: sealed segments with expired samples are
+	 * rewritten or deleted, expired samples go into rollups and expired
+	 * rollups are removed. Appends and queries continue meanwhile.
+	 * @param now time the ages are relative to
+	 * @return number of raw samples removed
+	 */
+	public long compact(long now) throws IOException {
+		HistoryRetention hr = retention;
+		if(hr == null)
+			return 0;
+		long removed = 0;
+		synchronized (compactLock) {
+			for(PropertyHistory ph : histories.values()) {
+				List<HistorySegment> sealed = new ArrayList<HistorySegment>();
+				List<HistoryRollupFile> rollupFiles;
+				synchronized (ph) {
+					// a slowly filling segment would otherwise keep expired samples forever
+					HistorySegment active = ph.getActive();
+					if(active != null && active.getCount() > 0) {
+						long minAge = hr.minRawAge(active.getSource(), active.getProperty());
+						if(minAge != HistoryRetention.FOREVER && active.getFirstTimestamp() < now - minAge)
+							active.seal();
+					}
+					for(HistorySegment hs : ph.segments) {
+						if(hs.isSealed())
+							sealed.add(hs);
+					}
+				}
+				for(HistorySegment hs : sealed)
+					removed += compact(ph, hs, hr, now);
+				synchronized (ph) {
+					rollupFiles = new ArrayList<HistoryRollupFile>(ph.rollups.values());
+				}
+				for(HistoryRollupFile rf : rollupFiles) {
+					long age = hr.maxRollupAge(rf.getSource(), rf.getProperty(), rf.getWidth());
+					if(age != HistoryRetention.FOREVER)
+						rf.expire(now - age);
+				}
+			}
+		}
+		return removed;
+	}
+
+	private static long compact(PropertyHistory ph, HistorySegment hs, HistoryRetention hr, long now) throws IOException {
+		long minAge = hr.minRawAge(hs.getSource(), hs.getProperty());
+		if(minAge == HistoryRetention.FOREVER || hs.getCount() == 0 || hs.getFirstTimestamp() >= now - minAge)
+			return 0;
+
+		// a private instance of the sealed file, the shared one stays usable
+		List<ContextElement> samples = new ArrayList<ContextElement>(hs.getCount());
+		HistorySegment copy = HistorySegment.open(hs.getFile());
+		try {
+			copy.read(Long.MIN_VALUE, Long.MAX_VALUE, 0, null, samples);
+		} finally {
+			copy.close();
+		}
+
+		List<ContextElement> keep = new ArrayList<ContextElement>();
+		Map<Long, HistoryAggregator> rolled = new TreeMap<Long, HistoryAggregator>();
+		Map<Set<String>, HistoryRetention.Rule> rules = new HashMap<Set<String>, HistoryRetention.Rule>();
+		for(ContextElement ce : samples) {
+			HistoryRetention.Rule r = rules.get(ce.getTypeTags());
+			if(r == null && !rules.containsKey(ce.getTypeTags())) {
+				r = hr.ruleFor(hs.getSource(), hs.getProperty(), ce.getTypeTags());
+				rules.put(ce.getTypeTags(), r);
+			}
+			if(r == null || !r.expires(ce.getTimestamp(), now)) {
+				keep.add(ce);
+				continue;
+			}
+			if(r.rollsUp(ce.getTimestamp(), now)) {
+				Long w = Long.valueOf(r.getRollupWidth());
+				HistoryAggregator agg = rolled.get(w);
+				if(agg == null) {
+					agg = new HistoryAggregator(r.getRollupWidth());
+					rolled.put(w, agg);
+				}
+				agg.add(ce);
+			}
+		}
+		if(keep.size() == samples.size())
+			return 0;
+
+		File tmp = new File(hs.getFile().getPath() + TMP_SUFFIX);
+		if(!keep.isEmpty()) {
+			HistorySegment ns = HistorySegment.create(tmp, hs.getSource(), hs.getProperty(), hs.isCompressed());
+			for(ContextElement ce : keep)
+				ns.append(ce);
+			ns.seal();
+		}
+
+		synchronized (ph) {
+			int index = ph.segments.indexOf(hs);
+			if(index < 0) {
+				tmp.delete();
+				return 0;
+			}
+			hs.close();
+			if(keep.isEmpty()) {
+				hs.delete();
+				ph.segments.remove(index);
+			} else {
+				File f = hs.getFile();
+				if(!tmp.renameTo(f) && !(f.delete() && tmp.renameTo(f)))
+					throw new IOException("Can not replace " + f);
+				ph.segments.set(index, HistorySegment.open(f));
+			}
+			ph.updateBounds();
+
+			// queries see the samples either raw or rolled up, never both
+			for(Map.Entry<Long, HistoryAggregator> e : rolled.entrySet()) {
+				HistoryRollupFile rf = ph.rollups.get(e.getKey());
+				if(rf == null) {
+					long width = e.getKey().longValue();
+					rf = HistoryRollupFile.create(HistoryRollupFile.fileFor(ph.dir, width), width, hs.getSource(), hs.getProperty());
+					ph.rollups.put(e.getKey(), rf);
+				}
+				rf.append(e.getValue().getAggregates());
+			}
+		}
+		return samples.size() - keep.size();
+	}
+
+	public boolean historySupported() {
+		return true;
+	}
+
+	public List<ContextElement> getHistory(Integer prpId, long from, long to, int limit, Set<String> withTags) {
+		List<ContextElement> result = new ArrayList<ContextElement>();
+		PropertyHistory ph = getHistory(prpId, false);
+		if(ph == null)
+			return result;
+		synchronized (ph) {
+			try {
+				// segments only overlap after out of order appends
+				boolean ordered = true;
+				long last = Long.MIN_VALUE;
+				for(HistorySegment hs : ph.segments) {
+					if(hs.getCount() == 0)
+						continue;
+					if(hs.getFirstTimestamp() < last)
+						ordered = false;
+					last = Math.max(last, hs.getLastTimestamp());
+				}
+				for(HistorySegment hs : ph.segments) {
+					int remaining = (limit > 0 && ordered) ? limit - result.size() : 0;
+					hs.read(from, to, remaining, withTags, result);
+					if(limit > 0 && ordered && result.size() >= limit)
+						break;
+				}
+				if(!ordered) {
+					Collections.sort(result, new Comparator<ContextElement>() {
+						public int compare(ContextElement a, ContextElement b) {
+							return Long.compare(a.getTimestamp(), b.getTimestamp());
+						}
+					});
+					if(limit > 0 && result.size() > limit)
+						result.subList(limit, result.size()).clear();
+				}
+			} catch(IOException ioe) {
+				ioe.printStackTrace();
+			}
+		}
+		return result;
+	}
+
+	public List<HistoryAggregate> getAggregatedHistory(Integer prpId, long from, long to, long bucketWidth, Set<String> withTags) {
+		HistoryAggregator agg = new HistoryAggregator(bucketWidth);
+		PropertyHistory ph = getHistory(prpId, false);
+		if(ph == null)
+			return agg.getAggregates();
+		try {
+			// rollups are read under the lock too, compaction moves samples
+			// from the segments to the rollups while holding it
+			synchronized (ph) {
+				for(HistorySegment hs : ph.segments)
+					hs.aggregate(from, to, withTags, agg);
+				// rollups have no tags
+				if(withTags == null || withTags.isEmpty()) {
+					for(HistoryRollupFile rf : ph.rollups.values()) {
+						if(agg.fits(rf.getWidth()))
+							rf.read(from, to, agg);
+					}
+				}
+			}
+		} catch(IOException ioe) {
+			ioe.printStackTrace();
+		}
+		return agg.getAggregates();
+	}
+
+	public long earliestRecord(Integer prpId) {
+		PropertyHistory ph = getHistory(prpId, false);
+		return (ph == null) ? NO_RECORD : ph.earliest;
+	}
+
+	public long latestRecord(Integer prpId) {
+		PropertyHistory ph = getHistory(prpId, false);
+		return (ph == null) ? NO_RECORD : ph.latest;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Tag set of one element sharing its tags with other elements until it is
+ * first modified.</br>
+ * Used when loading many elements with few distinct tag sets, so each
+ * element still owns its tags without copying them up front.
+ */
+final class SharedTagSet extends AbstractSet<String> {
+
+	private Set<String> tags;
+	private boolean shared = true;
+
+	/**
+	 * @param tags tags to share; must not be modified afterwards
+	 */
+	public SharedTagSet(Set<String> tags) {
+		this.tags = tags;
+	}
+
+	private Set<String> own() {
+		if(shared) {
+			tags = new TreeSet<String>(tags);
+			shared = false;
+		}
+		return tags;
+	}
+
+	@Override
+	public int size() {
+		return tags.size();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		return tags.contains(o);
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		if(!shared)
+			return tags.iterator();
+		// the shared tags never change, removals go to the own copy
+		final Iterator<String> i = tags.iterator();
+		return new Iterator<String>() {
+			private String last = null;
+
+			public boolean hasNext() {
+				return i.hasNext();
+			}
+
+			public String next() {
+				last = i.next();
+				return last;
+			}
+
+			public void remove() {
+				if(last == null)
+					throw new IllegalStateException();
+				own().remove(last);
+				last = null;
+			}
+		};
+	}
+
+	@Override
+	public boolean add(String tag) {
+		if(shared && tags.contains(tag))
+			return false;
+		return own().add(tag);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+		if(shared && !tags.contains(o))
+			return false;
+		return own().remove(o);
+	}
+
+	@Override
+	public void clear() {
+		if(!tags.isEmpty())
+			own().clear();
+	}
+}
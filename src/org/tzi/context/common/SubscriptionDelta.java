@@ -0,0 +1,194 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Change of a subscription as a list of source/property/tag triples to add
+ * or remove.</br>
+ * Deltas are sent with {@link Protocol#SUBDELTA} so large subscriptions can
+ * be adjusted without transmitting and merging them again. The wire form
+ * is the number of triples followed by an operation (<em>+</em> or
+ * <em>-</em>), source, property and tag per triple, all url-encoded.
+ */
+public class SubscriptionDelta {
+
+	public static final String ADD = "+";
+	public static final String REMOVE = "-";
+
+	public static class Triple {
+		private boolean add;
+		private String source;
+		private String property;
+		private String tag;
+
+		public Triple(boolean add, String source, String property, String tag) {
+			this.add = add;
+			this.source = source;
+			this.property = property;
+			this.tag = tag;
+		}
+
+		public boolean isAdd() {
+			return add;
+		}
+
+		public String getSource() {
+			return source;
+		}
+
+		public String getProperty() {
+			return property;
+		}
+
+		public String getTag() {
+			return tag;
+		}
+
+		@Override
+		public String toString() {
+			return (add ? ADD : REMOVE) + " " + Util.urlencode(source) + " " + Util.urlencode(property) + " " + Util.urlencode(tag);
+		}
+	}
+
+	private List<Triple> triples = new ArrayList<Triple>();
+
+	public SubscriptionDelta add(String source, String property, String tag) {
+		triples.add(new Triple(true, source, property, tag));
+		return this;
+	}
+
+	public SubscriptionDelta remove(String source, String property, String tag) {
+		triples.add(new Triple(false, source, property, tag));
+		return this;
+	}
+
+	public List<Triple> getTriples() {
+		return Collections.unmodifiableList(triples);
+	}
+
+	public int size() {
+		return triples.size();
+	}
+
+	public boolean isEmpty() {
+		return triples.isEmpty();
+	}
+
+	/**
+	 * Applies the triples in order.
+	 * @param clp subscription to change
+	 * @return <em>true</em> if the subscription changed
+	 */
+	public boolean applyTo(ContextListenerProperties clp) {
+		boolean changed = false;
+		for(Triple t : triples) {
+			if(t.add)
+				changed |= clp.addTags(t.source, t.property, Collections.singleton(t.tag));
+			else
+				changed |= clp.removeTags(t.source, t.property, Collections.singleton(t.tag));
+		}
+		return changed;
+	}
+
+	/**
+	 * Computes the delta that turns one subscription into another (pattern
+	 * entries are not included).
+	 * @param from current subscription
+	 * @param to wanted subscription
+	 * @return removals followed by additions
+	 */
+	public static SubscriptionDelta diff(ContextListenerProperties from, ContextListenerProperties to) {
+		SubscriptionDelta d = new SubscriptionDelta();
+		collect(d, from.sourcePropTagMap, to.sourcePropTagMap, false);
+		collect(d, to.sourcePropTagMap, from.sourcePropTagMap, true);
+		return d;
+	}
+
+	/**
+	 * adds all triples of a that are not in b
+	 */
+	private static void collect(SubscriptionDelta d, Map<String, Map<String, Set<String>>> a, Map<String, Map<String, Set<String>>> b, boolean add) {
+		for(Map.Entry<String, Map<String, Set<String>>> se : a.entrySet()) {
+			Map<String, Set<String>> bProps = b.get(se.getKey());
+			for(Map.Entry<String, Set<String>> pe : se.getValue().entrySet()) {
+				Set<String> bTags = (bProps == null) ? null : bProps.get(pe.getKey());
+				for(String tag : pe.getValue()) {
+					if(bTags == null || !bTags.contains(tag))
+						d.triples.add(new Triple(add, se.getKey(), pe.getKey(), tag));
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(triples.size());
+		for(Triple t : triples) {
+			sb.append(' ');
+			sb.append(t.toString());
+		}
+		return sb.toString();
+	}
+
+	public static SubscriptionDelta fromString(String s) {
+		return fromWords(Util.splitWS(s), 0);
+	}
+
+	/**
+	 * @return the delta or <em>null</em> if the words are malformed
+	 */
+	public static SubscriptionDelta fromWords(String [] words, int offs) {
+		if(words.length - offs < 1)
+			return null;
+
+		int n;
+		try {
+			n = Integer.parseInt(words[offs]);
+			if(n < 0)
+				throw new NumberFormatException();
+		} catch(NumberFormatException nfe) {
+			return null;
+		}
+
+		if(words.length - offs - 1 < 4 * n)
+			return null;
+
+		SubscriptionDelta d = new SubscriptionDelta();
+		int wIndex = offs + 1;
+		for(int i=0; i<n; i++) {
+			String op = words[wIndex++];
+			boolean add;
+			if(ADD.equals(op))
+				add = true;
+			else if(REMOVE.equals(op))
+				add = false;
+			else
+				return null;
+			String source = Util.urldecode(words[wIndex++]);
+			String property = Util.urldecode(words[wIndex++]);
+			String tag = Util.urldecode(words[wIndex++]);
+			d.triples.add(new Triple(add, source, property, tag));
+		}
+		return d;
+	}
+}
@@ -0,0 +1,350 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how often the wrapped listener receives elements of one source
+ * and property.</br>
+ * An element arriving within the minimum interval after the last delivery
+ * is held back and replaced by newer ones; when the interval ends the
+ * latest held element is delivered by the executor of this listener, not
+ * the shared timer thread. So the listener always ends up with the latest
+ * value, but never gets more than one element per interval and property.
+ * The wrapped listener is never called while a lock of this one is held.
+ * </br>
+ * The interval comes from {@link ContextListenerProperties#getMinInterval(String, String)}
+ * of the wrapped listener's properties, or the default interval if none
+ * is set there. Deadbands of the wrapped listener are checked when an
+ * element is actually delivered. Other notifications are passed on
+ * directly.
+ * @see Context#addThrottledContextListener(ContextListener, long)
+ */
+public class ThrottledContextListener implements ContextListener {
+
+	private static class Slot {
+		private long lastSent = Long.MIN_VALUE;
+		private Context ctx;
+		private ContextElement pending;
+		private boolean scheduled = false;
+		/**
+		 * thread delivering a held element of this slot
+		 */
+		private Thread deliverer = null;
+		/**
+		 * flush was due during the delivery
+		 */
+		private boolean again = false;
+	}
+
+	private ContextListener target;
+	private long defaultInterval;
+	private TimerWheel wheel;
+	private Executor executor;
+	/**
+	 * executor created by this listener; shut down with it
+	 */
+	private ThreadPoolExecutor ownExecutor = null;
+	private DeadbandFilter deadbands = new DeadbandFilter();
+
+	private Map<String, Map<String, Slot>> slots = new HashMap<String, Map<String, Slot>>();
+	private volatile boolean running = true;
+
+	private long delivered = 0;
+	private long held = 0;
+	private long replaced = 0;
+
+	/**
+	 * @param target listener to notify
+	 * @param defaultInterval minimum time in milliseconds between two
+	 * deliveries for the same source and property if the properties do not
+	 * set one; 0 for no limit
+	 */
+	public ThrottledContextListener(ContextListener target, long defaultInterval) {
+		this(target, defaultInterval, null);
+	}
+
+	/**
+	 * @param target listener to notify
+	 * @param defaultInterval minimum time in milliseconds between two
+	 * deliveries for the same source and property if the properties do not
+	 * set one; 0 for no limit
+	 * @param executor runs the delivery of held elements; <em>null</em> for
+	 * a thread of this listener that ends when idle
+	 */
+	public ThrottledContextListener(ContextListener target, long defaultInterval, Executor executor) {
+		this(target, defaultInterval, TimerWheel.getShared(), executor);
+	}
+
+	ThrottledContextListener(ContextListener target, long defaultInterval, TimerWheel wheel, Executor executor) {
+		if(target==null)
+			throw new IllegalArgumentException("target may not be null!");
+		if(defaultInterval < 0)
+			throw new IllegalArgumentException("interval must not be negative!");
+		this.target = target;
+		this.defaultInterval = defaultInterval;
+		this.wheel = wheel;
+		if(executor==null) {
+			ownExecutor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r);
+					t.setName("ThrottledContextListener");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			ownExecutor.allowCoreThreadTimeOut(true);
+			executor = ownExecutor;
+		}
+		this.executor = executor;
+	}
+
+	public ContextListener getTarget() {
+		return target;
+	}
+
+	public long getDefaultInterval() {
+		return defaultInterval;
+	}
+
+	private long intervalFor(String source, String property) {
+		ContextListenerInterface cli = target.getProperties();
+		if(cli instanceof ContextListenerProperties) {
+			long i = ((ContextListenerProperties)cli).getMinInterval(source, property);
+			if(i > 0)
+				return i;
+		}
+		return defaultInterval;
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000L;
+	}
+
+	public void processContext(Context ctx, ContextElement ce) {
+		long interval = intervalFor(ce.getSourceIdentifier(), ce.getPropertyIdentifier());
+		synchronized (this) {
+			if(!running)
+				return;
+			if(interval > 0 ? !sendNow(ctx, ce, interval) : !passesDeadband(ctx, ce))
+				return;
+			delivered++;
+		}
+		target.processContext(ctx, ce);
+	}
+
+	/**
+	 * Checks the deadband of the wrapped listener right before delivery,
+	 * unless it delivers later itself.
+	 */
+	private boolean passesDeadband(Context ctx, ContextElement ce) {
+		if(DeadbandFilter.defers(target))
+			return true;
+		Deadband d = DeadbandFilter.deadbandFor(target, ce);
+		return d==null || deadbands.send(ctx, ce, d);
+	}
+
+	/**
+	 * Decides if an element is delivered now; otherwise it is held back.
+	 * @return <em>true</em> if it is to be delivered now
+	 */
+	private boolean sendNow(Context ctx, ContextElement ce, long interval) {
+		Map<String, Slot> props = slots.get(ce.getSourceIdentifier());
+		if(props==null) {
+			props = new HashMap<String, Slot>();
+			slots.put(ce.getSourceIdentifier(), props);
+		}
+		Slot s = props.get(ce.getPropertyIdentifier());
+		if(s==null) {
+			s = new Slot();
+			props.put(ce.getPropertyIdentifier(), s);
+		}
+		long now = now();
+		// a slow delivery of a held element must not be overtaken
+		if(!s.scheduled && s.deliverer==null && (s.lastSent == Long.MIN_VALUE || now - s.lastSent >= interval)) {
+			// too close to the last delivered value, the slot stays free
+			if(!passesDeadband(ctx, ce))
+				return false;
+			s.lastSent = now;
+			return true;
+		}
+		if(s.pending!=null)
+			replaced++;
+		else
+			held++;
+		s.ctx = ctx;
+		s.pending = ce;
+		if(!s.scheduled) {
+			s.scheduled = true;
+			final Slot fs = s;
+			final Runnable flush = new Runnable() {
+				public void run() {
+					flush(fs);
+				}
+			};
+			// the shared timer thread only hands over
+			wheel.schedule(new Runnable() {
+				public void run() {
+					try {
+						executor.execute(flush);
+					} catch(RejectedExecutionException ree) {
+						// shut down
+					}
+				}
+			}, Math.max(s.lastSent + interval - now, 1));
+		}
+		return false;
+	}
+
+	private void flush(Slot s) {
+		while(true) {
+			ContextElement ce;
+			Context ctx;
+			synchronized (this) {
+				if(s.deliverer!=null) {
+					// the delivering thread flushes again when done
+					s.again = true;
+					return;
+				}
+				s.scheduled = false;
+				if(!running || s.pending==null)
+					return;
+				ce = s.pending;
+				ctx = s.ctx;
+				s.pending = null;
+				s.ctx = null;
+				if(!passesDeadband(ctx, ce))
+					return;
+				s.lastSent = now();
+				s.deliverer = Thread.currentThread();
+				delivered++;
+			}
+			boolean again;
+			try {
+				target.processContext(ctx, ce);
+			} finally {
+				synchronized (this) {
+					s.deliverer = null;
+					again = s.again;
+					s.again = false;
+					notifyAll();
+				}
+			}
+			if(!again)
+				return;
+		}
+	}
+
+	/**
+	 * Stops delivering; held elements are discarded.
+	 */
+	public synchronized void shutdown() {
+		running = false;
+		slots.clear();
+		deadbands.clear();
+		if(ownExecutor!=null)
+			ownExecutor.shutdown();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public synchronized long getDeliveredCount() {
+		return delivered;
+	}
+
+	/**
+	 * @return number of elements held back and delivered later
+	 */
+	public synchronized long getHeldCount() {
+		return held;
+	}
+
+	/**
+	 * @return number of held elements replaced by newer ones
+	 */
+	public synchronized long getReplacedCount() {
+		return replaced;
+	}
+
+	public ContextListenerInterface getProperties() {
+		return target.getProperties();
+	}
+
+	public void sourceAdded(Context ctx, String source, String property) {
+		target.sourceAdded(ctx, source, property);
+	}
+
+	public void propertyAdded(Context ctx, String source, String property) {
+		target.propertyAdded(ctx, source, property);
+	}
+
+	/**
+	 * Waits until a held element that is being delivered has arrived.
+	 */
+	private void awaitDelivery(Slot s) {
+		// the wrapped listener may cause the removal itself
+		while(s.deliverer!=null && s.deliverer!=Thread.currentThread()) {
+			try {
+				wait();
+			} catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	public void sourceRemoved(Context ctx, String source) {
+		synchronized (this) {
+			// held elements must not arrive after the removal
+			deadbands.reset(ctx, source);
+			Map<String, Slot> props = slots.remove(source);
+			if(props!=null) {
+				for(Slot s : props.values()) {
+					s.pending = null;
+					s.ctx = null;
+					awaitDelivery(s);
+				}
+			}
+		}
+		target.sourceRemoved(ctx, source);
+	}
+
+	public void propertyRemoved(Context ctx, String source, String property) {
+		synchronized (this) {
+			deadbands.reset(ctx, source, property);
+			Map<String, Slot> props = slots.get(source);
+			Slot s = (props==null) ? null : props.remove(property);
+			if(s!=null) {
+				s.pending = null;
+				s.ctx = null;
+				if(props.isEmpty())
+					slots.remove(source);
+				awaitDelivery(s);
+			}
+		}
+		target.propertyRemoved(ctx, source, property);
+	}
+}
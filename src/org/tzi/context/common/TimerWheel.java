@@ -0,0 +1,168 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+/**
+ * Hashed timer wheel for many short delays of low precision.</br>
+ * Scheduling and expiring are O(1); a task runs up to one tick late. All
+ * tasks run on one daemon thread which sleeps while nothing is scheduled,
+ * so tasks must be short.
+ */
+final class TimerWheel {
+
+	private static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private Timeout next;
+
+		public Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+	}
+
+	private static TimerWheel shared = null;
+
+	/**
+	 * @return wheel with 10ms ticks shared by all throttled listeners
+	 */
+	public static synchronized TimerWheel getShared() {
+		if(shared==null)
+			shared = new TimerWheel(10, 512, "TimerWheel");
+		return shared;
+	}
+
+	private final long tickNanos;
+	private final Timeout [] slots;
+	private final int mask;
+	private final String name;
+
+	private final long start = System.nanoTime();
+	/**
+	 * last tick that was expired
+	 */
+	private long tick = 0;
+	private int count = 0;
+	private Thread worker = null;
+
+	/**
+	 * @param tickMillis resolution
+	 * @param numSlots slots per round, rounded up to a power of two
+	 * @param name thread name
+	 */
+	public TimerWheel(long tickMillis, int numSlots, String name) {
+		if(tickMillis < 1)
+			throw new IllegalArgumentException("tick must be positive!");
+		int n = 1;
+		while(n < numSlots)
+			n <<= 1;
+		this.tickNanos = tickMillis * 1000000L;
+		this.slots = new Timeout [n];
+		this.mask = n - 1;
+		this.name = name;
+	}
+
+	private long currentTick() {
+		return (System.nanoTime() - start) / tickNanos;
+	}
+
+	/**
+	 * @param task task to run
+	 * @param delayMillis minimum delay
+	 */
+	public synchronized void schedule(Runnable task, long delayMillis) {
+		long ticks = (delayMillis * 1000000L + tickNanos - 1) / tickNanos;
+		if(count == 0) {
+			// nothing was due while idle; the worker expires from here on
+			tick = currentTick();
+		}
+		// the current tick may already be running
+		long deadline = Math.max(currentTick(), tick) + Math.max(ticks, 1);
+		int slot = (int)(deadline & mask);
+		Timeout t = new Timeout(task, deadline);
+		t.next = slots[slot];
+		slots[slot] = t;
+		count++;
+
+		if(worker==null) {
+			worker = new Thread(new Runnable() {
+				public void run() {
+					loop();
+				}
+			});
+			worker.setName(name);
+			worker.setDaemon(true);
+			worker.start();
+		} else if(count == 1) {
+			notifyAll();
+		}
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	private void loop() {
+		while(true) {
+			Timeout expired = null;
+			synchronized (this) {
+				try {
+					while(count == 0)
+						wait();
+					long now = currentTick();
+					if(now <= tick) {
+						long sleep = (start + (tick + 1) * tickNanos) - System.nanoTime();
+						if(sleep > 0)
+							wait(sleep / 1000000L, (int)(sleep % 1000000L));
+						continue;
+					}
+					// catch up on every tick passed since the last run
+					long last = Math.min(now, tick + slots.length);
+					for(long t = tick + 1; t <= last; t++) {
+						int slot = (int)(t & mask);
+						Timeout prev = null;
+						Timeout cur = slots[slot];
+						while(cur!=null) {
+							Timeout next = cur.next;
+							if(cur.deadline <= now) {
+								if(prev==null)
+									slots[slot] = next;
+								else
+									prev.next = next;
+								cur.next = expired;
+								expired = cur;
+								count--;
+							} else {
+								prev = cur;
+							}
+							cur = next;
+						}
+					}
+					tick = now;
+				} catch(InterruptedException ie) {
+					return;
+				}
+			}
+			for(Timeout t = expired; t!=null; t = t.next) {
+				try {
+					t.task.run();
+				} catch(RuntimeException re) {
+					re.printStackTrace();
+				}
+			}
+		}
+	}
+}
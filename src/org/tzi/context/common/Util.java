@@ -84,6 +84,88 @@ public class Util {
 		}
 	}
 	
+	private static final char [] hexDigits = "0123456789ABCDEF".toCharArray();
+	
+	private static boolean isUrlSafe(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+			|| c == '.' || c == '-' || c == '*' || c == '_';
+	}
+	
+	private static void appendEscaped(Appendable a, int b) throws IOException {
+		a.append('%');
+		a.append(hexDigits[(b >> 4) & 0xF]);
+		a.append(hexDigits[b & 0xF]);
+	}
+	
+	/**
+	 * Same encoding as {@link #urlencode(String)} but the result is appended
+	 * to <em>a</em> without creating intermediate Strings.
+	 * @param s string to encode
+	 * @param a target for the encoded form
+	 */
+	public static void urlencode(CharSequence s, Appendable a) throws IOException {
+		int len = s.length();
+		if(len==0) {
+			a.append('@');
+			return;
+		}
+		
+		for(int i=0; i<len; i++) {
+			char c = s.charAt(i);
+			if(isUrlSafe(c)) {
+				a.append(c);
+			} else if(c == ' ') {
+				a.append('+');
+			} else if(c < 0x80) {
+				appendEscaped(a, c);
+			} else if(c < 0x800) {
+				appendEscaped(a, 0xC0 | (c >> 6));
+				appendEscaped(a, 0x80 | (c & 0x3F));
+			} else if(Character.isHighSurrogate(c) && (i+1)<len && Character.isLowSurrogate(s.charAt(i+1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				appendEscaped(a, 0xF0 | (cp >> 18));
+				appendEscaped(a, 0x80 | ((cp >> 12) & 0x3F));
+				appendEscaped(a, 0x80 | ((cp >> 6) & 0x3F));
+				appendEscaped(a, 0x80 | (cp & 0x3F));
+			} else if(Character.isSurrogate(c)) {
+				// unpaired surrogate; URLEncoder replaces these by '?'
+				appendEscaped(a, '?');
+			} else {
+				appendEscaped(a, 0xE0 | (c >> 12));
+				appendEscaped(a, 0x80 | ((c >> 6) & 0x3F));
+				appendEscaped(a, 0x80 | (c & 0x3F));
+			}
+		}
+	}
+	
+	/**
+	 * Appends the decimal representation of a long value without
+	 * creating a String.
+	 * @param a target
+	 * @param v value to append
+	 */
+	public static void appendLong(Appendable a, long v) throws IOException {
+		if(a instanceof StringBuilder) {
+			((StringBuilder)a).append(v);
+			return;
+		}
+		if(v == Long.MIN_VALUE) {
+			a.append("-9223372036854775808");
+			return;
+		}
+		if(v < 0) {
+			a.append('-');
+			v = -v;
+		}
+		long div = 1;
+		while(div <= v / 10)
+			div *= 10;
+		while(div > 0) {
+			a.append((char)('0' + ((v / div) % 10)));
+			div /= 10;
+		}
+	}
+	
 	public static String urldecode(String s) {
 		try {
 			if(s.length()==1 && s.charAt(0)=='@')
@@ -0,0 +1,239 @@
+/*
+   Copyright 2007-2013 Hendrik Iben, University Bremen
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+package org.tzi.context.common;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Sorted map that reports every change to a callback, including changes of
+ * the maps and sets stored in it.</br>
+ * Values are copied into watched maps and sets when they are put, so only
+ * changes made through this map are seen; references kept from before
+ * point to the original. <em>null</em> values are allowed. Not thread-safe.
+ */
+final class WatchedMap<V> extends AbstractMap<String, V> {
+
+	/**
+	 * Turns values into watched copies
+	 */
+	interface Watcher<V> {
+		V watch(V value, Runnable onChange);
+	}
+
+	private final TreeMap<String, V> map = new TreeMap<String, V>();
+	private final Runnable onChange;
+	private final Watcher<V> watcher;
+	private final Set<Map.Entry<String, V>> entrySet = new EntrySet();
+
+	private WatchedMap(Runnable onChange, Watcher<V> watcher) {
+		this.onChange = onChange;
+		this.watcher = watcher;
+	}
+
+	private static final Watcher<Set<String>> setWatcher = new Watcher<Set<String>>() {
+		public Set<String> watch(Set<String> value, Runnable onChange) {
+			if(value == null || (value instanceof WatchedSet && ((WatchedSet)value).onChange == onChange))
+				return value;
+			WatchedSet ws = new WatchedSet(onChange);
+			ws.set.addAll(value);
+			return ws;
+		}
+	};
+
+	private static final Watcher<Map<String, Set<String>>> propertyWatcher = new Watcher<Map<String, Set<String>>>() {
+		public Map<String, Set<String>> watch(Map<String, Set<String>> value, Runnable onChange) {
+			if(value == null || (value instanceof WatchedMap && ((WatchedMap<?>)value).onChange == onChange))
+				return value;
+			WatchedMap<Set<String>> wm = new WatchedMap<Set<String>>(onChange, setWatcher);
+			for(Map.Entry<String, Set<String>> e : value.entrySet())
+				wm.map.put(e.getKey(), setWatcher.watch(e.getValue(), onChange));
+			return wm;
+		}
+	};
+
+	/**
+	 * @return map of the form source -&gt; property -&gt; tags
+	 */
+	public static Map<String, Map<String, Set<String>>> subscriptionMap(Runnable onChange) {
+		return new WatchedMap<Map<String, Set<String>>>(onChange, propertyWatcher);
+	}
+
+	@Override
+	public int size() {
+		return map.size();
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return map.containsKey(key);
+	}
+
+	@Override
+	public V get(Object key) {
+		return map.get(key);
+	}
+
+	@Override
+	public V put(String key, V value) {
+		V old = map.put(key, watcher.watch(value, onChange));
+		onChange.run();
+		return old;
+	}
+
+	@Override
+	public V remove(Object key) {
+		if(!map.containsKey(key))
+			return null;
+		V old = map.remove(key);
+		onChange.run();
+		return old;
+	}
+
+	@Override
+	public void clear() {
+		if(map.isEmpty())
+			return;
+		map.clear();
+		onChange.run();
+	}
+
+	@Override
+	public Set<Map.Entry<String, V>> entrySet() {
+		return entrySet;
+	}
+
+	private class EntrySet extends AbstractSet<Map.Entry<String, V>> {
+		@Override
+		public int size() {
+			return map.size();
+		}
+
+		@Override
+		public Iterator<Map.Entry<String, V>> iterator() {
+			final Iterator<Map.Entry<String, V>> i = map.entrySet().iterator();
+			return new Iterator<Map.Entry<String, V>>() {
+				public boolean hasNext() {
+					return i.hasNext();
+				}
+
+				public Map.Entry<String, V> next() {
+					final Map.Entry<String, V> e = i.next();
+					return new SimpleEntry<String, V>(e) {
+						private static final long serialVersionUID = 1L;
+
+						@Override
+						public V setValue(V value) {
+							super.setValue(value);
+							V old = e.setValue(watcher.watch(value, onChange));
+							onChange.run();
+							return old;
+						}
+					};
+				}
+
+				public void remove() {
+					i.remove();
+					onChange.run();
+				}
+			};
+		}
+
+		@Override
+		public void clear() {
+			WatchedMap.this.clear();
+		}
+	}
+
+	/**
+	 * Sorted set of strings reporting its changes
+	 */
+	static final class WatchedSet extends AbstractSet<String> {
+		private final TreeSet<String> set = new TreeSet<String>();
+		private final Runnable onChange;
+
+		private WatchedSet(Runnable onChange) {
+			this.onChange = onChange;
+		}
+
+		@Override
+		public int size() {
+			return set.size();
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return set.contains(o);
+		}
+
+		@Override
+		public boolean add(String s) {
+			if(!set.add(s))
+				return false;
+			onChange.run();
+			return true;
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if(!set.remove(o))
+				return false;
+			onChange.run();
+			return true;
+		}
+
+		@Override
+		public boolean addAll(Collection<? extends String> c) {
+			if(!set.addAll(c))
+				return false;
+			onChange.run();
+			return true;
+		}
+
+		@Override
+		public void clear() {
+			if(set.isEmpty())
+				return;
+			set.clear();
+			onChange.run();
+		}
+
+		@Override
+		public Iterator<String> iterator() {
+			final Iterator<String> i = set.iterator();
+			return new Iterator<String>() {
+				public boolean hasNext() {
+					return i.hasNext();
+				}
+
+				public String next() {
+					return i.next();
+				}
+
+				public void remove() {
+					i.remove();
+					onChange.run();
+				}
+			};
+		}
+	}
+}